@@ -0,0 +1,101 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Synthetic CSV objects and configuration shared by the benchmarks.
+ */
+final class BenchmarkObjects {
+
+    static final String FILE_NAME = "benchmark.csv";
+
+    static final String HEADER = "id,name,password,mail,groups";
+
+    /**
+     * Connector logs through JDK logging with its default level, not to standard output, otherwise benchmarks
+     * would measure mostly the logging of every record.
+     */
+    static final String JDK_LOGGING = "-Dorg.identityconnectors.common.logging.class="
+            + "org.identityconnectors.common.logging.impl.JDKLogger";
+
+    private BenchmarkObjects() {
+    }
+
+    static CloudCsvConfiguration createConfiguration() throws Exception {
+        final CloudCsvConfiguration configuration = new CloudCsvConfiguration();
+        configuration.setCloudObjectStorageProvider("memory");
+        configuration.setBucketName("benchmark");
+        configuration.setFileName(FILE_NAME);
+        configuration.setFieldDelimiter(",");
+        configuration.setUniqueAttribute("id");
+        configuration.setNameAttribute("name");
+        configuration.setPasswordAttribute("password");
+        configuration.setMultivalueDelimiter(";");
+
+        return configuration;
+    }
+
+    static CloudCsvProcessor createProcessor(CloudCsvConfiguration configuration, byte[] content) throws Exception {
+        return new CloudCsvProcessor(configuration, createStorage(configuration, content));
+    }
+
+    /**
+     * Empty in-memory bucket with just the object.
+     */
+    static MemoryStorageService createStorage(CloudCsvConfiguration configuration, byte[] content) throws Exception {
+        MemoryStorageService.clearBucket(configuration.getBucketName());
+
+        final MemoryStorageService storage = new MemoryStorageService(configuration);
+        storage.uploadFileContent(configuration, configuration.getFileName(), content);
+
+        return storage;
+    }
+
+    /**
+     * Object with the records "u0" .. "u&lt;rows - 1&gt;", every record is member of a few groups.
+     */
+    static byte[] generate(int rows) throws IOException {
+        return generate(rows, 0);
+    }
+
+    /**
+     * Same object as {@link #generate(int)} with every changeEvery-th record changed and one deleted,
+     * and the same number of records added at the end. Zero means no changes.
+     */
+    static byte[] generate(int rows, int changeEvery) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(rows * 64);
+        try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+
+            for (int i = 0; i < rows; i++) {
+                if (changeEvery > 0 && i % changeEvery == 1) {
+                    continue;
+                }
+                writeRecord(writer, i, changeEvery > 0 && i % changeEvery == 0 ? "example.org" : "example.com");
+            }
+
+            for (int i = 0; changeEvery > 0 && i < rows / changeEvery; i++) {
+                writeRecord(writer, rows + i, "example.com");
+            }
+        }
+
+        return output.toByteArray();
+    }
+
+    private static void writeRecord(Writer writer, int i, String domain) throws IOException {
+        writer.write("u" + i + ",user" + i + ",secret" + i + ",user" + i + "@" + domain + ",");
+        for (int group = 0; group < 1 + i % 5; group++) {
+            if (group > 0) {
+                writer.write(';');
+            }
+            writer.write("group" + (i + group * 7) % 100);
+        }
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,62 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.MultivalueCodec;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scan of the object, the snapshot is already downloaded, so it's parsing and mapping of the records.
+ * Filtered scan rejects almost all records before they are mapped, it's mostly parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", BenchmarkObjects.JDK_LOGGING})
+public class ReadBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    private int rows;
+
+    @Param({"false", "true"})
+    private boolean memoryMappedReads;
+
+    @Param({"commons", "tokenizer"})
+    private String csvParser;
+
+    private CloudCsvProcessor processor;
+
+    private CsvFilter filter;
+
+    @Setup
+    public void setup() throws Exception {
+        final CloudCsvConfiguration configuration = BenchmarkObjects.createConfiguration();
+        configuration.setMemoryMappedReads(memoryMappedReads);
+        configuration.setCsvParser(csvParser);
+        processor = BenchmarkObjects.createProcessor(configuration, BenchmarkObjects.generate(rows));
+
+        // mail isn't indexed, so it's a full scan
+        filter = new CsvFilter.Equals(new CsvFilter.ColumnValues(3, MultivalueCodec.of(configuration)),
+                Collections.singletonList("user7@example.com"), false);
+    }
+
+    @Benchmark
+    public void executeQuery(Blackhole blackhole) {
+        processor.executeQuery(ObjectClass.ACCOUNT, null, object -> {
+            blackhole.consume(object);
+            return true;
+        }, null);
+    }
+
+    @Benchmark
+    public void executeFilteredQuery(Blackhole blackhole) {
+        processor.executeQuery(ObjectClass.ACCOUNT, filter, object -> {
+            blackhole.consume(object);
+            return true;
+        }, null);
+    }
+}
@@ -0,0 +1,70 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live sync from the same token over and over, 1% of the records changed since the token, 1% were deleted
+ * and 1% added. Snapshots stored by the sync are removed after each invocation, so the token stays valid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", BenchmarkObjects.JDK_LOGGING})
+public class SyncBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    private int rows;
+
+    /**
+     * 0 makes the sync use the sorted diff, otherwise old records are kept in memory.
+     */
+    @Param({"256", "0"})
+    private int syncSortThreshold;
+
+    private CloudCsvConfiguration configuration;
+    private MemoryStorageService storage;
+    private CloudCsvProcessor processor;
+    private SyncToken token;
+    private List<String> snapshots;
+
+    @Setup
+    public void setup() throws Exception {
+        configuration = BenchmarkObjects.createConfiguration();
+        configuration.setSyncSortThreshold(syncSortThreshold);
+
+        storage = BenchmarkObjects.createStorage(configuration, BenchmarkObjects.generate(rows));
+        processor = new CloudCsvProcessor(configuration, storage);
+
+        token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        snapshots = listSnapshots();
+
+        storage.uploadFileContent(configuration, configuration.getFileName(), BenchmarkObjects.generate(rows, 100));
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeNewSnapshots() {
+        final List<String> stored = listSnapshots();
+        stored.removeAll(snapshots);
+        storage.deleteFiles(configuration, stored);
+    }
+
+    private List<String> listSnapshots() {
+        return storage.listFolder(configuration, configuration.getFileName() + ".sync/");
+    }
+
+    @Benchmark
+    public void sync(Blackhole blackhole) {
+        processor.sync(ObjectClass.ACCOUNT, token, delta -> {
+            blackhole.consume(delta);
+            return true;
+        }, null);
+    }
+}
@@ -0,0 +1,62 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.openjdk.jmh.annotations.*;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of one record to connector object and conversions of multivalue attribute values, for records
+ * with different number of values in the multivalue column.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = BenchmarkObjects.JDK_LOGGING)
+public class ValueBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int values;
+
+    private CloudCsvConfiguration configuration;
+    private CloudCsvProcessor processor;
+    private CSVRecord record;
+    private String raw;
+    private List<Object> list;
+
+    @Setup
+    public void setup() throws Exception {
+        configuration = BenchmarkObjects.createConfiguration();
+        processor = BenchmarkObjects.createProcessor(configuration, BenchmarkObjects.generate(1));
+
+        list = new ArrayList<>();
+        for (int i = 0; i < values; i++) {
+            list.add("group" + i);
+        }
+        raw = Util.createRawValue(list, configuration);
+
+        final String line = "u1,user1,secret1,user1@example.com," + raw;
+        record = Util.createCsvFormatReader(configuration).parse(new StringReader(line)).getRecords().get(0);
+    }
+
+    @Benchmark
+    public ConnectorObject createConnectorObject() {
+        return processor.createConnectorObject(record);
+    }
+
+    @Benchmark
+    public List<String> createAttributeValues() {
+        return Util.createAttributeValues(raw, String.class, configuration);
+    }
+
+    @Benchmark
+    public String createRawValue() {
+        return Util.createRawValue(list, configuration);
+    }
+}
@@ -0,0 +1,53 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.identityconnectors.framework.common.objects.*;
+import org.openjdk.jmh.annotations.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writes, each of them rewrites the whole object.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", BenchmarkObjects.JDK_LOGGING})
+public class WriteBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    private int rows;
+
+    private CloudCsvProcessor processor;
+
+    private int counter;
+
+    @Setup
+    public void setup() throws Exception {
+        processor = BenchmarkObjects.createProcessor(BenchmarkObjects.createConfiguration(),
+                BenchmarkObjects.generate(rows));
+    }
+
+    @Benchmark
+    public Uid update() {
+        final Set<Attribute> attributes = new HashSet<>();
+        attributes.add(AttributeBuilder.build("mail", "changed" + counter++ + "@example.com"));
+
+        return processor.update(ObjectClass.ACCOUNT, new Uid("u" + rows / 2), attributes, null);
+    }
+
+    @Benchmark
+    public Uid create() {
+        final String id = "created" + counter++;
+
+        final Set<Attribute> attributes = new HashSet<>();
+        attributes.add(AttributeBuilder.build("id", id));
+        attributes.add(new Name("user-" + id));
+        attributes.add(AttributeBuilder.build("mail", id + "@example.com"));
+        attributes.add(AttributeBuilder.build("groups", "group1", "group2"));
+
+        return processor.create(ObjectClass.ACCOUNT, attributes, null);
+    }
+}
@@ -52,6 +52,16 @@ public class CloudCsvConfiguration extends AbstractConfiguration {
     private String profileName;
     private String profilePath;
     private boolean testMode;
+    private boolean deltaLog = false;
+    private int deltaLogCompactionThreshold = 100;
+    private String syncSnapshotPrefix;
+    private int syncSnapshotRetentionCount = 10;
+    private int syncSnapshotRetentionHours = 24;
+    private int syncSortThreshold = 256;
+    private boolean syncChangedAttributesOnly = false;
+    private boolean memoryMappedReads = false;
+    private String csvParser = "commons";
+    private boolean multivalueEscape = false;
 
 
     public CloudCsvConfiguration() throws Exception {
@@ -70,6 +80,16 @@ public class CloudCsvConfiguration extends AbstractConfiguration {
         setProfileName(Util.getSafeValue(values, "profileName", null));
         setProfilePath(Util.getSafeValue(values, "profilePath", null));
         setTestMode(Util.getSafeValue(values, "testMode", false, Boolean.class));
+        setDeltaLog(Util.getSafeValue(values, "deltaLog", false, Boolean.class));
+        setDeltaLogCompactionThreshold(Util.getSafeValue(values, "deltaLogCompactionThreshold", 100, Integer.class));
+        setSyncSnapshotPrefix(Util.getSafeValue(values, "syncSnapshotPrefix", null));
+        setSyncSnapshotRetentionCount(Util.getSafeValue(values, "syncSnapshotRetentionCount", 10, Integer.class));
+        setSyncSnapshotRetentionHours(Util.getSafeValue(values, "syncSnapshotRetentionHours", 24, Integer.class));
+        setSyncSortThreshold(Util.getSafeValue(values, "syncSortThreshold", 256, Integer.class));
+        setSyncChangedAttributesOnly(Util.getSafeValue(values, "syncChangedAttributesOnly", false, Boolean.class));
+        setMemoryMappedReads(Util.getSafeValue(values, "memoryMappedReads", false, Boolean.class));
+        setCsvParser(Util.getSafeValue(values, "csvParser", "commons"));
+        setMultivalueEscape(Util.getSafeValue(values, "multivalueEscape", false, Boolean.class));
 
         setEncoding(Util.getSafeValue(values, "encoding", "utf-8"));
         setFieldDelimiter(Util.getSafeValue(values, "fieldDelimiter", ";"));
@@ -361,6 +381,86 @@ public class CloudCsvConfiguration extends AbstractConfiguration {
         return testMode;
     }
 
+    @ConfigurationProperty(
+            order = 34,
+            displayMessageKey = "UI_DELTA_LOG",
+            helpMessageKey = "UI_DELTA_LOG_HELP")
+    public boolean isDeltaLog() {
+        return deltaLog;
+    }
+
+    @ConfigurationProperty(
+            order = 35,
+            displayMessageKey = "UI_DELTA_LOG_COMPACTION_THRESHOLD",
+            helpMessageKey = "UI_DELTA_LOG_COMPACTION_THRESHOLD_HELP")
+    public int getDeltaLogCompactionThreshold() {
+        return deltaLogCompactionThreshold;
+    }
+
+    @ConfigurationProperty(
+            order = 36,
+            displayMessageKey = "UI_SYNC_SNAPSHOT_PREFIX",
+            helpMessageKey = "UI_SYNC_SNAPSHOT_PREFIX_HELP")
+    public String getSyncSnapshotPrefix() {
+        return syncSnapshotPrefix;
+    }
+
+    @ConfigurationProperty(
+            order = 37,
+            displayMessageKey = "UI_SYNC_SNAPSHOT_RETENTION_COUNT",
+            helpMessageKey = "UI_SYNC_SNAPSHOT_RETENTION_COUNT_HELP")
+    public int getSyncSnapshotRetentionCount() {
+        return syncSnapshotRetentionCount;
+    }
+
+    @ConfigurationProperty(
+            order = 38,
+            displayMessageKey = "UI_SYNC_SNAPSHOT_RETENTION_HOURS",
+            helpMessageKey = "UI_SYNC_SNAPSHOT_RETENTION_HOURS_HELP")
+    public int getSyncSnapshotRetentionHours() {
+        return syncSnapshotRetentionHours;
+    }
+
+    @ConfigurationProperty(
+            order = 39,
+            displayMessageKey = "UI_SYNC_SORT_THRESHOLD",
+            helpMessageKey = "UI_SYNC_SORT_THRESHOLD_HELP")
+    public int getSyncSortThreshold() {
+        return syncSortThreshold;
+    }
+
+    @ConfigurationProperty(
+            order = 40,
+            displayMessageKey = "UI_SYNC_CHANGED_ATTRIBUTES_ONLY",
+            helpMessageKey = "UI_SYNC_CHANGED_ATTRIBUTES_ONLY_HELP")
+    public boolean isSyncChangedAttributesOnly() {
+        return syncChangedAttributesOnly;
+    }
+
+    @ConfigurationProperty(
+            order = 41,
+            displayMessageKey = "UI_MEMORY_MAPPED_READS",
+            helpMessageKey = "UI_MEMORY_MAPPED_READS_HELP")
+    public boolean isMemoryMappedReads() {
+        return memoryMappedReads;
+    }
+
+    @ConfigurationProperty(
+            order = 42,
+            displayMessageKey = "UI_CSV_PARSER",
+            helpMessageKey = "UI_CSV_PARSER_HELP")
+    public String getCsvParser() {
+        return csvParser;
+    }
+
+    @ConfigurationProperty(
+            order = 43,
+            displayMessageKey = "UI_CSV_MULTI_VALUE_ESCAPE",
+            helpMessageKey = "UI_CSV_MULTI_VALUE_ESCAPE_HELP")
+    public boolean isMultivalueEscape() {
+        return multivalueEscape;
+    }
+
     public ObjectClass getObjectClass() {
         return objectClass;
     }
@@ -502,6 +602,46 @@ public class CloudCsvConfiguration extends AbstractConfiguration {
         this.testMode = testMode;
     }
 
+    public void setDeltaLog(boolean deltaLog) {
+        this.deltaLog = deltaLog;
+    }
+
+    public void setDeltaLogCompactionThreshold(int deltaLogCompactionThreshold) {
+        this.deltaLogCompactionThreshold = deltaLogCompactionThreshold;
+    }
+
+    public void setSyncSnapshotPrefix(String syncSnapshotPrefix) {
+        this.syncSnapshotPrefix = syncSnapshotPrefix;
+    }
+
+    public void setSyncSnapshotRetentionCount(int syncSnapshotRetentionCount) {
+        this.syncSnapshotRetentionCount = syncSnapshotRetentionCount;
+    }
+
+    public void setSyncSnapshotRetentionHours(int syncSnapshotRetentionHours) {
+        this.syncSnapshotRetentionHours = syncSnapshotRetentionHours;
+    }
+
+    public void setSyncSortThreshold(int syncSortThreshold) {
+        this.syncSortThreshold = syncSortThreshold;
+    }
+
+    public void setSyncChangedAttributesOnly(boolean syncChangedAttributesOnly) {
+        this.syncChangedAttributesOnly = syncChangedAttributesOnly;
+    }
+
+    public void setMemoryMappedReads(boolean memoryMappedReads) {
+        this.memoryMappedReads = memoryMappedReads;
+    }
+
+    public void setCsvParser(String csvParser) {
+        this.csvParser = csvParser;
+    }
+
+    public void setMultivalueEscape(boolean multivalueEscape) {
+        this.multivalueEscape = multivalueEscape;
+    }
+
 
     public void validate() {
         LOG.ok("Validating configuration for {0}", objectClass);
@@ -537,6 +677,28 @@ public class CloudCsvConfiguration extends AbstractConfiguration {
 
         Util.notEmpty(getRecordSeparator(), "Record separator is not defined");
 
+        Util.notEmpty(getCsvParser(), "CSV parser is not defined");
+        if (Arrays.stream(CsvParsers.values()).noneMatch(parser -> parser.name().equalsIgnoreCase(getCsvParser()))) {
+            throw new ConfigurationException("CSV parser '" + getCsvParser() + "' is not supported, supported values: "
+                    + Arrays.toString(CsvParsers.values()).toLowerCase());
+        }
+
+        if (isDeltaLog() && getDeltaLogCompactionThreshold() < 1) {
+            throw new ConfigurationException("Delta log compaction threshold must be at least 1");
+        }
+
+        if (getSyncSnapshotRetentionCount() < 1) {
+            throw new ConfigurationException("Sync snapshot retention count must be at least 1");
+        }
+
+        if (getSyncSnapshotRetentionHours() < 0) {
+            throw new ConfigurationException("Sync snapshot retention hours must not be negative");
+        }
+
+        if (getSyncSortThreshold() < 0) {
+            throw new ConfigurationException("Sync sort threshold must not be negative");
+        }
+
         validateAttributeNames();
     }
 
@@ -26,11 +26,9 @@ import java.util.Set;
 @ConnectorClass(
         displayNameKey = "UI_CSV_CONNECTOR_NAME",
         configurationClass = CloudCsvConfiguration.class)
-public class CloudCsvObjectStorageConnector implements Connector, TestOp, SchemaOp, SearchOp<String>, AuthenticateOp,
+public class CloudCsvObjectStorageConnector implements Connector, TestOp, SchemaOp, SearchOp<CsvFilter>, AuthenticateOp,
         ResolveUsernameOp, SyncOp, CreateOp, UpdateOp, UpdateAttributeValuesOp, DeleteOp, ScriptOnResourceOp, ScriptOnConnectorOp {
 
-	public static final Integer SYNCH_FILE_LOCK = 0;
-	
     private static final Log LOG = Log.getLog(CloudCsvObjectStorageConnector.class);
 
     private CloudCsvConfiguration configuration;
@@ -118,6 +116,10 @@ public class CloudCsvObjectStorageConnector implements Connector, TestOp, Schema
             LOG.info("schema finished for {0}", handler.getObjectClass());
         });
 
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+
         Schema schema = builder.build();
         LOG.info(">>> schema finished");
 
@@ -125,10 +127,10 @@ public class CloudCsvObjectStorageConnector implements Connector, TestOp, Schema
     }
 
     @Override
-    public FilterTranslator<String> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
+    public FilterTranslator<CsvFilter> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
         LOG.info(">>> createFilterTranslator {0} {1}", oc, oo);
 
-        FilterTranslator<String> translator = getHandler(oc).createFilterTranslator(oc, oo);
+        FilterTranslator<CsvFilter> translator = getHandler(oc).createFilterTranslator(oc, oo);
 
         LOG.info(">>> createFilterTranslator finished");
 
@@ -136,10 +138,10 @@ public class CloudCsvObjectStorageConnector implements Connector, TestOp, Schema
     }
 
     @Override
-    public void executeQuery(ObjectClass oc, String uid, ResultsHandler handler, OperationOptions oo) {
-        LOG.info(">>> executeQuery {0} {1} {2} {3}", oc, uid, handler, oo);
+    public void executeQuery(ObjectClass oc, CsvFilter filter, ResultsHandler handler, OperationOptions oo) {
+        LOG.info(">>> executeQuery {0} {1} {2} {3}", oc, filter, handler, oo);
 
-        getHandler(oc).executeQuery(oc, uid, handler, oo);
+        getHandler(oc).executeQuery(oc, filter, handler, oo);
 
         LOG.info(">>> executeQuery finished");
     }
@@ -1,13 +1,14 @@
 package com.evolveum.polygon.connector.cloud.objectstorage.csv;
 
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Column;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.MultivalueCodec;
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.StringAccessor;
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.commons.io.FileUtils;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
@@ -15,16 +16,27 @@ import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.*;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.identityconnectors.framework.spi.operations.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import static com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util.handleGenericException;
 
 
-public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<String>,
+public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<CsvFilter>,
 		UpdateAttributeValuesOp, AuthenticateOp, ResolveUsernameOp, SyncOp {
 
 	private enum Operation {
@@ -32,22 +44,246 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		DELETE, UPDATE, ADD_ATTR_VALUE, REMOVE_ATTR_VALUE
 	}
 
+	private interface Rewriter {
+
+		/**
+		 * Writes new content of the CSV object, snapshot of the current content is null if the object doesn't
+		 * exist yet.
+		 *
+		 * @return false if the content didn't change and the object doesn't have to be written
+		 */
+		boolean rewrite(ObjectSnapshot snapshot, OutputStream output) throws Exception;
+	}
+
+	/**
+	 * Write of one operation, it's applied to all records of the object during the rewrite in the order writes
+	 * were submitted, so every write sees the records as changed by the writes before it. Failure of the write
+	 * is recorded and the write has no further effect, other writes in the batch aren't affected.
+	 */
+	private abstract static class RecordWrite extends PendingWrite<Uid> {
+
+		protected final Uid uid;
+
+		private Uid result;
+		private Exception failure;
+
+		RecordWrite(Uid uid) {
+			this.uid = uid;
+		}
+
+		/**
+		 * @return record which should be written instead of the one given, null if it should be removed
+		 */
+		protected abstract List<?> apply(List<?> record) throws Exception;
+
+		/**
+		 * @return records which should be added at the end of the object
+		 */
+		protected abstract List<List<?>> finish() throws Exception;
+
+		protected void setResult(Uid result) {
+			this.result = result;
+		}
+
+		void reset() {
+			result = null;
+			failure = null;
+		}
+
+		List<?> process(List<?> record) {
+			if (failure != null) {
+				return record;
+			}
+
+			try {
+				return apply(record);
+			} catch (Exception ex) {
+				failure = ex;
+				return record;
+			}
+		}
+
+		List<List<?>> end() {
+			if (failure != null) {
+				return Collections.emptyList();
+			}
+
+			try {
+				return finish();
+			} catch (Exception ex) {
+				failure = ex;
+				return Collections.emptyList();
+			}
+		}
+
+		boolean isSuccessful() {
+			return failure == null;
+		}
+
+		void commit() {
+			if (failure != null) {
+				fail(failure);
+			} else {
+				complete(result);
+			}
+		}
+	}
+
+	private class CreateWrite extends RecordWrite {
+
+		private final Set<Attribute> attributes;
+
+		private final int uidIndex = getColumnIndex(configuration.getUniqueAttribute());
+
+		CreateWrite(Uid uid, Set<Attribute> attributes) {
+			super(uid);
+			this.attributes = attributes;
+		}
+
+		@Override
+		protected List<?> apply(List<?> record) {
+			if (uidIndex >= 0 && uidIndex < record.size()
+					&& uid.getUidValue().equals(Objects.toString(record.get(uidIndex), null))) {
+				throw new AlreadyExistsException("Account already exists '" + uid.getUidValue() + "'.");
+			}
+
+			return record;
+		}
+
+		@Override
+		protected List<List<?>> finish() {
+			setResult(uid);
+			return Collections.singletonList(createNewRecord(attributes));
+		}
+	}
+
+	private class UpdateWrite extends RecordWrite {
+
+		private final Operation operation;
+		private final Set<Attribute> attributes;
+
+		private final Column uidColumn = header.get(configuration.getUniqueAttribute());
+
+		private boolean found;
+
+		UpdateWrite(Operation operation, Uid uid, Set<Attribute> attributes) {
+			super(uid);
+			this.operation = operation;
+			this.attributes = attributes;
+		}
+
+		@Override
+		void reset() {
+			super.reset();
+			found = false;
+		}
+
+		@Override
+		protected List<?> apply(List<?> record) {
+			String recordUidValue = uidColumn != null && uidColumn.getIndex() < record.size()
+					? Objects.toString(record.get(uidColumn.getIndex()), null) : null;
+			if (StringUtil.isEmpty(recordUidValue)
+					|| !uidMatches(uid.getUidValue(), recordUidValue, configuration.isIgnoreIdentifierCase())) {
+				return record;
+			}
+
+			found = true;
+
+			if (Operation.DELETE.equals(operation)) {
+				setResult(uid);
+				return null;
+			}
+
+			// only the updated record needs the values by column names
+			Map<String, String> data = new HashMap<>();
+			for (int i = 0; i < record.size(); i++) {
+				data.put(rowMapping.getName(i), Objects.toString(record.get(i), null));
+			}
+
+			List<Object> updated = updateObject(operation, data, attributes);
+
+			Object newUidValue = updated.get(uidColumn.getIndex());
+			setResult(new Uid(newUidValue.toString()));
+
+			return updated;
+		}
+
+		@Override
+		protected List<List<?>> finish() {
+			if (!found) {
+				throw new UnknownUidException("Account '" + uid + "' not found");
+			}
+
+			return Collections.emptyList();
+		}
+	}
+
 	private static final Log LOG = Log.getLog(CloudCsvProcessor.class);
 
+	/**
+	 * How many times read-modify-write is attempted when the object is changed concurrently.
+	 */
+	private static final int WRITE_ATTEMPTS = 5;
+
+	/**
+	 * How many times append to the delta log is attempted when writers of other nodes append at the same time,
+	 * appends are small, so they are attempted more times than rewrites.
+	 */
+	private static final int DELTA_LOG_APPEND_ATTEMPTS = 10;
+
+	/**
+	 * Writers of other nodes appending to the delta log at the same time conflict again if they retry at once,
+	 * the wait before the next attempt is random up to this many milliseconds times the attempt.
+	 */
+	private static final int DELTA_LOG_BACKOFF = 50;
+
+	/**
+	 * Key columns of the snapshot index.
+	 */
+	private static final int UID_KEY = 0;
+	private static final int NAME_KEY = 1;
+
+	/**
+	 * How long the snapshot of a paged search is kept after the last page was read.
+	 */
+	private static final long PAGED_SEARCH_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * Sync snapshots are stored as "&lt;fileName&gt;.sync/&lt;token&gt;" unless other prefix is configured.
+	 */
+	private static final String SYNC_SNAPSHOT_SUFFIX = ".sync/";
+
+	private static final String SYNC_TOKEN_VERSION_SEPARATOR = ".";
+
 	private final CloudCsvConfiguration configuration;
 
 	private final Map<String, Column> header;
 
-	private final CloudStorageService cloudStorageService;
+	/**
+	 * Compiled from the header, replaced whenever a new column is added to the header.
+	 */
+	private volatile RowMapping rowMapping;
 
-	private final Map<String, String> syncFiles = new HashMap<>();
+	private final CloudStorageService cloudStorageService;
 
+	private final MultivalueCodec multivalueCodec;
 
 	public CloudCsvProcessor(final CloudCsvConfiguration configuration) throws Exception {
+		this(configuration, CloudStorageServiceFactory.getCloudServiceProvider(configuration));
+	}
+
+	/**
+	 * Processor working with the given storage service instead of the configured provider, e.g. a local one
+	 * in benchmarks.
+	 */
+	CloudCsvProcessor(final CloudCsvConfiguration configuration, final CloudStorageService cloudStorageService)
+			throws Exception {
 		this.configuration = configuration;
-		this.cloudStorageService = CloudStorageServiceFactory.getCloudServiceProvider(configuration);
+		this.cloudStorageService = cloudStorageService;
+		this.multivalueCodec = MultivalueCodec.of(configuration);
 		this.verifyCloudProviderObjectStorageConnection();
 		this.header = initHeader(null);
+		this.rowMapping = new RowMapping(header, configuration);
 	}
 
 	private void verifyCloudProviderObjectStorageConnection() {
@@ -73,47 +309,49 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 	}
 
 	private Map<String, Column> initHeader(final File optionalPhysicalFile) {
-		synchronized (CloudCsvObjectStorageConnector.SYNCH_FILE_LOCK) {
-			try {
-				Reader reader = null;
+		try {
+			Reader reader = null;
 
-				try {
-					if (optionalPhysicalFile == null) {
-						reader = cloudStorageService.getFileAsReader(configuration);
-					} else {
-						reader = Util.createReader(optionalPhysicalFile, configuration);
-					}
-				} catch (Exception e) {
-					//swallow for now, file whether local or in object storage must not exist
+			try {
+				if (optionalPhysicalFile == null) {
+					reader = cloudStorageService.getFileAsReader(configuration);
+				} else {
+					reader = Util.createReader(optionalPhysicalFile, configuration);
 				}
+			} catch (Exception e) {
+				//swallow for now, file whether local or in object storage must not exist
+			}
 
-				if (reader == null) {
-					return createHeader(null);
-				}
+			if (reader == null) {
+				return createHeader(null);
+			}
 
+			CSVRecord record = null;
+			try {
 				final CSVFormat csv = Util.createCsvFormat(configuration);
 				final CSVParser parser = csv.parse(reader);
 				final Iterator<CSVRecord> iterator = parser.iterator();
 
-				CSVRecord record = null;
 				while (iterator.hasNext()) {
 					record = iterator.next();
 					if (!isRecordEmpty(record)) {
 						break;
 					}
 				}
+			} finally {
+				Util.closeQuietly(reader);
+			}
 
-				if (record == null) {
-					throw new ConfigurationException("Couldn't initialize headers, nothing in csv file for object class "
-							+ configuration.getObjectClass());
-				}
+			if (record == null) {
+				throw new ConfigurationException("Couldn't initialize headers, nothing in csv file for object class "
+						+ configuration.getObjectClass());
+			}
 
-				return createHeader(record);
+			return createHeader(record);
 
-			} catch (Exception ex) {
-				throw new ConnectorIOException("Couldn't initialize connector for object class "
-						+ configuration.getObjectClass(), ex);
-			}
+		} catch (Exception ex) {
+			throw new ConnectorIOException("Couldn't initialize connector for object class "
+					+ configuration.getObjectClass(), ex);
 		}
 	}
 
@@ -215,11 +453,7 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 
 		if (columns != null && !columns.isEmpty()) {
 
-			List<String> multivalueAttributes = new ArrayList<>();
-			if (StringUtil.isNotEmpty(configuration.getMultivalueAttributes())) {
-				final String[] array = configuration.getMultivalueAttributes().split(configuration.getMultivalueDelimiter());
-				multivalueAttributes = Arrays.asList(array);
-			}
+			final List<String> multivalueAttributes = multivalueCodec.split(configuration.getMultivalueAttributes());
 
 			for (String name : columns.keySet()) {
 				if (name == null || name.isEmpty()) {
@@ -303,65 +537,10 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		final String uidValue = findUidValue(attributes);
 		final Uid uid = new Uid(uidValue);
 
-		Reader reader = null;
-		Writer writer = null;
 		try {
-			synchronized (CloudCsvObjectStorageConnector.SYNCH_FILE_LOCK) {
-				if (cloudStorageService.checkFileExistsAndCanRead(configuration)) {
-					reader = cloudStorageService.getFileAsReader(configuration);
-				}
-
-				//writer = Files.newBufferedWriter(Paths.get(Util.DEFAULT_TMP_FOLDER), StandardCharsets.UTF_8);
-				writer = new StringBuilderWriter();
-				CSVFormat csv = Util.createCsvFormat(configuration);
-
-				if (reader != null) {
-					CSVParser parser = csv.parse(reader);
-					csv = Util.createCsvFormat(configuration);
-					CSVPrinter printer = csv.print(writer);
-
-					Iterator<CSVRecord> iterator = parser.iterator();
-					// we don't want to skip header in any case, but if it's there just
-					// write it to tmp file as "standard" record. We can't handle first row
-					// as header in case there are more columns with the same name.
-					if (configuration.isHeaderExists() && iterator.hasNext()) {
-						CSVRecord record = iterator.next();
-						printer.printRecord(record);
-					}
-
-					// handling real records
-					while (iterator.hasNext()) {
-						CSVRecord record = iterator.next();
-						ConnectorObject obj = createConnectorObject(record);
-
-						if (uid.equals(obj.getUid())) {
-							throw new AlreadyExistsException("Account already exists '" + uid.getUidValue() + "'.");
-						}
-
-						printer.printRecord(record);
-					}
-
-					printer.printRecord(createNewRecord(attributes));
-					reader.close();
-
-				} else {
-					final CSVPrinter printer = csv.print(writer);
-					if (configuration.isHeaderExists()) {
-						final Set<Attribute> csvHead = new HashSet<>();
-						header.keySet().stream().forEach(key -> csvHead.add(AttributeBuilder.build(key, key)));
-						printer.printRecord(createNewRecord(csvHead));
-					}
-					printer.printRecord(createNewRecord(attributes));
-				}
-
-				writer.close();
-				cloudStorageService.uploadString(configuration, writer.toString());
-
-			}
+			return submitWrite(new CreateWrite(uid, attributes));
 		} catch (Exception ex) {
 			handleGenericException(ex, "Error during account '" + uid + "' create");
-		} finally {
-			Util.cleanupResources(writer, reader, null);
 		}
 
 		return uid;
@@ -393,7 +572,7 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 					continue;
 				}
 
-				value = Util.createRawValue(attr, configuration);
+				value = Util.createRawValue(attr.getValue(), MultivalueCodec.singleValue());
 			} else if (isName(column) && name != null) {
 				value = name;
 			} else if (isUid(column) && uid != null) {
@@ -404,7 +583,7 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 					continue;
 				}
 
-				value = Util.createRawValue(attr, configuration);
+				value = Util.createRawValue(attr.getValue(), getColumnCodec(column));
 			}
 
 			record[header.get(column).getIndex()] = value;
@@ -439,11 +618,16 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 	}
 
 	@Override
-	public FilterTranslator<String> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
-		return new CsvFilterTranslator();
+	public FilterTranslator<CsvFilter> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
+		return new CsvFilterTranslator(configuration, header, getColumnIndex(configuration.getUniqueAttribute()),
+				getColumnIndex(configuration.getNameAttribute()));
 	}
 
 	private boolean skipRecord(CSVRecord record) {
+		return skipRecord(CsvRow.of(record));
+	}
+
+	private boolean skipRecord(CsvRow record) {
 		if (configuration.isHeaderExists() && record.getRecordNumber() == 1) {
 			return true;
 		}
@@ -452,33 +636,37 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 	}
 
 	@Override
-	public void executeQuery(ObjectClass oc, String uid, ResultsHandler handler, OperationOptions oo) {
+	public void executeQuery(ObjectClass oc, CsvFilter filter, ResultsHandler handler, OperationOptions oo) {
 		if (cloudStorageService.checkFileExistsAndCanRead(configuration)) {
-			try {
-				final CSVFormat csv = Util.createCsvFormatReader(configuration);
-				final Reader reader = cloudStorageService.getFileAsReader(configuration);
-				final CSVParser parser = csv.parse(reader);
+			final RowMapping mapping = getRowMapping(oo);
 
-				for (CSVRecord record : parser) {
-					if (skipRecord(record)) {
-						continue;
-					}
+			if (isPagedSearch(oo)) {
+				executePagedQuery(filter, mapping, handler, oo);
+				return;
+			}
 
-					ConnectorObject obj = createConnectorObject(record);
+			if (filter != null && executeIndexedQuery(filter, mapping, handler)) {
+				return;
+			}
 
-					if (uid == null) {
-						if (!handler.handle(obj)) {
-							break;
-						} else {
-							continue;
-						}
+			boolean allReturned = true;
+
+			try (CsvRowReader reader = openRowReader()) {
+				CsvRow record;
+				while ((record = reader.next()) != null) {
+					if (skipRecord(record)) {
+						continue;
 					}
 
-					if (!uidMatches(uid, obj.getUid().getUidValue(), configuration.isIgnoreIdentifierCase())) {
+					// records which don't match don't get to be objects at all
+					if (filter != null && !filter.matches(record)) {
 						continue;
 					}
 
+					ConnectorObject obj = createConnectorObject(record, mapping);
+
 					if (!handler.handle(obj)) {
+						allReturned = false;
 						break;
 					}
 				}
@@ -486,145 +674,529 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 				handleGenericException(ex, "Error during query execution");
 			}
 
+			completeSearch(handler, null, -1, allReturned);
 		} else {
 			LOG.warn("Returning no results because file doesn't exist or midPoint doesn't have access!");
 		}
 	}
 
-	private boolean uidMatches(String uid1, String uid2, boolean ignoreCase) {
-		if (uid1 != null) {
-			return uid1.equalsIgnoreCase(uid2) || ignoreCase && uid1.equalsIgnoreCase(uid2);
+	/**
+	 * If the filter requires a value of uid or name, candidates are found through the snapshot index
+	 * instead of parsing the whole object.
+	 *
+	 * @return false if the filter can't use the index
+	 */
+	private boolean executeIndexedQuery(CsvFilter filter, RowMapping mapping, ResultsHandler handler) {
+		if (filter.getRequiredValue(getColumnIndex(configuration.getUniqueAttribute())) == null
+				&& filter.getRequiredValue(getColumnIndex(configuration.getNameAttribute())) == null) {
+			return false;
 		}
-		return false;
+
+		boolean allReturned = true;
+
+		try {
+			final ObjectSnapshot snapshot = getObjectSnapshot();
+			try {
+				final SnapshotIndex index = getSnapshotIndex(snapshot);
+				final int[] candidates = findCandidates(index, filter);
+				final CSVFormat csv = Util.createCsvFormat(configuration);
+				for (int ordinal : candidates) {
+					CSVRecord record = index.readRecord(ordinal, csv);
+					if (!filter.matches(record)) {
+						continue;
+					}
+
+					if (!handler.handle(createConnectorObject(record, mapping))) {
+						allReturned = false;
+						break;
+					}
+				}
+			} finally {
+				snapshot.release();
+			}
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during query execution");
+		}
+
+		completeSearch(handler, null, -1, allReturned);
+		return true;
 	}
 
-	private void validateAuthenticationInputs(String username, GuardedString password, boolean authenticate) {
-		if (StringUtil.isEmpty(username)) {
-			throw new InvalidCredentialException("Username must not be empty");
+	/**
+	 * Ordinals of records which may match the filter found through the uid or name index, null if the filter
+	 * doesn't require any uid or name value.
+	 */
+	private int[] findCandidates(SnapshotIndex index, CsvFilter filter) {
+		String value = filter.getRequiredValue(getColumnIndex(configuration.getUniqueAttribute()));
+		if (value != null) {
+			return index.find(UID_KEY, value);
 		}
 
-		if (authenticate && StringUtil.isEmpty(configuration.getPasswordAttribute())) {
-			throw new ConfigurationException("Password attribute not defined in configuration");
+		value = filter.getRequiredValue(getColumnIndex(configuration.getNameAttribute()));
+		if (value != null) {
+			return index.find(NAME_KEY, value);
 		}
 
-		if (authenticate && password == null) {
-			throw new InvalidPasswordException("Password is not defined");
+		return null;
+	}
+
+	/**
+	 * Mapping of the attributes the search should return, all of them unless only some are requested.
+	 */
+	private RowMapping getRowMapping(OperationOptions oo) {
+		if (oo == null || oo.getAttributesToGet() == null || Boolean.TRUE.equals(oo.getReturnDefaultAttributes())) {
+			return rowMapping;
 		}
+
+		return rowMapping.project(Arrays.asList(oo.getAttributesToGet()));
 	}
 
-	private Uid resolveUsername(String username, GuardedString password, boolean authenticate) {
-		validateAuthenticationInputs(username, password, authenticate);
+	private boolean isPagedSearch(OperationOptions oo) {
+		if (oo == null) {
+			return false;
+		}
 
-		final CSVFormat csv = Util.createCsvFormatReader(configuration);
-		try {
-			final Reader reader = cloudStorageService.getFileAsReader(configuration);
-			final CSVParser parser = csv.parse(reader);
-			final Iterator<CSVRecord> iterator = parser.iterator();
-			ConnectorObject object = null;
+		return (oo.getPageSize() != null && oo.getPageSize() > 0) || oo.getPagedResultsCookie() != null
+				|| (oo.getPagedResultsOffset() != null && oo.getPagedResultsOffset() > 1);
+	}
 
-			while (iterator.hasNext()) {
-				CSVRecord record = iterator.next();
-				if (skipRecord(record)) {
-					continue;
+	/**
+	 * All pages are read from the snapshot of the version the first page was read from, it stays pinned
+	 * in the snapshot cache between pages. Cookie holds the version and ordinal of the record the next page
+	 * starts with, so the next page starts reading right there.
+	 */
+	private void executePagedQuery(CsvFilter filter, RowMapping mapping, ResultsHandler handler,
+								   OperationOptions oo) {
+		final String objectKey = cloudStorageService.getObjectKey(configuration);
+		final int pageSize = oo.getPageSize() != null && oo.getPageSize() > 0 ? oo.getPageSize() : Integer.MAX_VALUE;
+
+		try {
+			final ObjectSnapshot snapshot;
+			int ordinal = 0;
+			// offset counts returned objects, it's used only if there's no cookie
+			int skip = 0;
+
+			if (oo.getPagedResultsCookie() != null) {
+				final Pair<String, Integer> cookie = parsePagedResultsCookie(oo.getPagedResultsCookie());
+				snapshot = getPagedSearchSnapshot(cookie.first);
+				ordinal = cookie.second;
+			} else {
+				snapshot = getObjectSnapshot();
+				ObjectSnapshotCache.getInstance().pin(objectKey, snapshot, PAGED_SEARCH_TIMEOUT);
+				if (oo.getPagedResultsOffset() != null && oo.getPagedResultsOffset() > 1) {
+					skip = oo.getPagedResultsOffset() - 1;
 				}
+			}
 
-				ConnectorObject obj = createConnectorObject(record);
+			try {
+				final SnapshotIndex index = getSnapshotIndex(snapshot);
+				final CSVFormat csv = Util.createCsvFormat(configuration);
 
-				Name name = obj.getName();
-				if (name != null && username.equalsIgnoreCase(AttributeUtil.getStringValue(name))) {
-					object = obj;
-					break;
+				if (filter == null) {
+					// every record is returned, so the offset is the ordinal of the first one
+					ordinal = (int) Math.min((long) ordinal + skip, index.size());
+					skip = 0;
 				}
-			}
 
-			if (object == null) {
-				String message = authenticate ? "Invalid username and/or password" : "Invalid username";
-				throw new InvalidCredentialException(message);
-			}
+				int returned = 0;
+				int next = -1;
+				boolean stopped = false;
 
-			if (authenticate) {
-				authenticate(username, password, object);
-			}
+				final int[] candidates = filter != null ? findCandidates(index, filter) : null;
+				if (candidates != null) {
+					for (int candidate : candidates) {
+						if (candidate < ordinal) {
+							continue;
+						}
+						if (returned == pageSize) {
+							next = candidate;
+							break;
+						}
 
-			Uid uid = object.getUid();
-			if (uid == null) {
-				throw new UnknownUidException("Unique attribute doesn't have value for account '" + username + "'");
-			}
+						CSVRecord record = index.readRecord(candidate, csv);
+						if (!filter.matches(record)) {
+							continue;
+						}
+						if (skip > 0) {
+							skip--;
+							continue;
+						}
 
-			return uid;
+						returned++;
+						if (!handler.handle(createConnectorObject(record, mapping))) {
+							stopped = true;
+							break;
+						}
+					}
+				} else {
+					try (SnapshotIndex.Cursor cursor = index.openCursor(ordinal, csv)) {
+						while (true) {
+							if (returned == pageSize) {
+								next = cursor.getOrdinal() < index.size() ? cursor.getOrdinal() : -1;
+								break;
+							}
+
+							CSVRecord record = cursor.next();
+							if (record == null) {
+								break;
+							}
+
+							if (filter != null && !filter.matches(record)) {
+								continue;
+							}
+							if (skip > 0) {
+								skip--;
+								continue;
+							}
+
+							returned++;
+							if (!handler.handle(createConnectorObject(record, mapping))) {
+								stopped = true;
+								break;
+							}
+						}
+					}
+				}
+
+				String cookie = null;
+				int remaining = -1;
+				if (!stopped) {
+					cookie = next >= 0 ? createPagedResultsCookie(snapshot.getVersion(), next) : null;
+					if (filter == null) {
+						remaining = next >= 0 ? index.size() - next : 0;
+					}
+				}
+
+				completeSearch(handler, cookie, remaining, !stopped && cookie == null);
+			} finally {
+				snapshot.release();
+			}
 		} catch (Exception ex) {
-			handleGenericException(ex, "Error during authentication"); //TODO handle AWS Exception
+			handleGenericException(ex, "Error during query execution");
 		}
-
-		return null;
 	}
 
-	private void authenticate(String username, GuardedString password, ConnectorObject foundObject) {
-		final GuardedString objPassword = AttributeUtil.getPasswordValue(foundObject.getAttributes());
-		if (objPassword == null) {
-			throw new InvalidPasswordException("Password not defined for username '" + username + "'");
-		}
+	/**
+	 * Snapshot of the version paged search started with, either still pinned or the current one if the object
+	 * didn't change since.
+	 */
+	private ObjectSnapshot getPagedSearchSnapshot(String version) throws Exception {
+		final String objectKey = cloudStorageService.getObjectKey(configuration);
 
-		// we don't want to authenticate against empty password
-		StringAccessor acc = new StringAccessor();
-		objPassword.access(acc);
-		if (StringUtil.isEmpty(acc.getValue())) {
-			throw new InvalidPasswordException("Password not defined for username '" + username + "'");
+		ObjectSnapshot snapshot = ObjectSnapshotCache.getInstance().find(objectKey, version);
+		if (snapshot != null) {
+			return snapshot;
 		}
 
-		if (!objPassword.equals(password)) {
-			throw new InvalidPasswordException("Invalid username and/or password");
+		snapshot = getObjectSnapshot();
+		if (!Objects.equals(version, snapshot.getVersion())) {
+			snapshot.release();
+			throw new ConnectorException("Version " + version + " of " + objectKey + " paged search was started with "
+					+ "is not available anymore, search has to be restarted");
 		}
-	}
 
-	private void handleJustNewToken(SyncToken token, SyncResultsHandler handler) {
-		if (!(handler instanceof SyncTokenResultsHandler)) {
-			return;
-		}
+		ObjectSnapshotCache.getInstance().pin(objectKey, snapshot, PAGED_SEARCH_TIMEOUT);
+		return snapshot;
+	}
 
-		final SyncTokenResultsHandler tokenHandler = (SyncTokenResultsHandler) handler;
-		tokenHandler.handleResult(token);
+	private String createPagedResultsCookie(String version, int ordinal) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(version.getBytes(StandardCharsets.UTF_8))
+				+ ":" + ordinal;
 	}
 
-	@Override
-	public void sync(ObjectClass oc, SyncToken token, SyncResultsHandler handler, OperationOptions oo) {
+	private Pair<String, Integer> parsePagedResultsCookie(String cookie) {
+		final int separator = cookie.lastIndexOf(':');
 		try {
-			File oldCsv = null;
-			if (syncFiles.containsKey(token.getValue().toString())) {
-				oldCsv = new File(syncFiles.get(token));
+			if (separator > 0) {
+				final String version = new String(Base64.getUrlDecoder().decode(cookie.substring(0, separator)),
+						StandardCharsets.UTF_8);
+				final int ordinal = Integer.parseInt(cookie.substring(separator + 1));
+				if (ordinal >= 0) {
+					return new Pair<>(version, ordinal);
+				}
 			}
+		} catch (IllegalArgumentException ex) {
+			// reported below
+		}
 
-			if (false) { //TODO do we need to get from s3 here as else above?
-				oldCsv = Files.createTempFile(token.getValue().toString(), null).toFile();
-				syncFiles.put(token.getValue().toString(), oldCsv.getCanonicalPath());
-				//cloudStorageService.getAsAFile(configuration, oldCsv);
-			}
+		throw new InvalidAttributeValueException("Invalid paged results cookie '" + cookie + "'");
+	}
 
-			if (oldCsv == null) {
-				LOG.error("Couldn't find old csv file to create diff, finishing synchronization.");
-				return;
-			}
-			final Pair<String, File> newSyncFile = createNewSyncFile();
-			final SyncToken newSyncToken = new SyncToken(newSyncFile.getKey());
-			final File newCsv = newSyncFile.getValue();
-			final Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
+	private void completeSearch(ResultsHandler handler, String cookie, int remaining, boolean allReturned) {
+		if (handler instanceof SearchResultsHandler) {
+			((SearchResultsHandler) handler).handleResult(new SearchResult(cookie, remaining, allReturned));
+		}
+	}
 
-			LOG.ok("Comparing files. Old {0} (exists: {1}, size: {2}) with new {3} (exists: {4}, size: {5})",
-					oldCsv.getName(), oldCsv.exists(), oldCsv.length(), newCsv.getName(), newCsv.exists(), newCsv.length());
+	/**
+	 * Retained snapshot of the records as readers should see them, with the delta log applied if it's used.
+	 * Caller has to release the snapshot.
+	 */
+	private ObjectSnapshot getObjectSnapshot() throws Exception {
+		if (!configuration.isDeltaLog()) {
+			return cloudStorageService.getFileSnapshot(configuration);
+		}
 
-			final Reader reader = cloudStorageService.getFileAsReader(configuration);
-			final Map<String, CSVRecord> oldData = loadOldSyncFile(oldCsv);
+		return createDeltaLog().open().getSnapshot();
+	}
+
+	private Reader openObjectReader() throws Exception {
+		if (!configuration.isDeltaLog()) {
+			return cloudStorageService.getFileAsReader(configuration);
+		}
+
+		final ObjectSnapshot snapshot = getObjectSnapshot();
+		try {
+			return snapshot.openReader(configuration.getEncoding());
+		} finally {
+			snapshot.release();
+		}
+	}
+
+	/**
+	 * Reader of all records, the snapshot is memory mapped and parsed directly if it's enabled and the format
+	 * allows it.
+	 */
+	private CsvRowReader openRowReader() throws Exception {
+		if (!configuration.isMemoryMappedReads()) {
+			return createRowReader(openObjectReader());
+		}
+
+		final ObjectSnapshot snapshot = getObjectSnapshot();
+		try {
+			if (MappedCsvRowReader.isSupported(snapshot, configuration)) {
+				return MappedCsvRowReader.open(snapshot, configuration);
+			}
+
+			LOG.ok("Memory mapped reads are not supported for snapshot {0} with encoding {1}, reading it as a stream",
+					snapshot, configuration.getEncoding());
+			return createRowReader(snapshot.openReader(configuration.getEncoding()));
+		} finally {
+			snapshot.release();
+		}
+	}
+
+	/**
+	 * Records of the reader parsed by the configured parser, the reader is closed together with the returned one.
+	 */
+	private CsvRowReader createRowReader(Reader reader) throws IOException {
+		if (CsvParsers.TOKENIZER.name().equalsIgnoreCase(configuration.getCsvParser())) {
+			return new CsvTokenizer(reader, configuration);
+		}
+
+		return new CommonsCsvRowReader(reader, Util.createCsvFormatReader(configuration));
+	}
+
+	private DeltaLog createDeltaLog() {
+		return new DeltaLog(cloudStorageService, configuration, getColumnIndex(configuration.getUniqueAttribute()));
+	}
+
+	private SnapshotIndex getSnapshotIndex(ObjectSnapshot snapshot) throws IOException {
+		final CSVFormat csv = Util.createCsvFormatReader(configuration);
+		final int uidColumn = getColumnIndex(configuration.getUniqueAttribute());
+		final int nameColumn = getColumnIndex(configuration.getNameAttribute());
+
+		final String spec = csv + "|" + configuration.getEncoding() + "|" + configuration.isHeaderExists()
+				+ "|" + uidColumn + "|" + nameColumn;
+		return snapshot.getIndex(spec, s -> SnapshotIndex.build(s, configuration.getEncoding(), csv, this::skipRecord,
+				uidColumn, nameColumn));
+	}
+
+	/**
+	 * Index of the last column with the name, that's the one {@link #createConnectorObject(CSVRecord)} uses, or -1.
+	 */
+	private int getColumnIndex(String name) {
+		return rowMapping.getColumnIndex(name);
+	}
+
+	private boolean uidMatches(String uid1, String uid2, boolean ignoreCase) {
+		if (uid1 != null) {
+			return uid1.equalsIgnoreCase(uid2) || ignoreCase && uid1.equalsIgnoreCase(uid2);
+		}
+		return false;
+	}
+
+	private void validateAuthenticationInputs(String username, GuardedString password, boolean authenticate) {
+		if (StringUtil.isEmpty(username)) {
+			throw new InvalidCredentialException("Username must not be empty");
+		}
+
+		if (authenticate && StringUtil.isEmpty(configuration.getPasswordAttribute())) {
+			throw new ConfigurationException("Password attribute not defined in configuration");
+		}
+
+		if (authenticate && password == null) {
+			throw new InvalidPasswordException("Password is not defined");
+		}
+	}
+
+	private Uid resolveUsername(String username, GuardedString password, boolean authenticate) {
+		validateAuthenticationInputs(username, password, authenticate);
+
+		final ObjectSnapshot snapshot;
+		try {
+			snapshot = getObjectSnapshot();
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during authentication");
+			return null;
+		}
+
+		try {
+			final SnapshotIndex index = getSnapshotIndex(snapshot);
+			final CSVFormat csv = Util.createCsvFormat(configuration);
+			ConnectorObject object = null;
+
+			for (int ordinal : index.find(NAME_KEY, username)) {
+				ConnectorObject obj = createConnectorObject(index.readRecord(ordinal, csv));
+
+				Name name = obj.getName();
+				if (name != null && username.equalsIgnoreCase(AttributeUtil.getStringValue(name))) {
+					object = obj;
+					break;
+				}
+			}
+
+			if (object == null) {
+				String message = authenticate ? "Invalid username and/or password" : "Invalid username";
+				throw new InvalidCredentialException(message);
+			}
+
+			if (authenticate) {
+				authenticate(username, password, object);
+			}
+
+			Uid uid = object.getUid();
+			if (uid == null) {
+				throw new UnknownUidException("Unique attribute doesn't have value for account '" + username + "'");
+			}
+
+			return uid;
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during authentication"); //TODO handle AWS Exception
+		} finally {
+			snapshot.release();
+		}
+
+		return null;
+	}
+
+	private void authenticate(String username, GuardedString password, ConnectorObject foundObject) {
+		final GuardedString objPassword = AttributeUtil.getPasswordValue(foundObject.getAttributes());
+		if (objPassword == null) {
+			throw new InvalidPasswordException("Password not defined for username '" + username + "'");
+		}
+
+		// we don't want to authenticate against empty password
+		StringAccessor acc = new StringAccessor();
+		objPassword.access(acc);
+		if (StringUtil.isEmpty(acc.getValue())) {
+			throw new InvalidPasswordException("Password not defined for username '" + username + "'");
+		}
+
+		if (!objPassword.equals(password)) {
+			throw new InvalidPasswordException("Invalid username and/or password");
+		}
+	}
+
+	private void handleJustNewToken(SyncToken token, SyncResultsHandler handler) {
+		if (!(handler instanceof SyncTokenResultsHandler)) {
+			return;
+		}
+
+		final SyncTokenResultsHandler tokenHandler = (SyncTokenResultsHandler) handler;
+		tokenHandler.handleResult(token);
+	}
+
+	@Override
+	public void sync(ObjectClass oc, SyncToken token, SyncResultsHandler handler, OperationOptions oo) {
+		ObjectSnapshot oldSnapshot = null;
+		ObjectSnapshot snapshot = null;
+		try {
+			// token remembers version of the records it was created for, polls without changes end with one HEAD
+			final String tokenVersion = getSyncTokenVersion(token);
+			if (tokenVersion != null && tokenVersion.equals(getObjectVersion())) {
+				LOG.ok("Object {0} didn't change since sync token {1}", configuration.getFileName(), token.getValue());
+				handleJustNewToken(token, handler);
+				return;
+			}
+
+			final List<String> names = listSyncSnapshots();
+			final long oldTimestamp = getTokenValue(token);
+			final String oldName = oldTimestamp >= 0 ? getSyncSnapshotName(oldTimestamp) : null;
+			if (!names.contains(oldName)) {
+				LOG.error("Couldn't find snapshot for sync token {0} to create diff, finishing synchronization.",
+						token != null ? token.getValue() : null);
+				return;
+			}
+
+			oldSnapshot = acquireSyncSnapshot(oldName);
+			snapshot = getObjectSnapshot();
+
+			LOG.ok("Comparing snapshot {0} (size: {1}) with current {2} (size: {3})",
+					oldName, oldSnapshot.getSize(), snapshot.getVersion(), snapshot.getSize());
+
+			// new snapshot is stored only once the first change is found, deltas already carry its token
+			final long newTimestamp = nextSyncTimestamp(names);
+			final SyncToken newSyncToken = createSyncToken(newTimestamp, snapshot.getVersion());
+			final ObjectSnapshot current = snapshot;
+			final boolean[] stored = {false};
+			final SyncResultsHandler storingHandler = delta -> {
+				if (!stored[0]) {
+					try {
+						storeSyncSnapshot(current, newTimestamp);
+					} catch (Exception ex) {
+						handleGenericException(ex, "Couldn't store sync snapshot");
+					}
+					stored[0] = true;
+				}
+				return handler.handle(delta);
+			};
+
+			final long sortThreshold = configuration.getSyncSortThreshold() * 1024L * 1024L;
+			final int changesCount = oldSnapshot.getSize() >= sortThreshold
+					? syncSorted(oldSnapshot.getFile(), snapshot, newSyncToken, storingHandler)
+					: syncInMemory(oldSnapshot.getFile(), snapshot, newSyncToken, storingHandler);
+
+			if (changesCount == 0) {
+				// nothing changed, the old snapshot is still the latest one, only the version is newer
+				handleJustNewToken(createSyncToken(oldTimestamp, snapshot.getVersion()), handler);
+				return;
+			}
+
+			deleteExpiredSyncSnapshots(names);
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during synchronization");
+		} finally {
+			if (oldSnapshot != null) {
+				oldSnapshot.release();
+			}
+			if (snapshot != null) {
+				snapshot.release();
+			}
+		}
+	}
+
+	/**
+	 * Diff which keeps uid and hash of every old record in memory, current records are compared while they are read.
+	 * If only changed attributes are synchronized, updates are handled after all current records are read, once
+	 * the old versions of the updated records are read from the old snapshot.
+	 */
+	private int syncInMemory(File oldCsv, ObjectSnapshot snapshot, SyncToken newSyncToken, SyncResultsHandler handler)
+			throws IOException {
+		final SyncHashIndex oldData = loadOldSyncFile(oldCsv);
+		final BitSet oldUsedOids = new BitSet(oldData.size());
+		final BitSet updated = configuration.isSyncChangedAttributesOnly() ? new BitSet(oldData.size()) : null;
+		final Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
 
-			Set<String> oldUsedOids = new HashSet<>();
+		CSVFormat csv = Util.createCsvFormatReader(configuration);
 
-			CSVFormat csv = Util.createCsvFormatReader(configuration);
+		int changesCount = 0;
 
+		boolean shouldContinue = true;
+		try (Reader reader = snapshot.openReader(configuration.getEncoding())) {
 			CSVParser parser = csv.parse(reader);
 			Iterator<CSVRecord> iterator = parser.iterator();
 
-			int changesCount = 0;
-
-			boolean shouldContinue = true;
 			while (iterator.hasNext()) {
 				CSVRecord record = iterator.next();
 				if (skipRecord(record)) {
@@ -634,10 +1206,10 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 				String uid = record.get(uidIndex);
 				if (StringUtil.isEmpty(uid)) {
 					throw new ConnectorException("Unique attribute not defined for record number "
-							+ record.getRecordNumber() + " in " + newCsv.getName());
+							+ record.getRecordNumber() + " in " + configuration.getFileName());
 				}
 
-				SyncDelta delta = doSyncCreateOrUpdate(record, uid, oldData, oldUsedOids, newSyncToken);
+				SyncDelta delta = doSyncCreateOrUpdate(record, uid, oldData, oldUsedOids, updated, newSyncToken);
 				if (delta == null) {
 					continue;
 				}
@@ -648,37 +1220,81 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 					break;
 				}
 			}
+		}
 
-			if (shouldContinue) {
-				changesCount += doSyncDeleted(oldData, oldUsedOids, newSyncToken, handler);
-			}
+		if (shouldContinue && updated != null && !updated.isEmpty()) {
+			final Map<String, CSVRecord> oldRecords = loadOldSyncRecords(oldCsv, oldData, updated);
+			try (Reader reader = snapshot.openReader(configuration.getEncoding())) {
+				CSVParser parser = csv.parse(reader);
+				Iterator<CSVRecord> iterator = parser.iterator();
 
-			if (changesCount == 0) {
-				handleJustNewToken(new SyncToken(newSyncToken), handler);
+				while (iterator.hasNext()) {
+					CSVRecord record = iterator.next();
+					CSVRecord oldRecord = skipRecord(record) ? null : oldRecords.get(record.get(uidIndex));
+					if (oldRecord == null) {
+						continue;
+					}
+
+					SyncDelta delta = buildSyncUpdateDelta(newSyncToken, oldRecord, record);
+					LOG.ok("Created delta {0}", delta);
+
+					changesCount++;
+					shouldContinue = handler.handle(delta);
+					if (!shouldContinue) {
+						break;
+					}
+				}
 			}
-		} catch (Exception ex) {
-			handleGenericException(ex, "Error during synchronization");
-		} finally {
-			cleanupOldSyncFiles();
 		}
+
+		if (shouldContinue) {
+			changesCount += doSyncDeleted(oldCsv, oldData, oldUsedOids, newSyncToken, handler);
+		}
+
+		return changesCount;
 	}
 
-	private Map<String, CSVRecord> loadOldSyncFile(File oldCsv) {
+	/**
+	 * Diff of both versions sorted on local disk, memory used doesn't depend on the size of the object.
+	 */
+	private int syncSorted(File oldCsv, ObjectSnapshot snapshot, SyncToken newSyncToken, SyncResultsHandler handler)
+			throws IOException {
+		checkSyncFileHeader(oldCsv);
+
+		final SortedSyncDiff diff = new SortedSyncDiff(Util.createCsvFormatReader(configuration),
+				header.get(configuration.getUniqueAttribute()).getIndex(), this::skipRecord,
+				SortedSyncDiff.DEFAULT_RUN_SIZE);
+
+		return diff.diff(oldCsv, snapshot.getFile(), configuration.getEncoding(), (type, record, oldRecord) -> {
+			SyncDelta delta = oldRecord != null && configuration.isSyncChangedAttributesOnly()
+					? buildSyncUpdateDelta(newSyncToken, oldRecord, record)
+					: buildSyncDelta(type, newSyncToken, record);
+			LOG.ok("Created delta {0}", delta);
+
+			return handler.handle(delta);
+		});
+	}
+
+	private void checkSyncFileHeader(File oldCsv) {
 		Map<String, Column> header = initHeader(oldCsv);
 		if (!this.header.equals(header)) {
 			throw new ConnectorException("Headers of sync file '" + oldCsv + "' and current csv don't match");
 		}
+	}
+
+	/**
+	 * Only uid and hash of every old record is kept in memory, old records are read again only if they were deleted.
+	 */
+	private SyncHashIndex loadOldSyncFile(File oldCsv) {
+		checkSyncFileHeader(oldCsv);
 
 		Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
 
-		Map<String, CSVRecord> oldData = new HashMap<>();
+		SyncHashIndex.Builder oldData = new SyncHashIndex.Builder();
 
-		CSVFormat csv = Util.createCsvFormatReader(configuration);
-		try (Reader reader = Util.createReader(oldCsv, configuration)) {
-			CSVParser parser = csv.parse(reader);
-			Iterator<CSVRecord> iterator = parser.iterator();
-			while (iterator.hasNext()) {
-				CSVRecord record = iterator.next();
+		try (CsvRowReader reader = createRowReader(Util.createReader(oldCsv, configuration))) {
+			CsvRow record;
+			while ((record = reader.next()) != null) {
 				if (skipRecord(record)) {
 					continue;
 				}
@@ -689,50 +1305,40 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 							+ record.getRecordNumber() + " in " + oldCsv.getName());
 				}
 
-				if (oldData.containsKey(uid)) {
-					throw new ConnectorException("Unique attribute value '" + uid + "' is not unique in "
-							+ oldCsv.getName());
-				}
-
-				oldData.put(uid, record);
+				oldData.add(uid, SyncHashIndex.hash(record));
 			}
 		} catch (Exception ex) {
 			handleGenericException(ex, "Error during query execution");
 		}
 
-		return oldData;
+		return oldData.build(oldCsv.getName());
 	}
 
-	private void cleanupOldSyncFiles() {
-		for (final String file : syncFiles.values()) {
-			try {
-				LOG.info("Deleting file {0}.", file);
-				Files.deleteIfExists(Paths.get(file));
-			} catch (IOException e) {
-				//swallow
-			}
-		}
-	}
-
-	private SyncDelta doSyncCreateOrUpdate(CSVRecord newRecord, String newRecordUid, Map<String, CSVRecord> oldData,
-										   Set<String> oldUsedOids, SyncToken newSyncToken) {
+	/**
+	 * @param deferredUpdates if not null, updated records are only marked there and no delta is created for them
+	 */
+	private SyncDelta doSyncCreateOrUpdate(CSVRecord newRecord, String newRecordUid, SyncHashIndex oldData,
+										   BitSet oldUsedOids, BitSet deferredUpdates, SyncToken newSyncToken) {
 		SyncDelta delta;
 
-		CSVRecord oldRecord = oldData.get(newRecordUid);
-		if (oldRecord == null) {
+		int oldRecord = oldData.find(newRecordUid);
+		if (oldRecord < 0) {
 			// newRecord is new account
 			delta = buildSyncDelta(SyncDeltaType.CREATE, newSyncToken, newRecord);
 		} else {
-			oldUsedOids.add(newRecordUid);
+			oldUsedOids.set(oldRecord);
 
 			// this will be an update if records aren't equal
-			List old = Util.copyOf(oldRecord.iterator());
-			List _new = Util.copyOf(newRecord.iterator());
-			if (old.equals(_new)) {
+			if (oldData.getHash(oldRecord) == SyncHashIndex.hash(newRecord)) {
 				// record are equal, no update
 				return null;
 			}
 
+			if (deferredUpdates != null) {
+				deferredUpdates.set(oldRecord);
+				return null;
+			}
+
 			delta = buildSyncDelta(SyncDeltaType.UPDATE, newSyncToken, newRecord);
 		}
 
@@ -741,26 +1347,72 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		return delta;
 	}
 
-	private int doSyncDeleted(Map<String, CSVRecord> oldData, Set<String> oldUsedOids, SyncToken newSyncToken,
+	/**
+	 * Old versions of the records, by uid.
+	 */
+	private Map<String, CSVRecord> loadOldSyncRecords(File oldCsv, SyncHashIndex oldData, BitSet ordinals) {
+		Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
+
+		Map<String, CSVRecord> records = new HashMap<>();
+
+		CSVFormat csv = Util.createCsvFormatReader(configuration);
+		try (Reader reader = Util.createReader(oldCsv, configuration)) {
+			CSVParser parser = csv.parse(reader);
+			Iterator<CSVRecord> iterator = parser.iterator();
+			while (iterator.hasNext()) {
+				CSVRecord record = iterator.next();
+				if (skipRecord(record)) {
+					continue;
+				}
+
+				String uid = record.get(uidIndex);
+				if (ordinals.get(oldData.find(uid))) {
+					records.put(uid, record);
+				}
+			}
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during synchronization");
+		}
+
+		return records;
+	}
+
+	/**
+	 * Old records which weren't found in the current object are read from the old snapshot again,
+	 * only if there are any.
+	 */
+	private int doSyncDeleted(File oldCsv, SyncHashIndex oldData, BitSet oldUsedOids, SyncToken newSyncToken,
 							  SyncResultsHandler handler) {
 
 		int changesCount = 0;
+		if (oldUsedOids.cardinality() == oldData.size()) {
+			return changesCount;
+		}
 
-		for (String oldUid : oldData.keySet()) {
-			if (oldUsedOids.contains(oldUid)) {
-				continue;
-			}
+		Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
 
-			// deleted record
-			CSVRecord deleted = oldData.get(oldUid);
-			SyncDelta delta = buildSyncDelta(SyncDeltaType.DELETE, newSyncToken, deleted);
+		CSVFormat csv = Util.createCsvFormatReader(configuration);
+		try (Reader reader = Util.createReader(oldCsv, configuration)) {
+			CSVParser parser = csv.parse(reader);
+			Iterator<CSVRecord> iterator = parser.iterator();
+			while (iterator.hasNext()) {
+				CSVRecord record = iterator.next();
+				if (skipRecord(record) || oldUsedOids.get(oldData.find(record.get(uidIndex)))) {
+					continue;
+				}
 
-			LOG.ok("Created delta {0}", delta);
-			changesCount++;
+				// deleted record
+				SyncDelta delta = buildSyncDelta(SyncDeltaType.DELETE, newSyncToken, record);
 
-			if (!handler.handle(delta)) {
-				break;
+				LOG.ok("Created delta {0}", delta);
+				changesCount++;
+
+				if (!handler.handle(delta)) {
+					break;
+				}
 			}
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during synchronization");
 		}
 
 		return changesCount;
@@ -778,42 +1430,267 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		return builder.build();
 	}
 
+	/**
+	 * Update delta with only the attributes which changed between the records, uid and name are always there.
+	 * Attributes which were emptied are present without values.
+	 */
+	private SyncDelta buildSyncUpdateDelta(SyncToken token, CSVRecord oldRecord, CSVRecord record) {
+		final Set<String> changed = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < rowMapping.size(); i++) {
+			final RowMapping.Role role = rowMapping.getRole(i);
+			if (role != RowMapping.Role.ATTRIBUTE && role != RowMapping.Role.PASSWORD) {
+				continue;
+			}
+
+			final String oldValue = i < oldRecord.size() ? oldRecord.get(i) : null;
+			final String value = i < record.size() ? record.get(i) : null;
+			if (StringUtil.isEmpty(oldValue) ? StringUtil.isEmpty(value) : oldValue.equals(value)) {
+				continue;
+			}
+
+			changed.add(role == RowMapping.Role.PASSWORD ? OperationalAttributes.PASSWORD_NAME : rowMapping.getName(i));
+		}
+
+		final ConnectorObject object = createConnectorObject(record, rowMapping.project(changed));
+
+		final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.add(object);
+		for (String name : changed) {
+			if (object.getAttributeByName(name) == null) {
+				builder.addAttribute(AttributeBuilder.build(name, Collections.emptyList()));
+			}
+		}
+
+		SyncDeltaBuilder delta = new SyncDeltaBuilder();
+		delta.setDeltaType(SyncDeltaType.UPDATE);
+		delta.setObjectClass(ObjectClass.ACCOUNT);
+		delta.setToken(token);
+		delta.setObject(builder.build());
+
+		return delta.build();
+	}
+
+	/**
+	 * Token is timestamp of the sync snapshot, optionally followed by '.' and encoded version of the records
+	 * the token was created for.
+	 */
+	private SyncToken createSyncToken(long timestamp, String version) {
+		final String value = String.format("%013d", timestamp);
+		if (version == null) {
+			return new SyncToken(value);
+		}
+
+		return new SyncToken(value + SYNC_TOKEN_VERSION_SEPARATOR
+				+ Base64.getUrlEncoder().withoutPadding().encodeToString(version.getBytes(StandardCharsets.UTF_8)));
+	}
+
 	private long getTokenValue(SyncToken token) {
 		if (token == null || token.getValue() == null) {
 			return -1;
 		}
 		String object = token.getValue().toString();
-		if (!object.matches("[0-9]{13}")) {
+		if (!object.matches("[0-9]{13}(\\..*)?")) {
 			return -1;
 		}
 
-		return Long.parseLong(object);
+		return Long.parseLong(object.substring(0, 13));
+	}
+
+	/**
+	 * Version of the records the token was created for, null if the token doesn't have it.
+	 */
+	private String getSyncTokenVersion(SyncToken token) {
+		if (getTokenValue(token) < 0) {
+			return null;
+		}
+
+		final String value = token.getValue().toString();
+		final int separator = value.indexOf(SYNC_TOKEN_VERSION_SEPARATOR);
+		if (separator < 0) {
+			return null;
+		}
+
+		try {
+			return new String(Base64.getUrlDecoder().decode(value.substring(separator + 1)), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException ex) {
+			LOG.ok("Invalid version in sync token {0}", value);
+			return null;
+		}
+	}
+
+	/**
+	 * Current version of the records, the same one {@link #getObjectSnapshot()} would return, without reading them.
+	 */
+	private String getObjectVersion() throws Exception {
+		final String version = cloudStorageService.getFileVersion(configuration);
+		if (!configuration.isDeltaLog() || version == null) {
+			return version;
+		}
+
+		final DeltaLog log = createDeltaLog();
+		return log.getVersion(version, log.list());
+	}
+
+	/**
+	 * Sync snapshots of the object are stored under this prefix, named by their token.
+	 */
+	private String getSyncSnapshotFolder() {
+		if (StringUtil.isNotBlank(configuration.getSyncSnapshotPrefix())) {
+			return configuration.getSyncSnapshotPrefix();
+		}
+		return configuration.getFileName() + SYNC_SNAPSHOT_SUFFIX;
 	}
 
-	//TODO Refactor
-	private Pair<String, File> createNewSyncFile() {
+	/**
+	 * Names of all stored sync snapshots, oldest first.
+	 */
+	private List<String> listSyncSnapshots() throws Exception {
+		final String folder = getSyncSnapshotFolder();
+
+		final List<String> names = new ArrayList<>();
+		for (String name : cloudStorageService.listFolder(configuration, folder)) {
+			if (name.substring(folder.length()).matches("[0-9]{13}")) {
+				names.add(name);
+			}
+		}
+
+		return names;
+	}
+
+	private String getSyncSnapshotName(long timestamp) {
+		return getSyncSnapshotFolder() + String.format("%013d", timestamp);
+	}
+
+	/**
+	 * Timestamp for a new sync snapshot, it has to be sorted after all stored ones.
+	 */
+	private long nextSyncTimestamp(List<String> names) {
+		long timestamp = System.currentTimeMillis();
+		if (!names.isEmpty()) {
+			timestamp = Math.max(timestamp, getSyncSnapshotTimestamp(names.get(names.size() - 1)) + 1);
+		}
+
+		return timestamp;
+	}
+
+	private long getSyncSnapshotTimestamp(String name) {
+		return Long.parseLong(name.substring(getSyncSnapshotFolder().length()));
+	}
+
+	/**
+	 * Retained local copy of the stored sync snapshot, caller has to release it. Sync snapshots never change,
+	 * so the last one used is kept in the cache and downloaded only if the token differs.
+	 */
+	private ObjectSnapshot acquireSyncSnapshot(String name) throws Exception {
+		return ObjectSnapshotCache.getInstance().acquire(getSyncSnapshotCacheKey(), name,
+				file -> cloudStorageService.getFileAsAFile(configuration, name, file));
+	}
+
+	/**
+	 * Stores the snapshot in the bucket under the token. It's copied within the bucket if it's still the current
+	 * version of the object, otherwise (or if it has the delta log applied) the local file is uploaded.
+	 */
+	private void storeSyncSnapshot(ObjectSnapshot snapshot, long timestamp) throws Exception {
+		final String name = getSyncSnapshotName(timestamp);
+		LOG.info("Storing sync snapshot {0} of version {1}", name, snapshot.getVersion());
+
+		boolean copied = false;
+		if (!configuration.isDeltaLog()) {
+			try {
+				cloudStorageService.copyFile(configuration, snapshot.getVersion(), name);
+				copied = true;
+			} catch (ObjectVersionConflictException ex) {
+				LOG.ok("Object changed since snapshot {0} was taken, uploading it", snapshot.getVersion());
+			}
+		}
+		if (!copied) {
+			cloudStorageService.uploadFile(configuration, name, snapshot.getFile());
+		}
+
+		// next sync compares with this snapshot, there's no need to download it again
+		final File file = ObjectSnapshotCache.getInstance().createSnapshotFile();
 		try {
-			long timestamp = System.currentTimeMillis();
-			LOG.info("Creating new sync file {0}", timestamp);
-			final File syncFile = File.createTempFile(configuration.getFileName(), ".sync." + timestamp);
-			LOG.ok("New sync file created, name {0}, size {1}", syncFile.getName(), syncFile.length());
+			Files.copy(snapshot.getFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			Files.deleteIfExists(file.toPath());
+			throw ex;
+		}
+		ObjectSnapshotCache.getInstance().install(getSyncSnapshotCacheKey(), name, file);
+	}
+
+	/**
+	 * Snapshots are shared by all syncs of the object, their tokens may point to any of them. Snapshot is deleted
+	 * only if it isn't among the newest ones kept by count and it's older than the retention window, the snapshot
+	 * stored just now counts as the newest one.
+	 *
+	 * @param names snapshots listed before the new one was stored, oldest first
+	 */
+	private void deleteExpiredSyncSnapshots(List<String> names) {
+		final int kept = configuration.getSyncSnapshotRetentionCount() - 1;
+		final long expired = System.currentTimeMillis()
+				- TimeUnit.HOURS.toMillis(configuration.getSyncSnapshotRetentionHours());
+
+		final List<String> toDelete = new ArrayList<>();
+		for (String name : names.subList(0, Math.max(0, names.size() - kept))) {
+			if (getSyncSnapshotTimestamp(name) < expired) {
+				toDelete.add(name);
+			}
+		}
 
-			final String token = Long.toString(timestamp);
-			syncFiles.put(token, syncFile.getCanonicalPath());
-			return Pair.of(token, syncFile);
+		if (toDelete.isEmpty()) {
+			return;
+		}
 
+		try {
+			LOG.info("Deleting expired sync snapshots {0}", toDelete);
+			cloudStorageService.deleteFiles(configuration, toDelete);
 		} catch (Exception ex) {
-			handleGenericException(ex, "Error occurred while creating new sync file ");
+			LOG.warn(ex, "Couldn't delete expired sync snapshots {0}", toDelete);
 		}
-		return null;
 	}
 
+	private String getSyncSnapshotCacheKey() {
+		return cloudStorageService.getObjectKey(configuration) + SYNC_SNAPSHOT_SUFFIX;
+	}
+
+	/**
+	 * Token of the latest stored sync snapshot if the records didn't change since it was stored,
+	 * otherwise a new snapshot is stored.
+	 */
 	@Override
 	public SyncToken getLatestSyncToken(ObjectClass oc) {
 		LOG.info("Creating token, synchronizing from \"now\".");
-		final String token = createNewSyncFile().getKey();
+		ObjectSnapshot snapshot = null;
+		try {
+			snapshot = getObjectSnapshot();
 
-		return new SyncToken(token);
+			final List<String> names = listSyncSnapshots();
+			if (!names.isEmpty()) {
+				final String latest = names.get(names.size() - 1);
+				final ObjectSnapshot stored = acquireSyncSnapshot(latest);
+				try {
+					if (FileUtils.contentEquals(stored.getFile(), snapshot.getFile())) {
+						LOG.ok("Records didn't change since sync snapshot {0}", latest);
+						return createSyncToken(getSyncSnapshotTimestamp(latest), snapshot.getVersion());
+					}
+				} finally {
+					stored.release();
+				}
+			}
+
+			final long timestamp = nextSyncTimestamp(names);
+			storeSyncSnapshot(snapshot, timestamp);
+			deleteExpiredSyncSnapshots(names);
+
+			return createSyncToken(timestamp, snapshot.getVersion());
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error occurred while creating sync token");
+		} finally {
+			if (snapshot != null) {
+				snapshot.release();
+			}
+		}
+		return null;
 	}
 
 	@Override
@@ -850,6 +1727,10 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 	}
 
 	private boolean isRecordEmpty(CSVRecord record) {
+		return isRecordEmpty(CsvRow.of(record));
+	}
+
+	private boolean isRecordEmpty(CsvRow record) {
 		if (!configuration.isIgnoreEmptyLines()) {
 			return false;
 		}
@@ -864,58 +1745,55 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		return true;
 	}
 
-	private Map<Integer, String> reverseHeaderMap() {
-		Map<Integer, String> reversed = new HashMap<>();
-		this.header.forEach((key, value) -> {
-
-			reversed.put(value.getIndex(), key);
-		});
+	private int getLastIndexOfHeader() {
+		return this.header.values().stream().mapToInt(Column::getIndex).filter(column -> column >= 0).max().orElse(0);
+	}
 
-		return reversed;
+	ConnectorObject createConnectorObject(CSVRecord record) {
+		return createConnectorObject(record, rowMapping);
 	}
 
-	private int getLastIndexOfHeader() {
-		return this.header.values().stream().mapToInt(Column::getIndex).filter(column -> column >= 0).max().orElse(0);
+	private ConnectorObject createConnectorObject(CSVRecord record, RowMapping mapping) {
+		return createConnectorObject(CsvRow.of(record), mapping);
 	}
 
-	private ConnectorObject createConnectorObject(CSVRecord record) {
+	private ConnectorObject createConnectorObject(CsvRow record, RowMapping mapping) {
 		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
 
-		Map<Integer, String> header = reverseHeaderMap();
-
-		if (configuration.isReadOnly() && header.size() != record.size()) {
-			throw new ConnectorException("Number of columns in header (" + header.size()
+		if (configuration.isReadOnly() && mapping.size() != record.size()) {
+			throw new ConnectorException("Number of columns in header (" + mapping.size()
 					+ ") doesn't match number of columns for record (" + record.size()
 					+ "). File row number: " + record.getRecordNumber());
 		}
 
 		for (int i = 0; i < record.size(); i++) {
-			String name = header.get(i);
-			String value = record.get(i);
-
-			if (StringUtil.isEmpty(value)) {
+			RowMapping.Role role = mapping.getRole(i);
+			if (role == null) {
 				continue;
 			}
 
-			if (name.equalsIgnoreCase(configuration.getUniqueAttribute())) {
-				builder.setUid(value);
-
-				if (!isUniqueAndNameAttributeEqual()) {
-					continue;
-				}
-			}
-
-			if (name.equalsIgnoreCase(configuration.getNameAttribute())) {
-				builder.setName(new Name(value));
+			String value = record.get(i);
+			if (StringUtil.isEmpty(value)) {
 				continue;
 			}
 
-			if (name.equalsIgnoreCase(configuration.getPasswordAttribute())) {
-				builder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString(value.toCharArray()));
-				continue;
+			switch (role) {
+				case UID:
+					builder.setUid(value);
+					break;
+				case UID_AND_NAME:
+					builder.setUid(value);
+					builder.setName(new Name(value));
+					break;
+				case NAME:
+					builder.setName(new Name(value));
+					break;
+				case PASSWORD:
+					builder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString(value.toCharArray()));
+					break;
+				default:
+					builder.addAttribute(mapping.getName(i), createAttributeValues(value));
 			}
-
-			builder.addAttribute(name, createAttributeValues(value));
 		}
 
 		return builder.build();
@@ -929,22 +1807,7 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 	}
 
 	private List<String> createAttributeValues(String attributeValue) {
-		List<String> values = new ArrayList<>();
-
-		if (StringUtil.isEmpty(configuration.getMultivalueDelimiter())) {
-			values.add(attributeValue);
-		} else {
-			String[] array = attributeValue.split(configuration.getMultivalueDelimiter());
-			for (String item : array) {
-				if (StringUtil.isEmpty(item)) {
-					continue;
-				}
-
-				values.add(item);
-			}
-		}
-
-		return values;
+		return multivalueCodec.split(attributeValue);
 	}
 
 	private Uid update(Operation operation, Uid uid, Set<Attribute> attributes) {
@@ -956,68 +1819,340 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 			return uid;
 		}
 
-		final Map<Integer, String> header = reverseHeaderMap();
-		attributes = normalize(attributes);
+		final Set<Attribute> normalized = normalize(attributes);
 
-		Reader reader = null;
-		Writer writer = null;
 		try {
-			synchronized (CloudCsvObjectStorageConnector.SYNCH_FILE_LOCK) {
-				reader = cloudStorageService.getFileAsReader(configuration);
-				writer = new StringBuilderWriter();
+			return submitWrite(new UpdateWrite(operation, uid, normalized));
+		} catch (Exception ex) {
+			handleGenericException(ex, "Error during account '" + uid + "' " + operation.name());
+		}
+		return uid;
+	}
 
-				boolean found = false;
+	/**
+	 * Writes are queued, writes which come while the object is being rewritten are written together
+	 * in the next rewrite.
+	 */
+	private Uid submitWrite(RecordWrite write) throws Exception {
+		final String objectKey = cloudStorageService.getObjectKey(configuration);
+		// writes of processors with different format or identifiers can't share one pass over the object
+		final String group = objectKey + "|" + Util.createCsvFormat(configuration) + "|" + configuration.getEncoding()
+				+ "|" + configuration.isHeaderExists() + "|" + configuration.getUniqueAttribute();
+
+		return ObjectWriteQueue.getInstance().submit(objectKey, group, write, this::writeBatch);
+	}
 
-				CSVFormat csv = Util.createCsvFormat(configuration);
-				CSVParser parser = csv.parse(reader);
+	private void writeBatch(List<PendingWrite<?>> batch) throws Exception {
+		final List<RecordWrite> writes = new ArrayList<>();
+		batch.forEach(write -> writes.add((RecordWrite) write));
 
-				csv = Util.createCsvFormat(configuration);
-				CSVPrinter printer = csv.print(writer);
+		// the object itself is created by the rewrite, even with the delta log
+		if (configuration.isDeltaLog() && cloudStorageService.checkFileExistsAndCanRead(configuration)) {
+			appendToDeltaLog(writes);
+			writes.forEach(RecordWrite::commit);
+			return;
+		}
 
-				for (CSVRecord record : parser) {
-					Map<String, String> data = new HashMap<>();
-					for (int i = 0; i < record.size(); i++) {
-						data.put(header.get(i), record.get(i));
-					}
+		rewriteObject((snapshot, output) -> {
+			writes.forEach(RecordWrite::reset);
 
-					String recordUidValue = data.get(configuration.getUniqueAttribute());
-					if (StringUtil.isEmpty(recordUidValue)) {
-						continue;
-					}
+			final Writer writer = Util.createWriter(output, configuration);
+			final CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
 
-					if (!uidMatches(uid.getUidValue(), recordUidValue, configuration.isIgnoreIdentifierCase())) {
-						printer.printRecord(record);
-						continue;
-					}
+			boolean lineBreak = true;
+			if (snapshot != null) {
+				lineBreak = rewriteRecords(snapshot, output, printer, writes);
+			} else if (configuration.isHeaderExists()) {
+				final Set<Attribute> csvHead = new HashSet<>();
+				header.keySet().forEach(key -> csvHead.add(AttributeBuilder.build(key, key)));
+				printer.printRecord(createNewRecord(csvHead));
+			}
 
-					found = true;
+			final List<List<?>> added = finishWrites(writes);
+			if (!lineBreak && !added.isEmpty()) {
+				// records added after the last one mustn't end up on its line
+				printer.println();
+			}
+			for (List<?> record : added) {
+				printer.printRecord(record);
+			}
+			writer.flush();
+
+			return writes.stream().anyMatch(RecordWrite::isSuccessful);
+		});
+
+		writes.forEach(RecordWrite::commit);
+	}
+
+	/**
+	 * Passes only the records with uids of the writes through the writes, records are found through the uid index.
+	 * Changed records are appended to the delta log as one delta object, the CSV object isn't touched until
+	 * the log reaches the compaction threshold. If another writer appended to the log in the meantime, the writes
+	 * are processed again with its entries applied.
+	 */
+	private void appendToDeltaLog(List<RecordWrite> writes) throws Exception {
+		final DeltaLog log = createDeltaLog();
+		final int uidIndex = getColumnIndex(configuration.getUniqueAttribute());
 
-					if (!Operation.DELETE.equals(operation)) {
-						List<Object> updated = updateObject(operation, data, attributes);
+		for (int attempt = 1; ; attempt++) {
+			writes.forEach(RecordWrite::reset);
 
-						int uidIndex = this.header.get(configuration.getUniqueAttribute()).getIndex();
-						Object newUidValue = updated.get(uidIndex);
-						uid = new Uid(newUidValue.toString());
+			final List<List<String>> entries = new ArrayList<>();
+			final List<String> names;
 
-						printer.printRecord(updated);
+			final DeltaLog.View view = log.open();
+			try {
+				names = view.getNames();
+				final SnapshotIndex index = getSnapshotIndex(view.getSnapshot());
+				final CSVFormat csv = Util.createCsvFormat(configuration);
+				for (int ordinal : findWriteCandidates(index, writes)) {
+					final List<?> original = asList(index.readRecord(ordinal, csv));
+					final List<?> record = processRecord(writes, 0, original);
+					if (record != original) {
+						final String uid = original.get(uidIndex).toString();
+						final String newUid = record != null ? Objects.toString(record.get(uidIndex), null) : null;
+						if (!uid.equals(newUid)) {
+							entries.add(DeltaLog.delete(uid));
+						}
+						if (record != null) {
+							entries.add(DeltaLog.upsert(newUid, record));
+						}
 					}
 				}
+			} finally {
+				view.release();
+			}
+
+			for (List<?> record : finishWrites(writes)) {
+				entries.add(DeltaLog.upsert(Objects.toString(record.get(uidIndex), null), record));
+			}
 
-				writer.close();
-				reader.close();
+			if (entries.isEmpty()) {
+				return;
+			}
 
-				if (!found) {
-					throw new UnknownUidException("Account '" + uid + "' not found");
+			try {
+				log.append(names, entries);
+			} catch (ObjectVersionConflictException ex) {
+				if (attempt >= DELTA_LOG_APPEND_ATTEMPTS) {
+					throw new PreconditionFailedException(ex.getMessage(), ex);
 				}
+				LOG.ok("Conflicting append to delta log of {0}, attempt {1}: {2}", configuration.getFileName(),
+						attempt, ex.getMessage());
+				Thread.sleep(ThreadLocalRandom.current().nextInt(DELTA_LOG_BACKOFF * attempt));
+				continue;
+			}
 
-				cloudStorageService.uploadString(configuration, writer.toString());
+			if (names.size() + 1 >= configuration.getDeltaLogCompactionThreshold()) {
+				try {
+					compactDeltaLog(log);
+				} catch (Exception ex) {
+					// records are safe in the log, compaction is attempted again with the next write
+					LOG.warn(ex, "Couldn't compact delta log of {0}", configuration.getFileName());
+				}
 			}
-		} catch (Exception ex) {
-			handleGenericException(ex, "Error during account '" + uid + "' " + operation.name());
-		} finally {
-			Util.cleanupResources(writer, reader, null);
+			return;
+		}
+	}
+
+	/**
+	 * Folds all delta objects into the CSV object and removes them afterwards, except the newest one which keeps
+	 * the sequence of delta object names going. Readers which still see them together with the new CSV object
+	 * get the same records, applying them again doesn't change anything. The log is listed only once the CSV object
+	 * is read, so it contains all delta objects which aren't folded into that version yet.
+	 */
+	private void compactDeltaLog(DeltaLog log) throws Exception {
+		final List<String> names = new ArrayList<>();
+
+		rewriteObject((snapshot, output) -> {
+			if (snapshot == null) {
+				throw new ConnectorException("Object " + configuration.getFileName() + " doesn't exist anymore");
+			}
+
+			names.clear();
+			names.addAll(log.list());
+			final List<List<String>> entries = log.read(names);
+			LOG.ok("Compacting {0} delta objects into {1}", names.size(), configuration.getFileName());
+
+			try (Reader reader = snapshot.openReader(configuration.getEncoding())) {
+				final Writer writer = Util.createWriter(output, configuration);
+				log.merge(reader, entries, writer);
+				writer.flush();
+			}
+			return true;
+		});
+
+		if (names.size() > 1) {
+			log.remove(names.subList(0, names.size() - 1));
+		}
+	}
+
+	/**
+	 * Passes only the records with uids of the writes through the writes, records are found through the uid index.
+	 * Bytes of all other records are copied from the snapshot as they are, only the changed records are printed.
+	 *
+	 * @return true if the output ends with a line break, so records can be added right after it
+	 */
+	private boolean rewriteRecords(ObjectSnapshot snapshot, OutputStream output, CSVPrinter printer,
+								List<RecordWrite> writes) throws IOException {
+		final SnapshotIndex index = getSnapshotIndex(snapshot);
+		final CSVFormat csv = Util.createCsvFormat(configuration);
+		final WritableByteChannel target = Channels.newChannel(output);
+
+		try (FileChannel source = FileChannel.open(snapshot.getFile().toPath(), StandardOpenOption.READ)) {
+			long copied = 0;
+			for (int ordinal : findWriteCandidates(index, writes)) {
+				final SnapshotIndex.RawRecord raw = index.readRawRecord(ordinal, csv);
+				final List<?> original = asList(raw.getRecord());
+				final List<?> record = processRecord(writes, 0, original);
+				if (record == original) {
+					continue;
+				}
+
+				transfer(source, copied, raw.getStart(), target);
+				copied = raw.getEnd();
+
+				if (record != null) {
+					printer.printRecord(record);
+					// printed record has to be in the output before bytes which follow it are copied
+					printer.flush();
+				}
+			}
+
+			final long size = source.size();
+			transfer(source, copied, size, target);
+
+			return copied >= size || endsWithLineBreak(source);
+		}
+	}
+
+	private void transfer(FileChannel source, long from, long to, WritableByteChannel target) throws IOException {
+		while (from < to) {
+			final long count = source.transferTo(from, to - from, target);
+			if (count <= 0) {
+				throw new EOFException("Couldn't copy " + (to - from) + " bytes of " + configuration.getFileName());
+			}
+			from += count;
+		}
+	}
+
+	private boolean endsWithLineBreak(FileChannel source) throws IOException {
+		// few last bytes are enough to decode the last character in any encoding
+		final ByteBuffer tail = ByteBuffer.allocate((int) Math.min(8, source.size()));
+		source.read(tail, source.size() - tail.capacity());
+		tail.flip();
+
+		final String chars = Charset.forName(configuration.getEncoding()).decode(tail).toString();
+		return chars.isEmpty() || chars.endsWith("\n") || chars.endsWith("\r");
+	}
+
+	/**
+	 * Ordinals of records with uids of the writes in the order of the file, the only records writes can change.
+	 */
+	private SortedSet<Integer> findWriteCandidates(SnapshotIndex index, List<RecordWrite> writes) {
+		final SortedSet<Integer> candidates = new TreeSet<>();
+		for (RecordWrite write : writes) {
+			for (int ordinal : index.find(UID_KEY, write.uid.getUidValue())) {
+				candidates.add(ordinal);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return the same record if no write changed it, null if it was removed
+	 */
+	private List<?> processRecord(List<RecordWrite> writes, int from, List<?> record) {
+		for (int i = from; i < writes.size() && record != null; i++) {
+			record = writes.get(i).process(record);
+		}
+		return record;
+	}
+
+	/**
+	 * Finishes the writes after all records were processed, returns records they add to the end of the object.
+	 */
+	private List<List<?>> finishWrites(List<RecordWrite> writes) {
+		final List<List<?>> added = new ArrayList<>();
+		for (int i = 0; i < writes.size(); i++) {
+			for (List<?> record : writes.get(i).end()) {
+				// added records still have to pass through writes submitted later
+				record = processRecord(writes, i + 1, record);
+				if (record != null) {
+					added.add(record);
+				}
+			}
+		}
+		return added;
+	}
+
+	private List<String> asList(CSVRecord record) {
+		return new AbstractList<String>() {
+
+			@Override
+			public String get(int index) {
+				return record.get(index);
+			}
+
+			@Override
+			public int size() {
+				return record.size();
+			}
+		};
+	}
+
+	/**
+	 * Reads the CSV object and replaces it with content written by the rewriter, but only if nobody changed
+	 * the object in the meantime. On conflict the whole read-modify-write is repeated with the new version.
+	 * Writers in this JVM are serialized by the write lock of the object, other objects aren't blocked.
+	 * If the object doesn't exist, rewriter gets null snapshot and the object is created only if it still
+	 * doesn't exist.
+	 */
+	private void rewriteObject(Rewriter rewriter) throws Exception {
+		for (int attempt = 1; ; attempt++) {
+			ObjectSnapshot snapshot = null;
+			CloudObjectOutputStream output = null;
+			final Lock lock = ObjectLockRegistry.getInstance().getLock(cloudStorageService.getObjectKey(configuration)).writeLock();
+			lock.lock();
+			try {
+				String version = null;
+				if (cloudStorageService.checkFileExistsAndCanRead(configuration)) {
+					snapshot = cloudStorageService.getFileSnapshot(configuration);
+					version = snapshot.getVersion();
+				}
+
+				output = cloudStorageService.getFileAsOutputStream(configuration, version);
+
+				if (!rewriter.rewrite(snapshot, output)) {
+					abortQuietly(output);
+				}
+
+				// closing the stream finishes the upload
+				output.close();
+				return;
+			} catch (ObjectVersionConflictException ex) {
+				abortQuietly(output);
+				if (attempt >= WRITE_ATTEMPTS) {
+					throw new PreconditionFailedException(ex.getMessage(), ex);
+				}
+				LOG.ok("Conflicting write of {0}, attempt {1}: {2}", configuration.getFileName(), attempt, ex.getMessage());
+			} catch (Exception ex) {
+				abortQuietly(output);
+				throw ex;
+			} finally {
+				Util.closeQuietly(output);
+				if (snapshot != null) {
+					snapshot.release();
+				}
+				lock.unlock();
+			}
+		}
+	}
+
+	private void abortQuietly(CloudObjectOutputStream output) {
+		if (output != null) {
+			output.abort();
 		}
-		return uid;
 	}
 
 	private Set<Attribute> normalize(final Set<Attribute> attributes) {
@@ -1066,6 +2201,7 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 				} else {
 					header.put(attrName, new Column(attrName, index)); //attempt to add new field
 					index++;
+					rowMapping = new RowMapping(header, configuration);
 				}
 			}
 
@@ -1081,6 +2217,27 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		return configuration.getNameAttribute().equalsIgnoreCase(column);
 	}
 
+	/**
+	 * Column of the attribute, uid, name and password attributes are stored in the configured columns.
+	 */
+	private String getColumn(String attributeName) {
+		if (attributeName.equalsIgnoreCase(Uid.NAME)) {
+			return configuration.getUniqueAttribute();
+		} else if (attributeName.equalsIgnoreCase(Name.NAME)) {
+			return configuration.getNameAttribute();
+		} else if (attributeName.equalsIgnoreCase(OperationalAttributes.PASSWORD_NAME)) {
+			return configuration.getPasswordAttribute();
+		}
+		return attributeName;
+	}
+
+	/**
+	 * Uid, name and password columns are never split when read, so their values are written as they are.
+	 */
+	private MultivalueCodec getColumnCodec(String column) {
+		return isUid(column) || isName(column) || isPassword(column) ? MultivalueCodec.singleValue() : multivalueCodec;
+	}
+
 	private List<Object> updateObject(Operation operation, Map<String, String> data, Set<Attribute> attributes) {
 		Object[] result = new Object[header.size()];
 
@@ -1093,42 +2250,23 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 		switch (operation) {
 			case UPDATE:
 				for (Attribute attribute : attributes) {
-					Integer index;
+					String column = getColumn(attribute.getName());
+					Integer index = header.get(column).getIndex();
 
-					String name = attribute.getName();
-					if (name.equalsIgnoreCase(Uid.NAME)) {
-						index = header.get(configuration.getUniqueAttribute()).getIndex();
-					} else if (name.equalsIgnoreCase(Name.NAME)) {
-						index = header.get(configuration.getNameAttribute()).getIndex();
-					} else if (name.equalsIgnoreCase(OperationalAttributes.PASSWORD_NAME)) {
-						index = header.get(configuration.getPasswordAttribute()).getIndex();
-					} else {
-						index = header.get(name).getIndex();
-					}
-
-					String value = Util.createRawValue(attribute, configuration);
+					String value = Util.createRawValue(attribute.getValue(), getColumnCodec(column));
 					result[index] = value;
 				}
 				break;
 			case ADD_ATTR_VALUE:
 			case REMOVE_ATTR_VALUE:
 				for (Attribute attribute : attributes) {
-					Class type = String.class;
-					Integer index;
-
 					String name = attribute.getName();
-					if (name.equalsIgnoreCase(Uid.NAME)) {
-						index = header.get(configuration.getUniqueAttribute()).getIndex();
-					} else if (name.equalsIgnoreCase(Name.NAME)) {
-						index = header.get(configuration.getNameAttribute()).getIndex();
-					} else if (name.equalsIgnoreCase(OperationalAttributes.PASSWORD_NAME)) {
-						index = header.get(configuration.getPasswordAttribute()).getIndex();
-						type = GuardedString.class;
-					} else {
-						index = header.get(name).getIndex();
-					}
+					Class type = name.equalsIgnoreCase(OperationalAttributes.PASSWORD_NAME) ? GuardedString.class : String.class;
+					String column = getColumn(name);
+					Integer index = header.get(column).getIndex();
+					MultivalueCodec codec = getColumnCodec(column);
 
-					List<Object> current = Util.createAttributeValues((String) result[index], type, configuration);
+					List<Object> current = Util.createAttributeValues((String) result[index], type, codec);
 					List<Object> updated = Operation.ADD_ATTR_VALUE.equals(operation) ?
 							Util.addValues(current, attribute.getValue()) :
 							Util.removeValues(current, attribute.getValue());
@@ -1137,7 +2275,7 @@ public class CloudCsvProcessor implements CreateOp, DeleteOp, TestOp, SearchOp<S
 						throw new IllegalArgumentException("Unique attribute '" + name + "' must contain single value");
 					}
 
-					String value = Util.createRawValue(updated, configuration);
+					String value = Util.createRawValue(updated, codec);
 					result[index] = value;
 				}
 		}
@@ -0,0 +1,49 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream which replaces the CSV object in the Cloud Object Storage once it is closed.
+ *
+ * If {@link #abort()} is called before {@link #close()}, everything written so far is discarded
+ * and the stored object is left untouched.
+ */
+public abstract class CloudObjectOutputStream extends OutputStream {
+
+    private volatile boolean aborted = false;
+
+    private Precondition precondition;
+
+    public interface Precondition {
+
+        /**
+         * Throws exception if the stored object must not be replaced.
+         */
+        void check() throws IOException;
+    }
+
+    /**
+     * Marks this stream as failed, following writes are ignored and close won't store anything.
+     */
+    public void abort() {
+        this.aborted = true;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Sets condition checked right before the stored object is replaced, if it fails nothing is stored.
+     */
+    public void setPrecondition(Precondition precondition) {
+        this.precondition = precondition;
+    }
+
+    protected void checkPrecondition() throws IOException {
+        if (precondition != null) {
+            precondition.check();
+        }
+    }
+}
@@ -3,6 +3,9 @@ package com.evolveum.polygon.connector.cloud.objectstorage.csv;
 public enum CloudObjectProviders {
 
     S3,
+    S3ASYNC,
     BLOB,
-    GCS
+    GCS,
+    MEMORY,
+    FILESYSTEM
 }
@@ -1,8 +1,20 @@
 package com.evolveum.polygon.connector.cloud.objectstorage.csv;
 
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Normally this would be an interface or abstract class, but those aren't currently supported by:
@@ -20,6 +32,96 @@ public class CloudStorageService {
         //do nothing
     }
 
+    /**
+     * Opens a stream which replaces the CSV object once closed. Providers should override this to send
+     * the data while it's being written, this default keeps everything in memory and uses {@link #uploadString}.
+     */
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config) throws Exception {
+        return new CloudObjectOutputStream() {
+
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) {
+                if (!isAborted()) {
+                    buffer.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (!isAborted()) {
+                    buffer.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed || isAborted()) {
+                    return;
+                }
+                closed = true;
+
+                try {
+                    checkPrecondition();
+                    uploadString(config, buffer.toString(config.getEncoding()));
+                } catch (IOException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #getFileAsOutputStream(CloudCsvConfiguration)}, but the object is replaced only if it's still
+     * in the expected version, otherwise closing the stream fails with {@link ObjectVersionConflictException}.
+     * Null expected version means the object must not exist.
+     *
+     * This default compares {@link #getFileVersion} right before the object is replaced, it's a stand-in for stores
+     * without conditional writes and leaves a small window between the check and the write. Providers supporting
+     * conditional writes (If-Match) should override it and send the expected version with the write itself.
+     */
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config, final String expectedVersion)
+            throws Exception {
+        final CloudObjectOutputStream output = getFileAsOutputStream(config);
+        output.setPrecondition(createVersionCheck(config, expectedVersion));
+
+        return output;
+    }
+
+    /**
+     * Precondition comparing {@link #getFileVersion} with the expected version.
+     */
+    protected CloudObjectOutputStream.Precondition createVersionCheck(final CloudCsvConfiguration config,
+                                                                      final String expectedVersion) {
+        return () -> {
+            final String actualVersion;
+            try {
+                actualVersion = getFileVersion(config);
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException("Couldn't check version of " + config.getFileName() + ", reason: " + ex.getMessage(), ex);
+            }
+
+            if (!Objects.equals(expectedVersion, actualVersion)) {
+                throw new ObjectVersionConflictException(getObjectKey(config), expectedVersion, actualVersion);
+            }
+        };
+    }
+
+    /**
+     * Current version of the object, the same one {@link #getFileSnapshot} would return, or null if it doesn't exist.
+     */
+    public String getFileVersion(final CloudCsvConfiguration config) throws Exception {
+        final File file = new File(config.getFileName());
+        return file.exists() ? getLocalFileVersion(file) : null;
+    }
+
     public void getFileAsAFile(final CloudCsvConfiguration config, final File fileToCopyTo) throws Exception {
         //do nothing
     }
@@ -40,6 +142,150 @@ public class CloudStorageService {
         return Util.createReader(new File(config.getFileName()), config);
     }
 
+    /**
+     * Returns retained local snapshot of the current object version, caller has to release it.
+     * Default implementation uses the local file directly, its version is derived from modification time and size.
+     */
+    public ObjectSnapshot getFileSnapshot(final CloudCsvConfiguration config) throws Exception {
+        final File file = new File(config.getFileName());
+        return new ObjectSnapshot(getLocalFileVersion(file), file, false);
+    }
+
+    private String getLocalFileVersion(final File file) {
+        return file.lastModified() + "-" + file.length();
+    }
+
+    /**
+     * Asynchronous variant of {@link #getFileSnapshot}. Providers with non-blocking clients override it,
+     * this default loads the snapshot in the calling thread.
+     */
+    public CompletableFuture<ObjectSnapshot> getFileSnapshotAsync(final CloudCsvConfiguration config) {
+        final CompletableFuture<ObjectSnapshot> result = new CompletableFuture<>();
+        try {
+            result.complete(getFileSnapshot(config));
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Asynchronous variant of {@link #uploadFile}, this default uploads the file in the calling thread.
+     */
+    public CompletableFuture<Void> uploadFileAsync(final CloudCsvConfiguration config, final File file) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            uploadFile(config, file);
+            result.complete(null);
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Names of all objects in the folder (name ending with '/') of the CSV object bucket, sorted.
+     * This default lists local directory.
+     */
+    public List<String> listFolder(final CloudCsvConfiguration config, final String folder) throws Exception {
+        final File[] files = new File(folder).listFiles(File::isFile);
+        if (files == null) {
+            return Collections.emptyList();
+        }
+
+        final List<String> names = new ArrayList<>();
+        for (File file : files) {
+            names.add(folder + file.getName());
+        }
+        Collections.sort(names);
+
+        return names;
+    }
+
+    /**
+     * Whole content of a small object from the CSV object bucket, e.g. one listed by {@link #listFolder}.
+     */
+    public byte[] getFileContent(final CloudCsvConfiguration config, final String name) throws Exception {
+        return Files.readAllBytes(new File(name).toPath());
+    }
+
+    public void uploadFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        final File file = new File(name);
+        if (file.getParentFile() != null) {
+            Files.createDirectories(file.getParentFile().toPath());
+        }
+        Files.write(file.toPath(), content);
+    }
+
+    /**
+     * Same as {@link #uploadFileContent}, but the object is created only if it doesn't exist yet, otherwise it fails
+     * with {@link ObjectVersionConflictException}. Providers should override it with a conditional write
+     * (If-None-Match), this default creates a new local file.
+     */
+    public void createFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        final File file = new File(name);
+        if (file.getParentFile() != null) {
+            Files.createDirectories(file.getParentFile().toPath());
+        }
+        try {
+            Files.write(file.toPath(), content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException ex) {
+            throw new ObjectVersionConflictException(name, null, getLocalFileVersion(file));
+        }
+    }
+
+    public void deleteFiles(final CloudCsvConfiguration config, final Collection<String> names) throws Exception {
+        for (String name : names) {
+            Files.deleteIfExists(new File(name).toPath());
+        }
+    }
+
+    /**
+     * Downloads another object of the CSV object bucket into the file, the file is overwritten.
+     */
+    public void getFileAsAFile(final CloudCsvConfiguration config, final String name, final File fileToCopyTo)
+            throws Exception {
+        Files.copy(new File(name).toPath(), fileToCopyTo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Uploads the file as another object of the CSV object bucket.
+     */
+    public void uploadFile(final CloudCsvConfiguration config, final String name, final File file) throws Exception {
+        final File target = new File(name);
+        if (target.getParentFile() != null) {
+            Files.createDirectories(target.getParentFile().toPath());
+        }
+        Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copies the CSV object to another object of its bucket, only if it's still in the expected version, otherwise
+     * fails with {@link ObjectVersionConflictException}. Providers should override it to copy the object without
+     * downloading and uploading it again.
+     */
+    public void copyFile(final CloudCsvConfiguration config, final String expectedVersion, final String name)
+            throws Exception {
+        final String actualVersion = getFileVersion(config);
+        if (!Objects.equals(expectedVersion, actualVersion)) {
+            throw new ObjectVersionConflictException(getObjectKey(config), expectedVersion, actualVersion);
+        }
+        uploadFile(config, name, new File(config.getFileName()));
+    }
+
+    /**
+     * Key identifying the CSV object among all configured providers, buckets and files.
+     */
+    public String getObjectKey(final CloudCsvConfiguration config) {
+        return config.getCloudObjectStorageProvider() + ":"
+                + (config.getEndpoint() != null ? config.getEndpoint() + ":" : "")
+                + config.getBucketName() + "/" + config.getFileName();
+    }
+
     public void createBucketIfNotExists(CloudCsvConfiguration configuration) throws Exception {
         //do nothing
     }
@@ -1,24 +1,38 @@
 package com.evolveum.polygon.connector.cloud.objectstorage.csv;
 
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.FileSystemStorageService;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.s3.AwsS3AsyncStorageService;
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.s3.AwsS3StorageService;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import java.util.Arrays;
 
 public class CloudStorageServiceFactory {
 
     public static CloudStorageService getCloudServiceProvider(final CloudCsvConfiguration config) throws Exception {
-        final CloudObjectProviders provider = Arrays.stream(CloudObjectProviders.values())
-                .filter(p -> p.toString().equalsIgnoreCase(config.getCloudObjectStorageProvider()))
-                .findFirst().orElse(null);
-
-        if (provider != null && provider.name().equalsIgnoreCase("s3")) {
+        if (StringUtil.isEmpty(config.getCloudObjectStorageProvider())) {
             return new AwsS3StorageService(config);
+        }
 
-        } else if (provider != null && provider.name().equalsIgnoreCase("blob")) {
-            //TODO Replace Below With Others Here
-            return new AwsS3StorageService(config);
+        final CloudObjectProviders provider = Arrays.stream(CloudObjectProviders.values())
+                .filter(p -> p.toString().equalsIgnoreCase(config.getCloudObjectStorageProvider()))
+                .findFirst().orElseThrow(() -> new ConfigurationException("Unknown Cloud Object Storage provider '"
+                        + config.getCloudObjectStorageProvider() + "', supported values: "
+                        + Arrays.toString(CloudObjectProviders.values()).toLowerCase()));
 
-        } else {
-            return new AwsS3StorageService(config); //TODO Default to S3??
+        switch (provider) {
+            case S3ASYNC:
+                return new AwsS3AsyncStorageService(config);
+            case MEMORY:
+                return new MemoryStorageService(config);
+            case FILESYSTEM:
+                return new FileSystemStorageService(config);
+            case BLOB:
+            case GCS:
+                //TODO Replace Below With Others Here
+            default:
+                return new AwsS3StorageService(config);
         }
     }
 }
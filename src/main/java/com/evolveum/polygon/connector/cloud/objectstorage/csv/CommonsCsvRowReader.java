@@ -0,0 +1,63 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+
+/**
+ * Records parsed by commons-csv, each record is a new row.
+ */
+public class CommonsCsvRowReader implements CsvRowReader {
+
+    private final Reader reader;
+    private final Iterator<CSVRecord> records;
+
+    /**
+     * Reader is closed together with this one, also if the parser can't be created.
+     */
+    public CommonsCsvRowReader(Reader reader, CSVFormat format) throws IOException {
+        this.reader = reader;
+        try {
+            this.records = format.parse(reader).iterator();
+        } catch (IOException | RuntimeException ex) {
+            reader.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public CsvRow next() {
+        return records.hasNext() ? new RecordRow(records.next()) : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    static class RecordRow implements CsvRow {
+
+        private final CSVRecord record;
+
+        RecordRow(CSVRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public int size() {
+            return record.size();
+        }
+
+        @Override
+        public String get(int column) {
+            return record.get(column);
+        }
+
+        @Override
+        public long getRecordNumber() {
+            return record.getRecordNumber();
+        }
+    }
+}
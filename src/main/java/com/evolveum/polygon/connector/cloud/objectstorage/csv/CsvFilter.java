@@ -0,0 +1,265 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.MultivalueCodec;
+import org.apache.commons.csv.CSVRecord;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Filter evaluated against raw column values of the CSV record, before any connector object is created.
+ * Every filter mirrors what the framework filter it was translated from would do with the object created
+ * from the record, so records which don't match can be skipped right away.
+ */
+public abstract class CsvFilter {
+
+    public abstract boolean matches(CsvRow record);
+
+    public boolean matches(CSVRecord record) {
+        return matches(CsvRow.of(record));
+    }
+
+    /**
+     * Value every matching record must have in the column, null if the filter doesn't require any.
+     * Such value can be used to find candidate records in the snapshot index.
+     */
+    public String getRequiredValue(int column) {
+        return null;
+    }
+
+    /**
+     * Values of one column, split the same way connector object attribute values are created.
+     */
+    public static class ColumnValues {
+
+        private final int column;
+        private final MultivalueCodec multivalueCodec;
+
+        public ColumnValues(int column, MultivalueCodec multivalueCodec) {
+            this.column = column;
+            this.multivalueCodec = multivalueCodec;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        List<String> get(CsvRow record) {
+            if (column >= record.size()) {
+                return Collections.emptyList();
+            }
+
+            return multivalueCodec.split(record.get(column));
+        }
+
+        /**
+         * Attribute is added to the object only for non empty column.
+         */
+        boolean isPresent(CsvRow record) {
+            return column < record.size() && record.get(column) != null && !record.get(column).isEmpty();
+        }
+
+        /**
+         * First value of the column, string filters look only at the first value of the attribute.
+         */
+        String getFirst(CsvRow record) {
+            final List<String> values = get(record);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + column;
+        }
+    }
+
+    public static class Equals extends CsvFilter {
+
+        private final ColumnValues column;
+        private final List<String> values;
+        private final boolean ignoreCase;
+
+        public Equals(ColumnValues column, List<String> values, boolean ignoreCase) {
+            this.column = column;
+            this.values = values;
+            this.ignoreCase = ignoreCase;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            final List<String> actual = column.get(record);
+            if (actual.size() != values.size()) {
+                return false;
+            }
+
+            for (int i = 0; i < values.size(); i++) {
+                final boolean equal = ignoreCase
+                        ? values.get(i).equalsIgnoreCase(actual.get(i)) : values.get(i).equals(actual.get(i));
+                if (!equal) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getRequiredValue(int column) {
+            return this.column.getColumn() == column && values.size() == 1 ? values.get(0) : null;
+        }
+
+        @Override
+        public String toString() {
+            return column + (ignoreCase ? " =~ " : " = ") + values;
+        }
+    }
+
+    public static class StringMatch extends CsvFilter {
+
+        public enum Mode {
+
+            STARTS_WITH, ENDS_WITH, CONTAINS
+        }
+
+        private final ColumnValues column;
+        private final String value;
+        private final Mode mode;
+
+        public StringMatch(ColumnValues column, String value, Mode mode) {
+            this.column = column;
+            this.value = value;
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            final String actual = column.getFirst(record);
+            if (actual == null) {
+                return false;
+            }
+
+            switch (mode) {
+                case STARTS_WITH:
+                    return actual.startsWith(value);
+                case ENDS_WITH:
+                    return actual.endsWith(value);
+                default:
+                    return actual.contains(value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return column + " " + mode + " '" + value + "'";
+        }
+    }
+
+    public static class Compare extends CsvFilter {
+
+        public enum Operator {
+
+            GREATER_THAN, GREATER_THAN_OR_EQUAL, LESS_THAN, LESS_THAN_OR_EQUAL
+        }
+
+        private final ColumnValues column;
+        private final String value;
+        private final Operator operator;
+
+        public Compare(ColumnValues column, String value, Operator operator) {
+            this.column = column;
+            this.value = value;
+            this.operator = operator;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            if (!column.isPresent(record)) {
+                return false;
+            }
+
+            // framework compares only single valued attributes, other ones are treated as lower
+            final List<String> actual = column.get(record);
+            final int result = actual.size() == 1 ? actual.get(0).compareTo(value) : -1;
+            switch (operator) {
+                case GREATER_THAN:
+                    return result > 0;
+                case GREATER_THAN_OR_EQUAL:
+                    return result >= 0;
+                case LESS_THAN:
+                    return result < 0;
+                default:
+                    return result <= 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return column + " " + operator + " '" + value + "'";
+        }
+    }
+
+    public static class And extends CsvFilter {
+
+        private final CsvFilter left;
+        private final CsvFilter right;
+
+        public And(CsvFilter left, CsvFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            return left.matches(record) && right.matches(record);
+        }
+
+        @Override
+        public String getRequiredValue(int column) {
+            final String value = left.getRequiredValue(column);
+            return value != null ? value : right.getRequiredValue(column);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " AND " + right + ")";
+        }
+    }
+
+    public static class Or extends CsvFilter {
+
+        private final CsvFilter left;
+        private final CsvFilter right;
+
+        public Or(CsvFilter left, CsvFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            return left.matches(record) || right.matches(record);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " OR " + right + ")";
+        }
+    }
+
+    public static class Not extends CsvFilter {
+
+        private final CsvFilter filter;
+
+        public Not(CsvFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            return !filter.matches(record);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + filter;
+        }
+    }
+}
@@ -1,34 +1,149 @@
 package com.evolveum.polygon.connector.cloud.objectstorage.csv;
 
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Column;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.MultivalueCodec;
 import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.Uid;
-import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
-import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.*;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Viliam Repan (lazyman).
+ *
+ * Translates filters on uid, name and plain column attributes. Filters on other attributes (password,
+ * operational attributes, unknown columns) and non string values are left for the framework.
  */
-public class CsvFilterTranslator extends AbstractFilterTranslator<String> {
+public class CsvFilterTranslator extends AbstractFilterTranslator<CsvFilter> {
+
+    private final CloudCsvConfiguration configuration;
+    private final Map<String, Column> header;
+
+    private final int uidColumn;
+    private final int nameColumn;
+
+    public CsvFilterTranslator(CloudCsvConfiguration configuration, Map<String, Column> header, int uidColumn,
+                               int nameColumn) {
+        this.configuration = configuration;
+        this.header = header;
+        this.uidColumn = uidColumn;
+        this.nameColumn = nameColumn;
+    }
+
+    @Override
+    protected CsvFilter createAndExpression(CsvFilter leftExpression, CsvFilter rightExpression) {
+        return new CsvFilter.And(leftExpression, rightExpression);
+    }
 
     @Override
-    protected String createEqualsExpression(EqualsFilter filter, boolean not) {
-        if (not) {
+    protected CsvFilter createOrExpression(CsvFilter leftExpression, CsvFilter rightExpression) {
+        return new CsvFilter.Or(leftExpression, rightExpression);
+    }
+
+    @Override
+    protected CsvFilter createEqualsExpression(EqualsFilter filter, boolean not) {
+        Attribute attr = filter.getAttribute();
+        CsvFilter.ColumnValues column = resolveColumn(attr);
+        if (column == null || attr.getValue() == null || attr.getValue().isEmpty()) {
             return null;
         }
 
-        Attribute attr = filter.getAttribute();
-        if (!attr.is(Uid.NAME)) {
+        List<String> values = new ArrayList<>();
+        for (Object value : attr.getValue()) {
+            if (!(value instanceof String)) {
+                return null;
+            }
+            values.add((String) value);
+        }
+
+        // uid was always matched ignoring case
+        return negate(new CsvFilter.Equals(column, values, attr.is(Uid.NAME)), not);
+    }
+
+    @Override
+    protected CsvFilter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        return createStringExpression(filter, CsvFilter.StringMatch.Mode.STARTS_WITH, not);
+    }
+
+    @Override
+    protected CsvFilter createEndsWithExpression(EndsWithFilter filter, boolean not) {
+        return createStringExpression(filter, CsvFilter.StringMatch.Mode.ENDS_WITH, not);
+    }
+
+    @Override
+    protected CsvFilter createContainsExpression(ContainsFilter filter, boolean not) {
+        return createStringExpression(filter, CsvFilter.StringMatch.Mode.CONTAINS, not);
+    }
+
+    @Override
+    protected CsvFilter createGreaterThanExpression(GreaterThanFilter filter, boolean not) {
+        return createCompareExpression(filter, CsvFilter.Compare.Operator.GREATER_THAN, not);
+    }
+
+    @Override
+    protected CsvFilter createGreaterThanOrEqualExpression(GreaterThanOrEqualFilter filter, boolean not) {
+        return createCompareExpression(filter, CsvFilter.Compare.Operator.GREATER_THAN_OR_EQUAL, not);
+    }
+
+    @Override
+    protected CsvFilter createLessThanExpression(LessThanFilter filter, boolean not) {
+        return createCompareExpression(filter, CsvFilter.Compare.Operator.LESS_THAN, not);
+    }
+
+    @Override
+    protected CsvFilter createLessThanOrEqualExpression(LessThanOrEqualFilter filter, boolean not) {
+        return createCompareExpression(filter, CsvFilter.Compare.Operator.LESS_THAN_OR_EQUAL, not);
+    }
+
+    private CsvFilter createStringExpression(StringFilter filter, CsvFilter.StringMatch.Mode mode, boolean not) {
+        CsvFilter.ColumnValues column = resolveColumn(filter.getAttribute());
+        if (column == null || filter.getValue() == null) {
+            return null;
+        }
+
+        return negate(new CsvFilter.StringMatch(column, filter.getValue(), mode), not);
+    }
+
+    private CsvFilter createCompareExpression(ComparableAttributeFilter filter, CsvFilter.Compare.Operator operator,
+                                              boolean not) {
+        CsvFilter.ColumnValues column = resolveColumn(filter.getAttribute());
+        if (column == null || !(filter.getValue() instanceof String)) {
             return null;
         }
 
-        List<Object> values = attr.getValue();
-        if (values.isEmpty()) {
+        return negate(new CsvFilter.Compare(column, (String) filter.getValue(), operator), not);
+    }
+
+    private CsvFilter negate(CsvFilter filter, boolean not) {
+        return not ? new CsvFilter.Not(filter) : filter;
+    }
+
+    private CsvFilter.ColumnValues resolveColumn(Attribute attr) {
+        if (attr.is(Uid.NAME)) {
+            return uidColumn >= 0 ? new CsvFilter.ColumnValues(uidColumn, MultivalueCodec.singleValue()) : null;
+        }
+
+        if (attr.is(Name.NAME)) {
+            return nameColumn >= 0 ? new CsvFilter.ColumnValues(nameColumn, MultivalueCodec.singleValue()) : null;
+        }
+
+        String name = attr.getName();
+        if (OperationalAttributes.PASSWORD_NAME.equals(name)
+                || name.equalsIgnoreCase(configuration.getUniqueAttribute())
+                || name.equalsIgnoreCase(configuration.getNameAttribute())
+                || name.equalsIgnoreCase(configuration.getPasswordAttribute())) {
+            // these columns don't end up as plain attributes of the object
             return null;
         }
 
-        Object value = values.get(0);
+        Column column = header.get(name);
+        if (column == null || column.getIndex() < 0) {
+            return null;
+        }
 
-        return value != null ? value.toString() : null;
+        return new CsvFilter.ColumnValues(column.getIndex(), MultivalueCodec.of(configuration));
     }
 }
@@ -0,0 +1,7 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+public enum CsvParsers {
+
+    COMMONS,
+    TOKENIZER
+}
@@ -0,0 +1,34 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Values of one CSV record, whichever reader parsed it. Rows returned by {@link CsvRowReader} may be reused,
+ * such row is valid only until the next one is read.
+ */
+public interface CsvRow {
+
+    int size();
+
+    /**
+     * @throws ArrayIndexOutOfBoundsException if the record doesn't have the column, like {@link CSVRecord#get(int)}
+     */
+    String get(int column);
+
+    /**
+     * Value of the column without creating a string if the reader doesn't have one already. The view is valid
+     * only until the next record is read, it has to be copied to be kept.
+     */
+    default CharSequence getView(int column) {
+        return get(column);
+    }
+
+    /**
+     * Number of the record in the object starting with 1, header included.
+     */
+    long getRecordNumber();
+
+    static CsvRow of(CSVRecord record) {
+        return new CommonsCsvRowReader.RecordRow(record);
+    }
+}
@@ -0,0 +1,15 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads records of the CSV object one by one.
+ */
+public interface CsvRowReader extends Closeable {
+
+    /**
+     * Next record, null at the end. The row may be reused by the next call.
+     */
+    CsvRow next() throws IOException;
+}
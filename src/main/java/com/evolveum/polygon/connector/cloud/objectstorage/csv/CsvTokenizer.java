@@ -0,0 +1,531 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * CSV parser which doesn't allocate anything per record. Characters of all values of the current record are
+ * copied into one reused array, runs of plain characters at once, and values are returned as views over it.
+ * Strings are created only for values read by {@link CsvRow#get(int)}. The row is reused, it's valid only until
+ * the next one is read.
+ *
+ * Records are the same ones commons-csv parser returns for the same format, the state machine follows its lexer.
+ * Buffers are kept by the thread once the tokenizer is closed and the next tokenizer created by the thread
+ * reuses them.
+ */
+public class CsvTokenizer implements CsvRowReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int END_OF_STREAM = -1;
+    private static final int UNDEFINED = -2;
+
+    /**
+     * Used for characters which aren't configured, it doesn't match any character nor the end of stream.
+     */
+    private static final int DISABLED = -3;
+
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+
+    private static final int TOKEN = 0;
+    private static final int END_OF_RECORD = 1;
+    private static final int EOF = 2;
+    private static final int COMMENT = 3;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<>();
+
+    /**
+     * Arrays of one tokenizer, they only grow.
+     */
+    private static class Buffers {
+
+        private final char[] input = new char[BUFFER_SIZE];
+        private char[] content = new char[1024];
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private String[] values = new String[16];
+        private View[] views = new View[16];
+    }
+
+    private final Reader reader;
+    private Buffers buffers;
+
+    private final int delimiter;
+    private final int quote;
+    private final int escape;
+    private final int commentMarker;
+    private final boolean ignoreEmptyLines;
+    private final boolean ignoreSurroundingSpaces;
+    private final boolean trim;
+    private final boolean trailingDelimiter;
+
+    private final char[] input;
+    private int position = 0;
+    private int filled = 0;
+    private int lastChar = UNDEFINED;
+    private long recordNumber = 0;
+
+    private int contentLength = 0;
+    private int tokenStart;
+    private boolean tokenReady;
+
+    private final Row row = new Row();
+
+    public CsvTokenizer(Reader reader, CloudCsvConfiguration configuration) {
+        this.reader = reader;
+
+        this.delimiter = toInt(configuration.getFieldDelimiter());
+        this.quote = toInt(configuration.getQuote());
+        this.escape = toInt(configuration.getEscape());
+        this.commentMarker = toInt(configuration.getCommentMarker());
+        this.ignoreEmptyLines = configuration.isIgnoreEmptyLines();
+        this.ignoreSurroundingSpaces = configuration.isIgnoreSurroundingSpaces();
+        this.trim = configuration.isTrim();
+        this.trailingDelimiter = configuration.isTrailingDelimiter();
+
+        Buffers buffers = BUFFERS.get();
+        if (buffers != null) {
+            // tokenizers open at the same time in one thread don't share them
+            BUFFERS.remove();
+        } else {
+            buffers = new Buffers();
+        }
+        this.buffers = buffers;
+        this.input = buffers.input;
+    }
+
+    private static int toInt(String value) {
+        final Character character = Util.toCharacter(value);
+        return character != null ? character : DISABLED;
+    }
+
+    @Override
+    public CsvRow next() throws IOException {
+        row.clear();
+        contentLength = 0;
+
+        int type;
+        do {
+            type = nextToken();
+            switch (type) {
+                case TOKEN:
+                    addValue(false);
+                    break;
+                case END_OF_RECORD:
+                    addValue(true);
+                    break;
+                case EOF:
+                    if (tokenReady) {
+                        addValue(true);
+                    }
+                    break;
+                default:
+                    // comment lines before the record, their content isn't needed
+                    type = TOKEN;
+            }
+        } while (type == TOKEN);
+
+        if (row.size == 0) {
+            return null;
+        }
+
+        row.recordNumber = ++recordNumber;
+        return row;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffers != null) {
+            Arrays.fill(buffers.values, null);
+            BUFFERS.set(buffers);
+            buffers = null;
+        }
+        reader.close();
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(input, 0, input.length);
+        } while (read == 0);
+
+        position = 0;
+        filled = Math.max(read, 0);
+        return read > 0;
+    }
+
+    private int read() throws IOException {
+        if (position == filled && !fill()) {
+            lastChar = END_OF_STREAM;
+        } else {
+            lastChar = input[position++];
+        }
+        return lastChar;
+    }
+
+    private int lookAhead() throws IOException {
+        if (position == filled && !fill()) {
+            return END_OF_STREAM;
+        }
+        return input[position];
+    }
+
+    /**
+     * Consumes LF following CR, so CRLF is one line end.
+     */
+    private boolean readEndOfLine(int c) throws IOException {
+        if (c == CR && lookAhead() == LF) {
+            read();
+        }
+        return c == CR || c == LF;
+    }
+
+    private static boolean isStartOfLine(int c) {
+        return c == LF || c == CR || c == UNDEFINED;
+    }
+
+    /**
+     * Delimiter is never whitespace.
+     */
+    private boolean isWhitespace(int c) {
+        return c != delimiter && c >= 0 && Character.isWhitespace((char) c);
+    }
+
+    private int nextToken() throws IOException {
+        tokenStart = contentLength;
+        tokenReady = false;
+
+        int last = lastChar;
+        int c = read();
+        boolean eol = readEndOfLine(c);
+
+        if (ignoreEmptyLines) {
+            while (eol && isStartOfLine(last)) {
+                last = c;
+                c = read();
+                eol = readEndOfLine(c);
+                if (c == END_OF_STREAM) {
+                    return EOF;
+                }
+            }
+        }
+
+        if (last == END_OF_STREAM || last != delimiter && c == END_OF_STREAM) {
+            return EOF;
+        }
+
+        if (isStartOfLine(last) && c == commentMarker) {
+            return skipLine() ? COMMENT : EOF;
+        }
+
+        if (ignoreSurroundingSpaces) {
+            while (isWhitespace(c) && !eol) {
+                c = read();
+                eol = readEndOfLine(c);
+            }
+        }
+
+        if (c == delimiter) {
+            return TOKEN;
+        } else if (eol) {
+            return END_OF_RECORD;
+        } else if (c == quote) {
+            return parseQuotedToken();
+        } else if (c == END_OF_STREAM) {
+            tokenReady = true;
+            return EOF;
+        }
+
+        return parseSimpleToken(c);
+    }
+
+    /**
+     * Skips the rest of the line, returns false if there's nothing left to skip.
+     */
+    private boolean skipLine() throws IOException {
+        if (lookAhead() == END_OF_STREAM) {
+            lastChar = END_OF_STREAM;
+            return false;
+        }
+
+        int c;
+        do {
+            c = read();
+        } while (c != END_OF_STREAM && c != CR && c != LF);
+        readEndOfLine(c);
+
+        lastChar = LF;
+        return true;
+    }
+
+    private int parseSimpleToken(int c) throws IOException {
+        final int type;
+        while (true) {
+            if (c == CR || c == LF) {
+                readEndOfLine(c);
+                type = END_OF_RECORD;
+                break;
+            } else if (c == END_OF_STREAM) {
+                tokenReady = true;
+                type = EOF;
+                break;
+            } else if (c == delimiter) {
+                type = TOKEN;
+                break;
+            } else if (c == escape) {
+                readEscape();
+            } else {
+                append(c);
+                copyPlainCharacters(false);
+            }
+            c = read();
+        }
+
+        if (ignoreSurroundingSpaces) {
+            while (contentLength > tokenStart && Character.isWhitespace(buffers.content[contentLength - 1])) {
+                contentLength--;
+            }
+        }
+
+        return type;
+    }
+
+    private int parseQuotedToken() throws IOException {
+        final long record = recordNumber + 1;
+
+        while (true) {
+            final int c = read();
+            if (c == escape) {
+                readEscape();
+            } else if (c == quote) {
+                if (lookAhead() == quote) {
+                    append(read());
+                } else {
+                    return parseAfterQuotedToken();
+                }
+            } else if (c == END_OF_STREAM) {
+                throw new IOException("(record " + record + ") EOF reached before encapsulated token finished");
+            } else {
+                append(c);
+                copyPlainCharacters(true);
+            }
+        }
+    }
+
+    private int parseAfterQuotedToken() throws IOException {
+        while (true) {
+            final int c = read();
+            if (c == delimiter) {
+                return TOKEN;
+            } else if (c == END_OF_STREAM) {
+                tokenReady = true;
+                return EOF;
+            } else if (readEndOfLine(c)) {
+                return END_OF_RECORD;
+            } else if (!isWhitespace(c)) {
+                throw new IOException("(record " + (recordNumber + 1)
+                        + ") invalid char between encapsulated token and delimiter");
+            }
+        }
+    }
+
+    /**
+     * Copies characters following the one just read up to the next one which isn't plain content
+     * of the token, as far as they are in the input buffer.
+     */
+    private void copyPlainCharacters(boolean quoted) {
+        final int start = position;
+        while (position < filled) {
+            final char c = input[position];
+            if (c == escape || (quoted ? c == quote : c == delimiter || c == CR || c == LF)) {
+                break;
+            }
+            position++;
+        }
+
+        if (position > start) {
+            ensureContent(contentLength + position - start);
+            System.arraycopy(input, start, buffers.content, contentLength, position - start);
+            contentLength += position - start;
+            lastChar = input[position - 1];
+        }
+    }
+
+    private void readEscape() throws IOException {
+        final int c = read();
+        switch (c) {
+            case 'r':
+                append(CR);
+                break;
+            case 'n':
+                append(LF);
+                break;
+            case 't':
+                append('\t');
+                break;
+            case 'b':
+                append('\b');
+                break;
+            case 'f':
+                append('\f');
+                break;
+            case CR:
+            case LF:
+            case '\t':
+            case '\b':
+            case '\f':
+                append(c);
+                break;
+            case END_OF_STREAM:
+                throw new IOException("EOF whilst processing escape sequence");
+            default:
+                if (c != delimiter && c != escape && c != quote && c != commentMarker) {
+                    // not an escape sequence, both characters are kept
+                    append(escape);
+                }
+                append(c);
+        }
+    }
+
+    private void append(int c) {
+        ensureContent(contentLength + 1);
+        buffers.content[contentLength++] = (char) c;
+    }
+
+    private void ensureContent(int length) {
+        if (length > buffers.content.length) {
+            buffers.content = Arrays.copyOf(buffers.content, Math.max(buffers.content.length * 2, length));
+        }
+    }
+
+    private void addValue(boolean lastInRecord) {
+        final char[] content = buffers.content;
+        int start = tokenStart;
+        int end = contentLength;
+        if (trim) {
+            // same as String.trim()
+            while (start < end && content[start] <= ' ') {
+                start++;
+            }
+            while (end > start && content[end - 1] <= ' ') {
+                end--;
+            }
+        }
+        if (lastInRecord && trailingDelimiter && start == end) {
+            return;
+        }
+
+        row.add(start, end);
+    }
+
+    /**
+     * View of a value in the content array, valid until the next record is read.
+     */
+    private static class View implements CharSequence {
+
+        private char[] content;
+        private int start;
+        private int length;
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return content[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length || from > to) {
+                throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + length);
+            }
+            return new String(content, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(content, start, length);
+        }
+    }
+
+    private class Row implements CsvRow {
+
+        private int size = 0;
+        private long recordNumber;
+
+        private void clear() {
+            Arrays.fill(buffers.values, 0, size, null);
+            size = 0;
+        }
+
+        private void add(int start, int end) {
+            if (size == buffers.starts.length) {
+                buffers.starts = Arrays.copyOf(buffers.starts, size * 2);
+                buffers.ends = Arrays.copyOf(buffers.ends, size * 2);
+                buffers.values = Arrays.copyOf(buffers.values, size * 2);
+                buffers.views = Arrays.copyOf(buffers.views, size * 2);
+            }
+            buffers.starts[size] = start;
+            buffers.ends[size] = end;
+            size++;
+        }
+
+        private void check(int column) {
+            if (column < 0 || column >= size) {
+                throw new ArrayIndexOutOfBoundsException(column);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String get(int column) {
+            check(column);
+
+            String value = buffers.values[column];
+            if (value == null) {
+                value = new String(buffers.content, buffers.starts[column],
+                        buffers.ends[column] - buffers.starts[column]);
+                buffers.values[column] = value;
+            }
+            return value;
+        }
+
+        @Override
+        public CharSequence getView(int column) {
+            check(column);
+
+            if (buffers.values[column] != null) {
+                return buffers.values[column];
+            }
+
+            View view = buffers.views[column];
+            if (view == null) {
+                view = new View();
+                buffers.views[column] = view;
+            }
+            view.content = buffers.content;
+            view.start = buffers.starts[column];
+            view.length = buffers.ends[column] - buffers.starts[column];
+
+            return view;
+        }
+
+        @Override
+        public long getRecordNumber() {
+            return recordNumber;
+        }
+    }
+}
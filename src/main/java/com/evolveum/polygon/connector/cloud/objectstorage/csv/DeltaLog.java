@@ -0,0 +1,395 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Changes of records kept as small delta objects in the folder next to the CSV object ("&lt;fileName&gt;.log/"),
+ * so a write uploads only the changed records instead of rewriting the whole object. Every entry of a delta
+ * object is either upsert of the record with the uid or delete of all records with the uid.
+ *
+ * Readers see the CSV object with all entries applied, such merged content is kept as a snapshot of its own
+ * in {@link ObjectSnapshotCache}. Delta objects are named by a sequence number, so listing returns them in
+ * the order they were written. They never change once written, so each one is downloaded only once.
+ *
+ * Writers may run on several nodes. The next delta object is named after the last one the writer listed and
+ * it's only created if it doesn't exist yet, so a writer which missed delta objects of another writer fails
+ * with {@link ObjectVersionConflictException} and computes its entries again from the current log. This needs
+ * a store supporting conditional creates (If-None-Match), on other stores the delta log must have a single writer.
+ * Compaction keeps the newest delta object, so the sequence continues after it. Before it removes the others
+ * it leaves a marker with the sequence number of the last one removed and delta objects up to the marker are
+ * ignored. A writer which stalled between listing the log and appending to it, while others appended and compacted
+ * past its sequence number, may create a name compaction already removed. It finds the marker right after
+ * the create, removes its delta object and fails with {@link ObjectVersionConflictException} as well.
+ */
+public class DeltaLog {
+
+    private static final Log LOG = Log.getLog(DeltaLog.class);
+
+    private static final String FOLDER_SUFFIX = ".log/";
+
+    private static final String SEQUENCE_FORMAT = "%013d";
+
+    /**
+     * Prefix of the markers compaction leaves in the folder, followed by the sequence number of the last delta object
+     * it removed.
+     */
+    private static final String COMPACTED_PREFIX = "compacted-";
+
+    /**
+     * Times the base and the log are read again when the CSV object is compacted while they are being read.
+     */
+    private static final int READ_ATTEMPTS = 5;
+
+    private static final String UPSERT = "+";
+    private static final String DELETE = "-";
+
+    /**
+     * Entries of delta objects already read, by object key and delta object name.
+     */
+    private static final Map<String, Map<String, List<List<String>>>> ENTRIES = new ConcurrentHashMap<>();
+
+    /**
+     * Retained snapshot of the records with the delta objects it was merged from.
+     */
+    public static class View {
+
+        private final ObjectSnapshot snapshot;
+        private final List<String> names;
+
+        private View(ObjectSnapshot snapshot, List<String> names) {
+            this.snapshot = snapshot;
+            this.names = names;
+        }
+
+        public ObjectSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Names of the delta objects applied, oldest first.
+         */
+        public List<String> getNames() {
+            return names;
+        }
+
+        public void release() {
+            snapshot.release();
+        }
+    }
+
+    private final CloudStorageService storage;
+    private final CloudCsvConfiguration configuration;
+    private final int uidColumn;
+
+    public DeltaLog(CloudStorageService storage, CloudCsvConfiguration configuration, int uidColumn) {
+        this.storage = storage;
+        this.configuration = configuration;
+        this.uidColumn = uidColumn;
+    }
+
+    public static List<String> upsert(String uid, List<?> record) {
+        final List<String> entry = new ArrayList<>(record.size() + 2);
+        entry.add(UPSERT);
+        entry.add(uid);
+        record.forEach(value -> entry.add(Objects.toString(value, null)));
+        return entry;
+    }
+
+    public static List<String> delete(String uid) {
+        return Arrays.asList(DELETE, uid);
+    }
+
+    public String getFolder() {
+        return configuration.getFileName() + FOLDER_SUFFIX;
+    }
+
+    /**
+     * Names of all delta objects which aren't compacted yet, oldest first.
+     */
+    public List<String> list() throws Exception {
+        final List<String> listed = storage.listFolder(configuration, getFolder());
+        final long compacted = getCompactedSequence(listed);
+
+        final List<String> names = new ArrayList<>();
+        for (String name : listed) {
+            if (getSequence(name) > compacted) {
+                names.add(name);
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Current records, the CSV object with entries of all delta objects applied. Compaction replaces the CSV object
+     * before it removes the delta objects folded into it, so the listing belongs to the CSV object only if it
+     * didn't change while the log was listed and read. Caller has to release the view.
+     */
+    public View open() throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            final ObjectSnapshot base = storage.getFileSnapshot(configuration);
+            List<String> names = null;
+            try {
+                names = list();
+                final ObjectSnapshot snapshot = getSnapshot(base, names);
+                if (attempt >= READ_ATTEMPTS || isCurrent(base)) {
+                    return new View(snapshot, names);
+                }
+                snapshot.release();
+            } catch (Exception ex) {
+                // delta objects listed may be removed by compaction before they are read, they are either
+                // in this version of the CSV object already or in a newer one
+                if (attempt >= READ_ATTEMPTS || (isCurrent(base) && Objects.equals(names, list()))) {
+                    throw ex;
+                }
+            } finally {
+                base.release();
+            }
+            LOG.ok("Object {0} was compacted while its delta log was read, attempt {1}", configuration.getFileName(),
+                    attempt);
+        }
+    }
+
+    private boolean isCurrent(ObjectSnapshot base) throws Exception {
+        return Objects.equals(base.getVersion(), storage.getFileVersion(configuration));
+    }
+
+    /**
+     * Returns retained snapshot of the base with entries of all delta objects applied, the base itself
+     * if there aren't any. Caller has to release the snapshot.
+     */
+    public ObjectSnapshot getSnapshot(ObjectSnapshot base, List<String> names) throws Exception {
+        if (names.isEmpty()) {
+            return base.retain();
+        }
+
+        final String version = getVersion(base.getVersion(), names);
+
+        return ObjectSnapshotCache.getInstance().acquire(getObjectKey() + FOLDER_SUFFIX, version, file -> {
+            final List<List<String>> entries = read(names);
+            try (Reader reader = base.openReader(configuration.getEncoding());
+                 Writer writer = Util.createWriter(new FileOutputStream(file), configuration)) {
+                merge(reader, entries, writer);
+            }
+        });
+    }
+
+    /**
+     * Version of the merged snapshot, the base version if there aren't any delta objects. It's known without
+     * reading any of them, delta objects never change once written.
+     */
+    public String getVersion(String baseVersion, List<String> names) {
+        if (names.isEmpty()) {
+            return baseVersion;
+        }
+
+        final String last = names.get(names.size() - 1);
+        return baseVersion + "+" + names.size() + ":" + last.substring(getFolder().length());
+    }
+
+    /**
+     * Entries of the delta objects in the order they were written.
+     */
+    public List<List<String>> read(List<String> names) throws Exception {
+        final Map<String, List<List<String>>> cached = ENTRIES.computeIfAbsent(getObjectKey(),
+                k -> new ConcurrentHashMap<>());
+        // delta objects which were compacted won't be listed again
+        cached.keySet().retainAll(names);
+
+        final List<List<String>> entries = new ArrayList<>();
+        for (String name : names) {
+            List<List<String>> delta = cached.get(name);
+            if (delta == null) {
+                delta = parse(storage.getFileContent(configuration, name));
+                cached.put(name, delta);
+            }
+            entries.addAll(delta);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes new delta object with the entries, it's named as the next one after all the delta objects the entries
+     * were computed from. Fails with {@link ObjectVersionConflictException} if another writer appended a delta
+     * object since they were listed.
+     */
+    public String append(List<String> names, List<List<String>> entries) throws Exception {
+        final String last = names.isEmpty() ? null : names.get(names.size() - 1);
+        final long sequence = (last != null ? getSequence(last) : 0) + 1;
+        final String name = getFolder() + String.format(SEQUENCE_FORMAT, sequence);
+
+        final StringWriter content = new StringWriter();
+        final CSVPrinter printer = Util.createCsvFormat(configuration).print(content);
+        for (List<String> entry : entries) {
+            printer.printRecord(entry);
+        }
+        printer.flush();
+
+        storage.createFileContent(configuration, name, content.toString().getBytes(configuration.getEncoding()));
+
+        // name may be free only because compaction removed it after the names were listed, the marker was left
+        // before that, so it's seen now
+        final long compacted = getCompactedSequence(storage.listFolder(configuration, getFolder()));
+        if (compacted >= sequence) {
+            storage.deleteFiles(configuration, Collections.singletonList(name));
+            throw new ObjectVersionConflictException(name, last, getMarker(compacted));
+        }
+        LOG.ok("Appended {0} entries to delta log of {1} as {2}", entries.size(), configuration.getFileName(), name);
+
+        ENTRIES.computeIfAbsent(getObjectKey(), k -> new ConcurrentHashMap<>())
+                .put(name, Collections.unmodifiableList(new ArrayList<>(entries)));
+
+        return name;
+    }
+
+    /**
+     * Sequence number of the delta object, -1 if the name doesn't belong to a delta object.
+     */
+    private long getSequence(String name) {
+        try {
+            return Long.parseLong(name.substring(getFolder().length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sequence number of the last delta object compaction removed, zero if it didn't remove any yet.
+     */
+    private long getCompactedSequence(List<String> listed) {
+        long compacted = 0;
+        for (String name : listed) {
+            compacted = Math.max(compacted, getMarkerSequence(name));
+        }
+
+        return compacted;
+    }
+
+    /**
+     * Sequence number the compaction marker was left for, -1 if the name doesn't belong to a marker.
+     */
+    private long getMarkerSequence(String name) {
+        final String prefix = getFolder() + COMPACTED_PREFIX;
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private String getMarker(long sequence) {
+        return getFolder() + COMPACTED_PREFIX + String.format(SEQUENCE_FORMAT, sequence);
+    }
+
+    /**
+     * Removes delta objects which were already compacted into the CSV object. The marker of the last one is written
+     * first, older markers and delta objects stalled writers created below it are removed as well.
+     */
+    public void remove(List<String> names) throws Exception {
+        if (names.isEmpty()) {
+            return;
+        }
+
+        final long sequence = getSequence(names.get(names.size() - 1));
+        final String marker = getMarker(sequence);
+        try {
+            storage.createFileContent(configuration, marker, new byte[0]);
+        } catch (ObjectVersionConflictException ex) {
+            // another compaction removes the same delta objects
+        }
+
+        final Set<String> removed = new LinkedHashSet<>(names);
+        for (String name : storage.listFolder(configuration, getFolder())) {
+            final long older = Math.max(getSequence(name), getMarkerSequence(name));
+            if (older >= 0 && older <= sequence && !name.equals(marker)) {
+                removed.add(name);
+            }
+        }
+
+        storage.deleteFiles(configuration, removed);
+        final Map<String, List<List<String>>> cached = ENTRIES.get(getObjectKey());
+        if (cached != null) {
+            cached.keySet().removeAll(removed);
+        }
+    }
+
+    /**
+     * Writes the CSV content with the entries applied. The latest entry of every uid wins, its record is written
+     * in place of the first record with the uid and other records with the uid are left out. Records of uids
+     * which aren't in the content yet are added at the end. Applying the same entries again doesn't change
+     * the result, so it doesn't matter if the content already contains some of them.
+     *
+     * Records are identified only by the uid, so a record renamed to uid of another record replaces it.
+     */
+    public void merge(Reader reader, List<List<String>> entries, Writer writer) throws IOException {
+        final Map<String, List<String>> latest = new LinkedHashMap<>();
+        for (List<String> entry : entries) {
+            latest.put(entry.get(1), UPSERT.equals(entry.get(0)) ? entry.subList(2, entry.size()) : null);
+        }
+
+        final CSVFormat csv = Util.createCsvFormat(configuration);
+        final CSVPrinter printer = csv.print(writer);
+        final Set<String> written = new HashSet<>();
+
+        final Iterator<CSVRecord> iterator = csv.parse(reader).iterator();
+        if (configuration.isHeaderExists() && iterator.hasNext()) {
+            printer.printRecord(iterator.next());
+        }
+
+        while (iterator.hasNext()) {
+            final CSVRecord record = iterator.next();
+            final String uid = uidColumn >= 0 && uidColumn < record.size() ? record.get(uidColumn) : null;
+            if (StringUtil.isEmpty(uid) || !latest.containsKey(uid)) {
+                printer.printRecord(record);
+                continue;
+            }
+
+            final List<String> changed = latest.get(uid);
+            if (changed != null && written.add(uid)) {
+                printer.printRecord(changed);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : latest.entrySet()) {
+            if (entry.getValue() != null && written.add(entry.getKey())) {
+                printer.printRecord(entry.getValue());
+            }
+        }
+
+        printer.flush();
+    }
+
+    private List<List<String>> parse(byte[] content) throws IOException {
+        final List<List<String>> entries = new ArrayList<>();
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(content), configuration.getEncoding())) {
+            for (CSVRecord record : Util.createCsvFormat(configuration).parse(reader)) {
+                if (record.size() < 2) {
+                    continue;
+                }
+
+                final List<String> entry = new ArrayList<>(record.size());
+                record.forEach(entry::add);
+                entries.add(Collections.unmodifiableList(entry));
+            }
+        }
+
+        return Collections.unmodifiableList(entries);
+    }
+
+    private String getObjectKey() {
+        return storage.getObjectKey(configuration);
+    }
+}
@@ -0,0 +1,593 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads records of a local snapshot mapped into memory, its bytes are tokenized in place instead of being
+ * copied through a stream, a decoder and a reader. Values are kept as ranges of the mapped bytes and decoded
+ * to strings only when they are read, so columns nobody asks for cost just the scan. Only values with escaped
+ * characters or doubled quotes are copied while tokenizing. The row is reused, it's valid only until the next
+ * one is read.
+ *
+ * Records are the same ones commons-csv parser returns for the same format, it's a port of its lexer working
+ * with bytes. Bytes are compared with the delimiter, quote, escape and comment marker directly, that's correct
+ * only for encodings where ASCII characters are single bytes which are never part of another character,
+ * see {@link #isSupported(ObjectSnapshot, CloudCsvConfiguration)}.
+ */
+public class MappedCsvRowReader implements CsvRowReader {
+
+    private static final int END_OF_STREAM = -1;
+    private static final int UNDEFINED = -2;
+
+    /**
+     * Used for characters which aren't configured, it doesn't match any byte nor the end of stream.
+     */
+    private static final int DISABLED = -3;
+
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+
+    private static final int TOKEN = 0;
+    private static final int END_OF_RECORD = 1;
+    private static final int EOF = 2;
+    private static final int COMMENT = 3;
+
+    private final ObjectSnapshot snapshot;
+    private final ByteBuffer buffer;
+    private final ByteBuffer source;
+    private final int limit;
+    private final Charset charset;
+    private final boolean utf8;
+
+    private final int delimiter;
+    private final int quote;
+    private final int escape;
+    private final int commentMarker;
+    private final boolean ignoreEmptyLines;
+    private final boolean ignoreSurroundingSpaces;
+    private final boolean trim;
+    private final boolean trailingDelimiter;
+
+    private int position = 0;
+    private int lastChar = UNDEFINED;
+    private long recordNumber = 0;
+    private boolean closed = false;
+
+    /**
+     * Content of the current token, range of the buffer until it has to be copied to the scratch array.
+     */
+    private int tokenStart;
+    private int tokenEnd;
+    private boolean tokenCopied;
+    private boolean tokenSimple;
+    private boolean tokenReady;
+    private byte[] scratch = new byte[64];
+    private int scratchLength;
+
+    private byte[] decodeBuffer = new byte[64];
+
+    private final Row row = new Row();
+
+    private MappedCsvRowReader(ObjectSnapshot snapshot, MappedByteBuffer buffer, CloudCsvConfiguration configuration) {
+        this.snapshot = snapshot;
+        this.buffer = buffer;
+        this.source = buffer.duplicate();
+        this.limit = buffer.limit();
+        this.charset = Charset.forName(configuration.getEncoding());
+        this.utf8 = StandardCharsets.UTF_8.equals(charset);
+
+        this.delimiter = toByte(configuration.getFieldDelimiter());
+        this.quote = toByte(configuration.getQuote());
+        this.escape = toByte(configuration.getEscape());
+        this.commentMarker = toByte(configuration.getCommentMarker());
+        this.ignoreEmptyLines = configuration.isIgnoreEmptyLines();
+        this.ignoreSurroundingSpaces = configuration.isIgnoreSurroundingSpaces();
+        this.trim = configuration.isTrim();
+        this.trailingDelimiter = configuration.isTrailingDelimiter();
+    }
+
+    private static int toByte(String value) {
+        final Character character = Util.toCharacter(value);
+        return character != null ? character : DISABLED;
+    }
+
+    /**
+     * Snapshot can be mapped as one buffer and its bytes can be tokenized without decoding them first.
+     */
+    public static boolean isSupported(ObjectSnapshot snapshot, CloudCsvConfiguration configuration) {
+        if (snapshot.getSize() > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        final Charset charset;
+        try {
+            charset = Charset.forName(configuration.getEncoding());
+        } catch (RuntimeException ex) {
+            return false;
+        }
+        if (!StandardCharsets.UTF_8.equals(charset) && !StandardCharsets.US_ASCII.equals(charset)
+                && !StandardCharsets.ISO_8859_1.equals(charset)) {
+            return false;
+        }
+
+        return isAscii(configuration.getFieldDelimiter()) && isAscii(configuration.getQuote())
+                && isAscii(configuration.getEscape()) && isAscii(configuration.getCommentMarker());
+    }
+
+    private static boolean isAscii(String value) {
+        final Character character = Util.toCharacter(value);
+        return character == null || character < 0x80;
+    }
+
+    /**
+     * Maps the snapshot, the reader holds its own reference to the snapshot until it's closed.
+     */
+    public static MappedCsvRowReader open(ObjectSnapshot snapshot, CloudCsvConfiguration configuration)
+            throws IOException {
+        snapshot.retain();
+        try (FileChannel channel = FileChannel.open(snapshot.getFile().toPath(), StandardOpenOption.READ)) {
+            // mapping stays valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedCsvRowReader(snapshot, buffer, configuration);
+        } catch (IOException | RuntimeException ex) {
+            snapshot.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public CsvRow next() throws IOException {
+        row.clear();
+
+        int type;
+        do {
+            type = nextToken();
+            switch (type) {
+                case TOKEN:
+                    addValue(false);
+                    break;
+                case END_OF_RECORD:
+                    addValue(true);
+                    break;
+                case EOF:
+                    if (tokenReady) {
+                        addValue(true);
+                    }
+                    break;
+                default:
+                    // comment lines before the record, their content isn't needed
+                    type = TOKEN;
+            }
+        } while (type == TOKEN);
+
+        if (row.size == 0) {
+            return null;
+        }
+
+        row.recordNumber = ++recordNumber;
+        return row;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            snapshot.release();
+        }
+    }
+
+    private int read() {
+        lastChar = position < limit ? buffer.get(position++) & 0xff : END_OF_STREAM;
+        return lastChar;
+    }
+
+    private int lookAhead() {
+        return position < limit ? buffer.get(position) & 0xff : END_OF_STREAM;
+    }
+
+    /**
+     * Consumes LF following CR, so CRLF is one line end.
+     */
+    private boolean readEndOfLine(int c) {
+        if (c == CR && lookAhead() == LF) {
+            read();
+        }
+        return c == CR || c == LF;
+    }
+
+    private static boolean isStartOfLine(int c) {
+        return c == LF || c == CR || c == UNDEFINED;
+    }
+
+    private int nextToken() throws IOException {
+        tokenStart = position;
+        tokenEnd = position;
+        tokenCopied = false;
+        tokenSimple = false;
+        tokenReady = false;
+        scratchLength = 0;
+
+        int last = lastChar;
+        int c = read();
+        boolean eol = readEndOfLine(c);
+
+        if (ignoreEmptyLines) {
+            while (eol && isStartOfLine(last)) {
+                last = c;
+                c = read();
+                eol = readEndOfLine(c);
+                if (c == END_OF_STREAM) {
+                    return EOF;
+                }
+            }
+        }
+
+        if (last == END_OF_STREAM || last != delimiter && c == END_OF_STREAM) {
+            return EOF;
+        }
+
+        if (isStartOfLine(last) && c == commentMarker) {
+            return skipLine() ? COMMENT : EOF;
+        }
+
+        if (ignoreSurroundingSpaces) {
+            int length;
+            while (!eol && (length = whitespaceLength(c)) > 0) {
+                position += length - 1;
+                c = read();
+                eol = readEndOfLine(c);
+            }
+        }
+
+        if (c == delimiter) {
+            return TOKEN;
+        } else if (eol) {
+            return END_OF_RECORD;
+        } else if (c == quote) {
+            return parseQuotedToken();
+        } else if (c == END_OF_STREAM) {
+            tokenReady = true;
+            return EOF;
+        }
+
+        return parseSimpleToken(c);
+    }
+
+    /**
+     * Skips the rest of the line, returns false if there's nothing left to skip.
+     */
+    private boolean skipLine() {
+        if (position >= limit) {
+            lastChar = END_OF_STREAM;
+            return false;
+        }
+
+        int c;
+        do {
+            c = read();
+        } while (c != END_OF_STREAM && c != CR && c != LF);
+        readEndOfLine(c);
+
+        lastChar = LF;
+        return true;
+    }
+
+    private int parseSimpleToken(int c) throws IOException {
+        tokenStart = position - 1;
+        tokenSimple = true;
+
+        final int type;
+        while (true) {
+            if (c == CR || c == LF) {
+                tokenEnd = position - 1;
+                readEndOfLine(c);
+                type = END_OF_RECORD;
+                break;
+            } else if (c == END_OF_STREAM) {
+                tokenEnd = limit;
+                tokenReady = true;
+                type = EOF;
+                break;
+            } else if (c == delimiter) {
+                tokenEnd = position - 1;
+                type = TOKEN;
+                break;
+            } else if (c == escape) {
+                copyToken(position - 1);
+                readEscape();
+            } else if (tokenCopied) {
+                append(c);
+            }
+            c = read();
+        }
+
+        if (ignoreSurroundingSpaces && !tokenCopied) {
+            int length;
+            while (tokenEnd > tokenStart && (length = trailingWhitespaceLength(tokenStart, tokenEnd)) > 0) {
+                tokenEnd -= length;
+            }
+        }
+
+        return type;
+    }
+
+    private int parseQuotedToken() throws IOException {
+        tokenStart = position;
+        final long line = recordNumber + 1;
+
+        while (true) {
+            int c = read();
+            if (c == escape) {
+                copyToken(position - 1);
+                readEscape();
+            } else if (c == quote) {
+                if (lookAhead() == quote) {
+                    copyToken(position - 1);
+                    append(read());
+                } else {
+                    tokenEnd = position - 1;
+                    return parseAfterQuotedToken();
+                }
+            } else if (c == END_OF_STREAM) {
+                throw new IOException("(record " + line + ") EOF reached before encapsulated token finished");
+            } else if (tokenCopied) {
+                append(c);
+            }
+        }
+    }
+
+    private int parseAfterQuotedToken() throws IOException {
+        while (true) {
+            final int c = read();
+            if (c == delimiter) {
+                return TOKEN;
+            } else if (c == END_OF_STREAM) {
+                tokenReady = true;
+                return EOF;
+            } else if (readEndOfLine(c)) {
+                return END_OF_RECORD;
+            }
+
+            final int length = whitespaceLength(c);
+            if (length == 0) {
+                throw new IOException("(record " + (recordNumber + 1)
+                        + ") invalid char between encapsulated token and delimiter");
+            }
+            position += length - 1;
+        }
+    }
+
+    private void readEscape() throws IOException {
+        final int c = read();
+        switch (c) {
+            case 'r':
+                append(CR);
+                break;
+            case 'n':
+                append(LF);
+                break;
+            case 't':
+                append('\t');
+                break;
+            case 'b':
+                append('\b');
+                break;
+            case 'f':
+                append('\f');
+                break;
+            case CR:
+            case LF:
+            case '\t':
+            case '\b':
+            case '\f':
+                append(c);
+                break;
+            case END_OF_STREAM:
+                throw new IOException("EOF whilst processing escape sequence");
+            default:
+                if (c != delimiter && c != escape && c != quote && c != commentMarker) {
+                    // not an escape sequence, both characters are kept
+                    append(escape);
+                }
+                append(c);
+        }
+    }
+
+    /**
+     * Copies the content read so far to the scratch array, the rest of the token is appended to it.
+     */
+    private void copyToken(int end) {
+        if (tokenCopied) {
+            return;
+        }
+
+        tokenCopied = true;
+        scratchLength = 0;
+        ensureScratch(end - tokenStart);
+        source.limit(end).position(tokenStart);
+        source.get(scratch, 0, end - tokenStart);
+        scratchLength = end - tokenStart;
+    }
+
+    private void append(int c) {
+        ensureScratch(scratchLength + 1);
+        scratch[scratchLength++] = (byte) c;
+    }
+
+    private void ensureScratch(int length) {
+        if (length > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, length));
+        }
+    }
+
+    private void addValue(boolean lastInRecord) {
+        if (tokenCopied) {
+            String value = new String(scratch, 0, scratchLength, charset);
+            if (ignoreSurroundingSpaces && tokenSimple) {
+                value = trimTrailingSpaces(value);
+            }
+            if (trim) {
+                value = value.trim();
+            }
+            if (lastInRecord && trailingDelimiter && value.isEmpty()) {
+                return;
+            }
+
+            row.add(value);
+            return;
+        }
+
+        int start = tokenStart;
+        int end = tokenEnd;
+        if (trim) {
+            // same as String.trim(), bytes of multibyte characters are never that small
+            while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+                start++;
+            }
+            while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+                end--;
+            }
+        }
+        if (lastInRecord && trailingDelimiter && start == end) {
+            return;
+        }
+
+        row.add(start, end);
+    }
+
+    private static String trimTrailingSpaces(String value) {
+        int length = value.length();
+        while (length > 0 && Character.isWhitespace(value.charAt(length - 1))) {
+            length--;
+        }
+        return value.substring(0, length);
+    }
+
+    /**
+     * Length of the whitespace character which starts with the byte just read, 0 if it's not whitespace.
+     * Delimiter is never whitespace.
+     */
+    private int whitespaceLength(int c) {
+        if (c < 0x80) {
+            return c != delimiter && c >= 0 && Character.isWhitespace(c) ? 1 : 0;
+        }
+
+        return isMultibyteWhitespace(position - 1) ? 3 : 0;
+    }
+
+    /**
+     * Length of the whitespace character which ends right before the end, 0 if it's not whitespace.
+     */
+    private int trailingWhitespaceLength(int start, int end) {
+        final int c = buffer.get(end - 1) & 0xff;
+        if (c < 0x80) {
+            return Character.isWhitespace(c) ? 1 : 0;
+        }
+
+        return end - start >= 3 && isMultibyteWhitespace(end - 3) ? 3 : 0;
+    }
+
+    /**
+     * Whitespace outside of ASCII (e.g. ideographic space) takes three bytes in UTF-8, there isn't any
+     * in the other supported encodings.
+     */
+    private boolean isMultibyteWhitespace(int at) {
+        if (!utf8 || at + 3 > limit) {
+            return false;
+        }
+
+        final int b0 = buffer.get(at) & 0xff;
+        final int b1 = buffer.get(at + 1) & 0xff;
+        final int b2 = buffer.get(at + 2) & 0xff;
+        if (b0 < 0xe1 || b0 > 0xe3 || (b1 & 0xc0) != 0x80 || (b2 & 0xc0) != 0x80) {
+            return false;
+        }
+
+        return Character.isWhitespace(((b0 & 0x0f) << 12) | ((b1 & 0x3f) << 6) | (b2 & 0x3f));
+    }
+
+    private String decode(int start, int end) {
+        final int length = end - start;
+        if (length == 0) {
+            return "";
+        }
+
+        if (length > decodeBuffer.length) {
+            decodeBuffer = new byte[Math.max(decodeBuffer.length * 2, length)];
+        }
+        source.limit(end).position(start);
+        source.get(decodeBuffer, 0, length);
+
+        return new String(decodeBuffer, 0, length, charset);
+    }
+
+    /**
+     * Values are ranges of the mapped bytes, decoded once they are read for the first time.
+     */
+    private class Row implements CsvRow {
+
+        private int size = 0;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private String[] values = new String[16];
+        private long recordNumber;
+
+        private void clear() {
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        private void add(int start, int end) {
+            ensureCapacity();
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        private void add(String value) {
+            ensureCapacity();
+            values[size] = value;
+            size++;
+        }
+
+        private void ensureCapacity() {
+            if (size == values.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String get(int column) {
+            if (column < 0 || column >= size) {
+                throw new ArrayIndexOutOfBoundsException(column);
+            }
+
+            String value = values[column];
+            if (value == null) {
+                value = decode(starts[column], ends[column]);
+                values[column] = value;
+            }
+            return value;
+        }
+
+        @Override
+        public long getRecordNumber() {
+            return recordNumber;
+        }
+    }
+}
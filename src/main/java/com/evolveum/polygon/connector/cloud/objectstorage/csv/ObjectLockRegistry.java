@@ -0,0 +1,30 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * JVM wide read/write locks of CSV objects, keyed by {@link CloudStorageService#getObjectKey}. Writes of the same
+ * object are serialized, while writes of different objects and all reads can run in parallel.
+ *
+ * Readers don't take the read lock. They work with an {@link ObjectSnapshot} of one version of the object, which
+ * never changes once it's loaded, and a write replaces the object only as a whole when it's finished. So a reader
+ * sees either the old or the new version, never a partial write, the same as with writers on other nodes, which no
+ * lock of this JVM could hold off anyway. Locking readers would only make them wait for uploads of writers.
+ */
+public class ObjectLockRegistry {
+
+    private static final ObjectLockRegistry INSTANCE = new ObjectLockRegistry();
+
+    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+    public static ObjectLockRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public ReadWriteLock getLock(String key) {
+        return locks.computeIfAbsent(key, k -> new ReentrantReadWriteLock());
+    }
+}
@@ -0,0 +1,142 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.identityconnectors.common.logging.Log;
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local copy of one version of the CSV object.
+ *
+ * Snapshots are reference counted, every {@link #retain()} must be paired with {@link #release()}.
+ * Readers opened through {@link #openReader(String)} hold their own reference until they are closed,
+ * so a temporary file is deleted only after it's been replaced by a newer version and nobody reads it anymore.
+ */
+public class ObjectSnapshot {
+
+    private static final Log LOG = Log.getLog(ObjectSnapshot.class);
+
+    private final String version;
+    private final File file;
+    private final boolean temporary;
+
+    private int references = 1;
+
+    private final Map<String, SnapshotIndex> indexes = new HashMap<>();
+
+    public interface IndexBuilder {
+
+        SnapshotIndex build(ObjectSnapshot snapshot) throws IOException;
+    }
+
+    public ObjectSnapshot(String version, File file, boolean temporary) {
+        this.version = version;
+        this.file = file;
+        this.temporary = temporary;
+    }
+
+    /**
+     * Identifier of the object version this snapshot was made from, e.g. ETag of the S3 object.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return file.length();
+    }
+
+    /**
+     * Temporary snapshot is a copy owned by the snapshot, otherwise the file is the object itself.
+     */
+    public boolean isTemporary() {
+        return temporary;
+    }
+
+    public synchronized ObjectSnapshot retain() {
+        if (references <= 0) {
+            throw new IllegalStateException("Snapshot " + file + " was already released");
+        }
+        references++;
+
+        return this;
+    }
+
+    public synchronized void release() {
+        if (references <= 0) {
+            return;
+        }
+
+        references--;
+        if (references == 0 && temporary) {
+            LOG.ok("Deleting snapshot {0} of version {1}", file, version);
+            if (!file.delete()) {
+                LOG.warn("Couldn't delete snapshot file {0}", file);
+            }
+        }
+    }
+
+    /**
+     * Opens stream which holds its own reference to this snapshot until closed.
+     */
+    public InputStream openInputStream() throws IOException {
+        retain();
+        try {
+            return new FileInputStream(file) {
+
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!closed) {
+                            closed = true;
+                            release();
+                        }
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException ex) {
+            release();
+            throw ex;
+        }
+    }
+
+    public BufferedReader openReader(String encoding) throws IOException {
+        InputStream is = openInputStream();
+        try {
+            return new BufferedReader(new InputStreamReader(is, encoding));
+        } catch (IOException | RuntimeException ex) {
+            is.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns index of this snapshot built for the spec, building it first if needed. Index lives as long
+     * as the snapshot, so it's thrown away together with the version it was built from.
+     *
+     * @param spec describes everything the index depends on, e.g. CSV format and key columns
+     */
+    public SnapshotIndex getIndex(String spec, IndexBuilder builder) throws IOException {
+        synchronized (indexes) {
+            SnapshotIndex index = indexes.get(spec);
+            if (index == null) {
+                index = builder.build(this);
+                indexes.put(spec, index);
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectSnapshot{v=" + version + ", f=" + file + '}';
+    }
+}
@@ -0,0 +1,190 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.identityconnectors.common.logging.Log;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM wide cache of local CSV object snapshots. Connector instances are pooled, so all of them
+ * share the same snapshot of an object. There's at most one cached version per object, it's validated
+ * by the storage service (e.g. by ETag) before every use and replaced as soon as the object changes.
+ *
+ * Older versions are kept only if they are pinned, e.g. by paged search which has to read all pages from
+ * the same version.
+ */
+public class ObjectSnapshotCache {
+
+    private static final Log LOG = Log.getLog(ObjectSnapshotCache.class);
+
+    private static final ObjectSnapshotCache INSTANCE = new ObjectSnapshotCache();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Map<String, Pin> pins = new HashMap<>();
+
+    public interface SnapshotLoader {
+
+        /**
+         * Stores content of the object version into the file.
+         */
+        void load(File file) throws Exception;
+    }
+
+    private static class Entry {
+
+        private ObjectSnapshot snapshot;
+    }
+
+    private static class Pin {
+
+        private final ObjectSnapshot snapshot;
+        private final long timeout;
+        private long expires;
+
+        private Pin(ObjectSnapshot snapshot, long timeout) {
+            this.snapshot = snapshot;
+            this.timeout = timeout;
+            this.expires = System.currentTimeMillis() + timeout;
+        }
+    }
+
+    public static ObjectSnapshotCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns retained snapshot of the version, loading it first if the cached one is missing or older.
+     * Caller has to release the snapshot.
+     */
+    public ObjectSnapshot acquire(String key, String version, SnapshotLoader loader) throws Exception {
+        final Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+
+        synchronized (entry) {
+            if (entry.snapshot != null && Objects.equals(entry.snapshot.getVersion(), version)) {
+                LOG.ok("Using cached snapshot {0} for {1}", entry.snapshot, key);
+                return entry.snapshot.retain();
+            }
+
+            final File file = createSnapshotFile();
+            try {
+                loader.load(file);
+            } catch (Exception ex) {
+                Files.deleteIfExists(file.toPath());
+                throw ex;
+            }
+
+            LOG.ok("Loaded snapshot of version {0} for {1}, size {2}", version, key, file.length());
+            replace(entry, new ObjectSnapshot(version, file, true));
+
+            return entry.snapshot.retain();
+        }
+    }
+
+    /**
+     * Returns retained snapshot of the version if it's cached or pinned, null otherwise.
+     * Caller has to release the snapshot.
+     */
+    public ObjectSnapshot find(String key, String version) {
+        final Entry entry = entries.get(key);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.snapshot != null && Objects.equals(entry.snapshot.getVersion(), version)) {
+                    return entry.snapshot.retain();
+                }
+            }
+        }
+
+        synchronized (pins) {
+            expirePins();
+
+            final Pin pin = pins.get(key + "|" + version);
+            if (pin == null) {
+                return null;
+            }
+            pin.expires = System.currentTimeMillis() + pin.timeout;
+            return pin.snapshot.retain();
+        }
+    }
+
+    /**
+     * Keeps the snapshot available through {@link #find(String, String)} even after it's replaced by a newer
+     * version, until it's not looked up for the timeout. Only temporary snapshots can be pinned, other ones
+     * change together with the object.
+     */
+    public void pin(String key, ObjectSnapshot snapshot, long timeout) {
+        if (!snapshot.isTemporary()) {
+            return;
+        }
+
+        synchronized (pins) {
+            expirePins();
+
+            final String pinKey = key + "|" + snapshot.getVersion();
+            final Pin pin = pins.get(pinKey);
+            if (pin != null) {
+                pin.expires = System.currentTimeMillis() + timeout;
+                return;
+            }
+
+            pins.put(pinKey, new Pin(snapshot.retain(), timeout));
+        }
+    }
+
+    /**
+     * Stores file with already known content of the version as snapshot, file is owned by the cache afterwards.
+     */
+    public void install(String key, String version, File file) {
+        install(key, new ObjectSnapshot(version, file, true));
+    }
+
+    /**
+     * Stores the snapshot, the cache takes over one reference to it.
+     */
+    public void install(String key, ObjectSnapshot snapshot) {
+        final Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+
+        synchronized (entry) {
+            replace(entry, snapshot);
+        }
+    }
+
+    public void invalidate(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+
+        synchronized (entry) {
+            replace(entry, null);
+        }
+    }
+
+    public File createSnapshotFile() throws Exception {
+        return Files.createTempFile("csv-snapshot", ".csv").toFile();
+    }
+
+    private void expirePins() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Pin> iterator = pins.values().iterator();
+        while (iterator.hasNext()) {
+            final Pin pin = iterator.next();
+            if (pin.expires < now) {
+                LOG.ok("Unpinning snapshot {0}", pin.snapshot);
+                iterator.remove();
+                pin.snapshot.release();
+            }
+        }
+    }
+
+    private void replace(Entry entry, ObjectSnapshot snapshot) {
+        if (entry.snapshot != null) {
+            entry.snapshot.release();
+        }
+        entry.snapshot = snapshot;
+    }
+}
@@ -0,0 +1,36 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a conditional write finds the stored object in a different version than the one the
+ * written content was based on, i.e. somebody else changed it in the meantime.
+ */
+public class ObjectVersionConflictException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String expectedVersion;
+    private final String actualVersion;
+
+    public ObjectVersionConflictException(String key, String expectedVersion, String actualVersion) {
+        super("Object " + key + " was changed concurrently, expected version " + expectedVersion
+                + ", found " + actualVersion);
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    /**
+     * Null if the object wasn't expected to exist.
+     */
+    public String getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    /**
+     * Null if the object doesn't exist.
+     */
+    public String getActualVersion() {
+        return actualVersion;
+    }
+}
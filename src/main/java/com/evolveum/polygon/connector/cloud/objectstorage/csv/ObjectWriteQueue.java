@@ -0,0 +1,98 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.identityconnectors.common.logging.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * JVM wide group commit of CSV object writes. Writes submitted while the object is being written wait in the queue,
+ * the first one which gets the write lock of the object afterwards writes all writes waiting in the same group
+ * in one pass over the object. The other ones are notified once their write is finished.
+ *
+ * Group identifies writes which can be written together, e.g. writes of the same object with the same CSV format.
+ */
+public class ObjectWriteQueue {
+
+    private static final Log LOG = Log.getLog(ObjectWriteQueue.class);
+
+    private static final ObjectWriteQueue INSTANCE = new ObjectWriteQueue();
+
+    /**
+     * Waiting writes check the lock at least this often (ms), in case nobody wakes them up.
+     */
+    private static final long WAIT_TIMEOUT = 100;
+
+    private final Map<String, Queue<PendingWrite<?>>> queues = new ConcurrentHashMap<>();
+
+    public interface BatchWriter {
+
+        /**
+         * Writes all writes of the batch in one pass and completes them, writes which aren't completed
+         * fail with the exception thrown.
+         */
+        void write(List<PendingWrite<?>> batch) throws Exception;
+    }
+
+    public static ObjectWriteQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits until the write is written, either by this thread together with other waiting writes or by another
+     * thread, and returns its result.
+     */
+    public <T> T submit(String objectKey, String group, PendingWrite<T> write, BatchWriter writer) throws Exception {
+        final Queue<PendingWrite<?>> queue = queues.computeIfAbsent(group, k -> new ConcurrentLinkedQueue<>());
+        queue.add(write);
+
+        final Lock lock = ObjectLockRegistry.getInstance().getLock(objectKey).writeLock();
+        while (!write.isDone()) {
+            if (!lock.tryLock()) {
+                // whoever holds the lock wakes up the next write in the queue when it's done
+                write.await(WAIT_TIMEOUT);
+                continue;
+            }
+
+            try {
+                // writes are taken from the queue only under the lock, so unfinished write is still there
+                if (!write.isDone()) {
+                    writeBatch(objectKey, queue, writer);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            final PendingWrite<?> next = queue.peek();
+            if (next != null) {
+                next.wakeUp();
+            }
+        }
+
+        return write.get();
+    }
+
+    private void writeBatch(String objectKey, Queue<PendingWrite<?>> queue, BatchWriter writer) {
+        final List<PendingWrite<?>> batch = new ArrayList<>();
+        for (PendingWrite<?> pending = queue.poll(); pending != null; pending = queue.poll()) {
+            batch.add(pending);
+        }
+
+        LOG.ok("Writing batch of {0} writes of {1}", batch.size(), objectKey);
+        try {
+            writer.write(batch);
+        } catch (Exception ex) {
+            batch.forEach(pending -> pending.fail(ex));
+        } catch (Error error) {
+            // writes are no longer in the queue, their submitters would wait forever
+            batch.forEach(pending -> pending.fail(new IllegalStateException("Write failed", error)));
+            throw error;
+        } finally {
+            batch.forEach(pending -> pending.fail(new IllegalStateException("Write wasn't processed")));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+/**
+ * Write waiting in {@link ObjectWriteQueue} to be written together with other writes of the same object.
+ * It's completed with its own result or exception, independently of other writes in the same batch.
+ */
+public abstract class PendingWrite<T> {
+
+    private boolean done = false;
+    private boolean woken = false;
+    private T result;
+    private Exception failure;
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized void complete(T result) {
+        if (done) {
+            return;
+        }
+        this.result = result;
+        this.done = true;
+        notifyAll();
+    }
+
+    public synchronized void fail(Exception failure) {
+        if (done) {
+            return;
+        }
+        this.failure = failure;
+        this.done = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the write is done or the submitter is woken up to write it itself.
+     */
+    synchronized void await(long timeout) throws InterruptedException {
+        if (!done && !woken) {
+            wait(timeout);
+        }
+        woken = false;
+    }
+
+    synchronized void wakeUp() {
+        woken = true;
+        notifyAll();
+    }
+
+    /**
+     * Result of the write, or its exception rethrown.
+     */
+    public synchronized T get() throws Exception {
+        if (!done) {
+            throw new IllegalStateException("Write wasn't finished yet");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,138 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Column;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Role and attribute name of every column, resolved once for the header, so records can be mapped
+ * to connector objects without looking up the header and comparing column names again for every record.
+ */
+public class RowMapping {
+
+    public enum Role {
+
+        /**
+         * Unique attribute which isn't the name attribute.
+         */
+        UID,
+
+        /**
+         * Unique attribute which is also the name attribute.
+         */
+        UID_AND_NAME,
+
+        NAME,
+
+        PASSWORD,
+
+        ATTRIBUTE
+    }
+
+    private final String[] names;
+    private final Role[] roles;
+
+    public RowMapping(Map<String, Column> header, CloudCsvConfiguration configuration) {
+        int size = 0;
+        for (Column column : header.values()) {
+            size = Math.max(size, column.getIndex() + 1);
+        }
+
+        this.names = new String[size];
+        this.roles = new Role[size];
+
+        final boolean uidIsName = Objects.equals(configuration.getUniqueAttribute(), configuration.getNameAttribute());
+        for (Map.Entry<String, Column> entry : header.entrySet()) {
+            final int index = entry.getValue().getIndex();
+            if (index < 0) {
+                continue;
+            }
+
+            final String name = entry.getKey();
+            names[index] = name;
+
+            if (name.equalsIgnoreCase(configuration.getUniqueAttribute())) {
+                roles[index] = uidIsName ? Role.UID_AND_NAME : Role.UID;
+            } else if (name.equalsIgnoreCase(configuration.getNameAttribute())) {
+                roles[index] = Role.NAME;
+            } else if (name.equalsIgnoreCase(configuration.getPasswordAttribute())) {
+                roles[index] = Role.PASSWORD;
+            } else {
+                roles[index] = Role.ATTRIBUTE;
+            }
+        }
+    }
+
+    private RowMapping(String[] names, Role[] roles) {
+        this.names = names;
+        this.roles = roles;
+    }
+
+    /**
+     * Mapping of only the requested attributes, other columns are left out of the object without even looking
+     * at their values. Uid and name are always mapped, every connector object has to have them.
+     */
+    public RowMapping project(Collection<String> attributesToGet) {
+        final Set<String> requested = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        requested.addAll(attributesToGet);
+
+        final Role[] projected = new Role[roles.length];
+        for (int i = 0; i < roles.length; i++) {
+            if (roles[i] == null) {
+                continue;
+            }
+
+            switch (roles[i]) {
+                case PASSWORD:
+                    projected[i] = requested.contains(OperationalAttributes.PASSWORD_NAME) ? roles[i] : null;
+                    break;
+                case ATTRIBUTE:
+                    projected[i] = requested.contains(names[i]) ? roles[i] : null;
+                    break;
+                default:
+                    projected[i] = roles[i];
+            }
+        }
+
+        return new RowMapping(names, projected);
+    }
+
+    /**
+     * Number of columns in the header.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Attribute name of the column, null if the header doesn't have such column.
+     */
+    public String getName(int column) {
+        return column < names.length ? names[column] : null;
+    }
+
+    /**
+     * Role of the column, null if the header doesn't have such column or it isn't mapped.
+     */
+    public Role getRole(int column) {
+        return column < roles.length ? roles[column] : null;
+    }
+
+    /**
+     * Index of the last column with the name (ignoring case), that's the one which wins when record is mapped,
+     * or -1.
+     */
+    public int getColumnIndex(String name) {
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (names[i] != null && names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
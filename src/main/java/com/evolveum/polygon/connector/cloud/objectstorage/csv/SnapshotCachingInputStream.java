@@ -0,0 +1,132 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.identityconnectors.common.logging.Log;
+import java.io.*;
+import java.nio.file.Files;
+
+/**
+ * Keeps local copy of the object version while it's being read from the network. If the stream is read
+ * to the end, the copy is installed as snapshot of that version once the stream is closed.
+ */
+public class SnapshotCachingInputStream extends FilterInputStream {
+
+    private static final Log LOG = Log.getLog(SnapshotCachingInputStream.class);
+
+    private final String key;
+    private final String version;
+
+    private final File file;
+    private final OutputStream copy;
+
+    private boolean copyFailed = false;
+    private boolean eof = false;
+
+    private boolean closed = false;
+
+    public SnapshotCachingInputStream(InputStream in, String key, String version) throws Exception {
+        super(in);
+        this.key = key;
+        this.version = version;
+
+        this.file = ObjectSnapshotCache.getInstance().createSnapshotFile();
+        this.copy = new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            eof = true;
+        } else if (!copyFailed) {
+            try {
+                copy.write(b);
+            } catch (IOException ex) {
+                copyFailed(ex);
+            }
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count == -1) {
+            eof = true;
+        } else if (count > 0 && !copyFailed) {
+            try {
+                copy.write(b, off, count);
+            } catch (IOException ex) {
+                copyFailed(ex);
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped data has to end up in the copy too
+        final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean installed = false;
+        try {
+            try {
+                copy.close();
+            } catch (IOException ex) {
+                copyFailed(ex);
+            }
+
+            in.close();
+            if (eof && !copyFailed) {
+                ObjectSnapshotCache.getInstance().install(key, version, file);
+                installed = true;
+            }
+        } finally {
+            if (!installed) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException ex) {
+                    LOG.warn("Couldn't delete {0}, reason: {1}", file, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void copyFailed(IOException ex) {
+        LOG.warn("Couldn't write local copy {0} of {1}, reason: {2}", file, key, ex.getMessage());
+        copyFailed = true;
+    }
+}
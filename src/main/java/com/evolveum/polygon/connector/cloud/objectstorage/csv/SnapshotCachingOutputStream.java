@@ -0,0 +1,126 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.identityconnectors.common.logging.Log;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.function.Supplier;
+
+/**
+ * Keeps local copy of everything written to the target stream. Once the upload finishes, the copy
+ * is installed as snapshot of the new object version, so the next read doesn't have to download it again.
+ */
+public class SnapshotCachingOutputStream extends CloudObjectOutputStream {
+
+    private static final Log LOG = Log.getLog(SnapshotCachingOutputStream.class);
+
+    private final CloudObjectOutputStream target;
+    private final String key;
+    private final Supplier<String> version;
+
+    private final File file;
+    private final OutputStream copy;
+
+    private boolean copyFailed = false;
+
+    private boolean closed = false;
+
+    /**
+     * @param version provides version of the stored object, called after the target stream is closed
+     */
+    public SnapshotCachingOutputStream(CloudObjectOutputStream target, String key, Supplier<String> version)
+            throws Exception {
+        this.target = target;
+        this.key = key;
+        this.version = version;
+
+        this.file = ObjectSnapshotCache.getInstance().createSnapshotFile();
+        this.copy = new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (isAborted()) {
+            return;
+        }
+
+        target.write(b);
+        if (!copyFailed) {
+            try {
+                copy.write(b);
+            } catch (IOException ex) {
+                copyFailed(ex);
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (isAborted()) {
+            return;
+        }
+
+        target.write(b, off, len);
+        if (!copyFailed) {
+            try {
+                copy.write(b, off, len);
+            } catch (IOException ex) {
+                copyFailed(ex);
+            }
+        }
+    }
+
+    @Override
+    public void setPrecondition(Precondition precondition) {
+        target.setPrecondition(precondition);
+    }
+
+    @Override
+    public void abort() {
+        super.abort();
+        target.abort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean installed = false;
+        try {
+            try {
+                copy.close();
+            } catch (IOException ex) {
+                copyFailed(ex);
+            }
+
+            target.close();
+            if (isAborted() || target.isAborted()) {
+                return;
+            }
+
+            String newVersion = version.get();
+            if (!copyFailed && newVersion != null) {
+                ObjectSnapshotCache.getInstance().install(key, newVersion, file);
+                installed = true;
+            } else {
+                // we don't know what's stored now, next read has to check the object
+                ObjectSnapshotCache.getInstance().invalidate(key);
+            }
+        } finally {
+            if (!installed) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException ex) {
+                    LOG.warn("Couldn't delete {0}, reason: {1}", file, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void copyFailed(IOException ex) {
+        LOG.warn("Couldn't write local copy {0} of {1}, reason: {2}", file, key, ex.getMessage());
+        copyFailed = true;
+    }
+}
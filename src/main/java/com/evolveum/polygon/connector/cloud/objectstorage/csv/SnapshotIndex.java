@@ -0,0 +1,621 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.common.logging.Log;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+/**
+ * Index of records of one snapshot by values of its key columns. Keys are compared case-insensitively, same as
+ * {@link String#equalsIgnoreCase(String)}. Only positions of records are kept in memory, so lookup returns
+ * candidates which are parsed from the snapshot file again and have to be checked by the caller.
+ *
+ * Records are identified by their ordinal, the order of the record among indexed records of the snapshot.
+ * Reading starts at the nearest checkpoint which maps character position to byte offset in the file, so at most
+ * {@link #CHECKPOINT_INTERVAL} characters are decoded before the record.
+ *
+ * Position of a record is where the record itself starts, after comment lines which precede it.
+ */
+public class SnapshotIndex {
+
+    private static final Log LOG = Log.getLog(SnapshotIndex.class);
+
+    public static final int CHECKPOINT_INTERVAL = 16 * 1024;
+
+    private final File file;
+    private final Charset charset;
+
+    private final int size;
+    private final long[] positions;
+
+    private final long[] checkpointChars;
+    private final long[] checkpointBytes;
+
+    private final KeyTable[] keys;
+
+    private SnapshotIndex(File file, Charset charset, int size, long[] positions, long[] checkpointChars,
+                          long[] checkpointBytes, KeyTable[] keys) {
+        this.file = file;
+        this.charset = charset;
+        this.size = size;
+        this.positions = positions;
+        this.checkpointChars = checkpointChars;
+        this.checkpointBytes = checkpointBytes;
+        this.keys = keys;
+    }
+
+    /**
+     * Parses the snapshot and indexes all records, which aren't skipped, by values in the key columns.
+     * Column index -1 means the key isn't available, lookups by it never return anything.
+     */
+    public static SnapshotIndex build(ObjectSnapshot snapshot, String encoding, CSVFormat format,
+                                      Predicate<CSVRecord> skip, int... keyColumns) throws IOException {
+        final Charset charset = Charset.forName(encoding);
+
+        int size = 0;
+        long[] positions = new long[1024];
+        final int[][] hashes = new int[keyColumns.length][positions.length];
+        final boolean[][] present = new boolean[keyColumns.length][positions.length];
+
+        final PositionTrackingReader reader;
+        try (InputStream is = snapshot.openInputStream();
+             CommentSkipper comments = new CommentSkipper(format,
+                     () -> new InputStreamReader(snapshot.openInputStream(), newDecoder(charset)))) {
+            reader = new PositionTrackingReader(is, charset);
+            final CSVParser parser = format.parse(reader);
+            final Iterator<CSVRecord> iterator = parser.iterator();
+            while (iterator.hasNext()) {
+                final CSVRecord record = iterator.next();
+                // skipped records may have comments too, positions of the following ones depend on them
+                final long position = comments.locate(record);
+                if (skip.test(record)) {
+                    continue;
+                }
+
+                if (size == positions.length) {
+                    positions = Arrays.copyOf(positions, size * 2);
+                    for (int k = 0; k < keyColumns.length; k++) {
+                        hashes[k] = Arrays.copyOf(hashes[k], size * 2);
+                        present[k] = Arrays.copyOf(present[k], size * 2);
+                    }
+                }
+
+                positions[size] = position;
+                for (int k = 0; k < keyColumns.length; k++) {
+                    final int column = keyColumns[k];
+                    if (column < 0 || column >= record.size() || record.get(column) == null
+                            || record.get(column).isEmpty()) {
+                        continue;
+                    }
+                    hashes[k][size] = hash(record.get(column));
+                    present[k][size] = true;
+                }
+                size++;
+            }
+        }
+
+        final KeyTable[] keys = new KeyTable[keyColumns.length];
+        for (int k = 0; k < keyColumns.length; k++) {
+            keys[k] = new KeyTable(size, hashes[k], present[k]);
+        }
+
+        LOG.ok("Indexed {0} records of {1}, {2} checkpoints", size, snapshot, reader.checkpointCount);
+
+        return new SnapshotIndex(snapshot.getFile(), charset, size, positions,
+                Arrays.copyOf(reader.checkpointChars, reader.checkpointCount),
+                Arrays.copyOf(reader.checkpointBytes, reader.checkpointCount), keys);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Ordinals of records which may have the value in the key column, in the order of the file.
+     */
+    public int[] find(int key, String value) {
+        if (value == null || value.isEmpty()) {
+            return new int[0];
+        }
+
+        final int[] ordinals = keys[key].find(hash(value));
+        Arrays.sort(ordinals);
+        return ordinals;
+    }
+
+    /**
+     * Parses the record with the ordinal. Snapshot has to be retained while reading.
+     */
+    public CSVRecord readRecord(int ordinal, CSVFormat format) throws IOException {
+        try (Reader reader = openReader(positions[ordinal])) {
+            final Iterator<CSVRecord> iterator = format.parse(reader).iterator();
+            if (!iterator.hasNext()) {
+                throw new EOFException("No record at " + positions[ordinal] + " in " + file);
+            }
+            return iterator.next();
+        }
+    }
+
+    /**
+     * Parses the record with the ordinal together with the range of bytes it takes in the snapshot file, which ends
+     * where the next record starts. Snapshot has to be retained while reading.
+     */
+    public RawRecord readRawRecord(int ordinal, CSVFormat format) throws IOException {
+        final long position = positions[ordinal];
+
+        final CSVRecord record;
+        final long end;
+        try (Reader reader = openReader(position)) {
+            final Iterator<CSVRecord> iterator = format.parse(reader).iterator();
+            if (!iterator.hasNext()) {
+                throw new EOFException("No record at " + position + " in " + file);
+            }
+            record = iterator.next();
+            // positions of records parsed from the middle of the file are relative to the start
+            end = iterator.hasNext() ? position + iterator.next().getCharacterPosition() : -1;
+        }
+
+        // empty lines before the record are reported as part of it, but they belong to the bytes between records
+        final long start = format.getIgnoreEmptyLines() ? skipLineBreaks(position) : position;
+
+        return new RawRecord(record, getByteOffset(start), end >= 0 ? getByteOffset(end) : file.length());
+    }
+
+    private long skipLineBreaks(long position) throws IOException {
+        try (Reader reader = openReader(position)) {
+            int c = reader.read();
+            while (c == '\n' || c == '\r') {
+                position++;
+                c = reader.read();
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Opens cursor over indexed records starting with the ordinal, records skipped when the index was built
+     * are skipped by the cursor as well. Snapshot has to be retained until the cursor is closed.
+     */
+    public Cursor openCursor(int ordinal, CSVFormat format) throws IOException {
+        if (ordinal >= size) {
+            return new Cursor(null, format, size);
+        }
+
+        final Reader reader = openReader(positions[ordinal]);
+        try {
+            return new Cursor(format.parse(reader), format, ordinal);
+        } catch (IOException | RuntimeException ex) {
+            reader.close();
+            throw ex;
+        }
+    }
+
+    private Reader openReader(long position) throws IOException {
+        int checkpoint = Arrays.binarySearch(checkpointChars, position);
+        if (checkpoint < 0) {
+            checkpoint = -checkpoint - 2;
+        }
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            channel.position(checkpointBytes[checkpoint]);
+
+            final Reader reader = new BufferedReader(Channels.newReader(channel, newDecoder(charset), -1));
+            long skip = position - checkpointChars[checkpoint];
+            while (skip > 0) {
+                long skipped = reader.skip(skip);
+                if (skipped <= 0) {
+                    throw new EOFException("Record at " + position + " is beyond the end of " + file);
+                }
+                skip -= skipped;
+            }
+            return reader;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Byte offset in the file where the character at the position starts, decoding starts at the nearest checkpoint.
+     */
+    private long getByteOffset(long position) throws IOException {
+        int checkpoint = Arrays.binarySearch(checkpointChars, position);
+        if (checkpoint < 0) {
+            checkpoint = -checkpoint - 2;
+        }
+
+        long offset = checkpointBytes[checkpoint];
+        long remaining = position - checkpointChars[checkpoint];
+        if (remaining == 0) {
+            return offset;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(offset);
+
+            final CharsetDecoder decoder = newDecoder(charset);
+            final ByteBuffer bytes = ByteBuffer.allocate(8192);
+            final CharBuffer chars = CharBuffer.allocate(8192);
+            bytes.flip();
+
+            while (remaining > 0) {
+                chars.clear();
+                chars.limit((int) Math.min(chars.capacity(), remaining));
+
+                final int before = bytes.position();
+                final CoderResult result = decoder.decode(bytes, chars, false);
+                offset += bytes.position() - before;
+                remaining -= chars.position();
+
+                if (remaining > 0 && result.isUnderflow()) {
+                    bytes.compact();
+                    final int count = channel.read(bytes);
+                    bytes.flip();
+                    if (count < 0) {
+                        throw new EOFException("Position " + position + " is beyond the end of " + file);
+                    }
+                } else if (result.isOverflow() && chars.position() == 0) {
+                    throw new IOException("Position " + position + " is not at character boundary in " + file);
+                }
+            }
+        }
+
+        return offset;
+    }
+
+    /**
+     * Reads indexed records one after another, parsing continues from the position of the first one.
+     */
+    public class Cursor implements Closeable {
+
+        private final CSVParser parser;
+        private final Iterator<CSVRecord> iterator;
+        private final long start;
+        private final CommentSkipper comments;
+
+        private int next;
+
+        private Cursor(CSVParser parser, CSVFormat format, int ordinal) {
+            this.parser = parser;
+            this.iterator = parser != null ? parser.iterator() : null;
+            this.start = ordinal < size ? positions[ordinal] : 0;
+            this.comments = parser != null ? new CommentSkipper(format, () -> openReader(start)) : null;
+            this.next = ordinal;
+        }
+
+        /**
+         * Ordinal of the record {@link #next()} returns.
+         */
+        public int getOrdinal() {
+            return next;
+        }
+
+        /**
+         * Next indexed record, null at the end of the snapshot.
+         */
+        public CSVRecord next() throws IOException {
+            while (next < size && iterator.hasNext()) {
+                final CSVRecord record = iterator.next();
+                // positions of records parsed from the middle of the file are relative to the start
+                final long position = start + comments.locate(record);
+                if (position < positions[next]) {
+                    continue;
+                }
+
+                next++;
+                return record;
+            }
+
+            next = size;
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (parser != null) {
+                comments.close();
+                parser.close();
+            }
+        }
+    }
+
+    /**
+     * Corrects positions of records reported by the parser. Commons CSV doesn't count characters of comment lines
+     * (except the comment marker), so positions of all records after a comment are shifted, and position of a record
+     * with comments points at its first comment line. Comment lines are measured by reading the same characters
+     * again, that's done only if there are any comments.
+     */
+    private static class CommentSkipper implements Closeable {
+
+        interface ReaderSupplier {
+
+            Reader open() throws IOException;
+        }
+
+        private final Character commentMarker;
+        private final boolean ignoreEmptyLines;
+        private final ReaderSupplier supplier;
+
+        private Reader reader;
+        private long position = 0;
+        private int lookahead = -2;
+
+        private long shift = 0;
+
+        CommentSkipper(CSVFormat format, ReaderSupplier supplier) {
+            this.commentMarker = format.getCommentMarker();
+            this.ignoreEmptyLines = format.getIgnoreEmptyLines();
+            this.supplier = supplier;
+        }
+
+        /**
+         * Position where the record itself starts, relative to the start of the parsed characters.
+         */
+        long locate(CSVRecord record) throws IOException {
+            final long reported = record.getCharacterPosition() + shift;
+            if (record.getComment() == null || commentMarker == null) {
+                return reported;
+            }
+
+            skip(reported - position);
+            while (true) {
+                final int c = peek();
+                if (c == commentMarker) {
+                    // only the marker was counted
+                    shift += skipLine() - 1;
+                } else if (ignoreEmptyLines && (c == '\n' || c == '\r')) {
+                    skipLine();
+                } else {
+                    return position;
+                }
+            }
+        }
+
+        private int peek() throws IOException {
+            if (lookahead == -2) {
+                if (reader == null) {
+                    reader = new BufferedReader(supplier.open());
+                }
+                lookahead = reader.read();
+            }
+            return lookahead;
+        }
+
+        private int read() throws IOException {
+            final int c = peek();
+            if (c >= 0) {
+                lookahead = -2;
+                position++;
+            }
+            return c;
+        }
+
+        private void skip(long count) throws IOException {
+            for (long i = 0; i < count; i++) {
+                if (read() < 0) {
+                    throw new EOFException("Record position is beyond the end of the file");
+                }
+            }
+        }
+
+        /**
+         * Skips rest of the line including its line break, returns number of characters skipped.
+         */
+        private long skipLine() throws IOException {
+            final long from = position;
+            int c = read();
+            while (c >= 0 && c != '\n' && c != '\r') {
+                c = read();
+            }
+            if (c == '\r' && peek() == '\n') {
+                read();
+            }
+            return position - from;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Record and the range of bytes [start, end) it takes in the snapshot file.
+     */
+    public static class RawRecord {
+
+        private final CSVRecord record;
+        private final long start;
+        private final long end;
+
+        private RawRecord(CSVRecord record, long start, long end) {
+            this.record = record;
+            this.start = start;
+            this.end = end;
+        }
+
+        public CSVRecord getRecord() {
+            return record;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+    }
+
+    /**
+     * Hash of the value folded the same way {@link String#equalsIgnoreCase(String)} compares characters.
+     */
+    private static int hash(String value) {
+        int h = 0;
+        for (int i = 0; i < value.length(); i++) {
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(value.charAt(i)));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Chained hash table over record ordinals, heads and links are plain int arrays to keep it compact.
+     */
+    private static class KeyTable {
+
+        private final int[] heads;
+        private final int[] next;
+        private final int[] hashes;
+        private final int mask;
+
+        KeyTable(int size, int[] hashes, boolean[] present) {
+            int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+            this.heads = new int[capacity];
+            this.next = new int[size];
+            this.hashes = hashes;
+            this.mask = capacity - 1;
+
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                if (!present[ordinal]) {
+                    continue;
+                }
+                int bucket = hashes[ordinal] & mask;
+                // 0 marks end of chain, ordinals are stored incremented
+                next[ordinal] = heads[bucket];
+                heads[bucket] = ordinal + 1;
+            }
+        }
+
+        int[] find(int hash) {
+            int[] result = new int[4];
+            int count = 0;
+            for (int entry = heads[hash & mask]; entry != 0; entry = next[entry - 1]) {
+                if (hashes[entry - 1] != hash) {
+                    continue;
+                }
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = entry - 1;
+            }
+            return Arrays.copyOf(result, count);
+        }
+    }
+
+    /**
+     * Decodes the stream and remembers where in the byte stream every {@link #CHECKPOINT_INTERVAL} characters start.
+     */
+    private static class PositionTrackingReader extends Reader {
+
+        private final InputStream in;
+        private final CharsetDecoder decoder;
+
+        private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+        private final CharBuffer chars = CharBuffer.allocate(8192);
+
+        private long bytePosition = 0;
+        private long charPosition = 0;
+
+        private boolean needInput = true;
+        private boolean eof = false;
+        private boolean finished = false;
+
+        private long[] checkpointChars = new long[16];
+        private long[] checkpointBytes = new long[16];
+        private int checkpointCount = 0;
+
+        PositionTrackingReader(InputStream in, Charset charset) {
+            this.in = in;
+            this.decoder = newDecoder(charset);
+            this.bytes.flip();
+            this.chars.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!chars.hasRemaining() && !fill()) {
+                return -1;
+            }
+
+            int count = Math.min(len, chars.remaining());
+            chars.get(cbuf, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            // all decoded characters were read, so decoder consumed exactly the bytes for them
+            if (checkpointCount == 0 || charPosition - checkpointChars[checkpointCount - 1] >= CHECKPOINT_INTERVAL) {
+                addCheckpoint();
+            }
+
+            chars.clear();
+            while (chars.position() == 0 && !finished) {
+                if (needInput && !eof) {
+                    bytes.compact();
+                    int count = in.read(bytes.array(), bytes.position(), bytes.remaining());
+                    if (count < 0) {
+                        eof = true;
+                    } else {
+                        bytes.position(bytes.position() + count);
+                    }
+                    bytes.flip();
+                }
+
+                int before = bytes.position();
+                CoderResult result = decoder.decode(bytes, chars, eof);
+                bytePosition += bytes.position() - before;
+                needInput = result.isUnderflow();
+
+                if (eof && result.isUnderflow()) {
+                    decoder.flush(chars);
+                    finished = true;
+                }
+            }
+            chars.flip();
+            charPosition += chars.remaining();
+
+            return chars.hasRemaining();
+        }
+
+        private void addCheckpoint() {
+            if (checkpointCount == checkpointChars.length) {
+                checkpointChars = Arrays.copyOf(checkpointChars, checkpointCount * 2);
+                checkpointBytes = Arrays.copyOf(checkpointBytes, checkpointCount * 2);
+            }
+            checkpointChars[checkpointCount] = charPosition;
+            checkpointBytes[checkpointCount] = bytePosition;
+            checkpointCount++;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.csv.QuoteMode;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Diff of two versions of the CSV object which doesn't keep either of them in memory. Records of both versions
+ * are sorted by uid using files on local disk (sorted runs of bounded size merged together), then both sorted
+ * streams are joined in one pass. Deltas are reported in the order of uids.
+ */
+public class SortedSyncDiff {
+
+    private static final Log LOG = Log.getLog(SortedSyncDiff.class);
+
+    /**
+     * Estimated memory taken by records of one sorted run, bytes.
+     */
+    public static final long DEFAULT_RUN_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Estimated memory taken by a record besides its values and by a value besides its characters.
+     */
+    private static final int RECORD_OVERHEAD = 64;
+    private static final int VALUE_OVERHEAD = 40;
+
+    /**
+     * At most this many runs are merged at once, more of them are first merged into bigger runs.
+     */
+    private static final int MAX_MERGED_RUNS = 64;
+
+    /**
+     * Records in run files are printed with all values quoted and without comments, whatever the format
+     * of the CSV object is, so they are parsed back with exactly the same values.
+     */
+    private static final CSVFormat RUN_FORMAT = CSVFormat.DEFAULT
+            .withQuoteMode(QuoteMode.ALL)
+            .withRecordSeparator('\n');
+
+    public interface DeltaHandler {
+
+        /**
+         * Old record is passed only with UPDATE. Returns false to stop the diff.
+         */
+        boolean handle(SyncDeltaType type, CSVRecord record, CSVRecord oldRecord);
+    }
+
+    private final CSVFormat format;
+    private final int uidColumn;
+    private final Predicate<CSVRecord> skip;
+    private final long runSize;
+
+    /**
+     * @param skip records which aren't diffed, e.g. header
+     */
+    public SortedSyncDiff(CSVFormat format, int uidColumn, Predicate<CSVRecord> skip, long runSize) {
+        this.format = format;
+        this.uidColumn = uidColumn;
+        this.skip = skip;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Reports CREATE and UPDATE with the new record and DELETE with the old record, returns number of deltas
+     * reported.
+     */
+    public int diff(File oldCsv, File newCsv, String encoding, DeltaHandler handler) throws IOException {
+        int changes = 0;
+        try (SortedRecords oldRecords = sort(oldCsv, encoding, true);
+             SortedRecords newRecords = sort(newCsv, encoding, false)) {
+
+            CSVRecord oldRecord = oldRecords.next();
+            CSVRecord newRecord = newRecords.next();
+            while (oldRecord != null || newRecord != null) {
+                final int result = oldRecord == null ? 1
+                        : newRecord == null ? -1 : getUid(oldRecord).compareTo(getUid(newRecord));
+
+                final boolean shouldContinue;
+                if (result < 0) {
+                    changes++;
+                    shouldContinue = handler.handle(SyncDeltaType.DELETE, oldRecord, null);
+                    oldRecord = oldRecords.next();
+                } else if (result > 0) {
+                    changes++;
+                    shouldContinue = handler.handle(SyncDeltaType.CREATE, newRecord, null);
+                    newRecord = newRecords.next();
+                } else {
+                    if (SyncHashIndex.hash(oldRecord) != SyncHashIndex.hash(newRecord)) {
+                        changes++;
+                        shouldContinue = handler.handle(SyncDeltaType.UPDATE, newRecord, oldRecord);
+                    } else {
+                        shouldContinue = true;
+                    }
+                    oldRecord = oldRecords.next();
+                    newRecord = newRecords.next();
+                }
+
+                if (!shouldContinue) {
+                    break;
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    private String getUid(CSVRecord record) {
+        return record.get(uidColumn);
+    }
+
+    /**
+     * Splits records of the file into sorted runs, runs which don't fit into memory are written to local files.
+     */
+    private SortedRecords sort(File csv, String encoding, boolean unique) throws IOException {
+        final List<File> runs = new ArrayList<>();
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), encoding))) {
+            final List<CSVRecord> run = new ArrayList<>();
+            long size = 0;
+
+            for (CSVRecord record : format.parse(reader)) {
+                if (skip.test(record)) {
+                    continue;
+                }
+
+                if (uidColumn >= record.size() || StringUtil.isEmpty(getUid(record))) {
+                    throw new ConnectorException("Unique attribute not defined for record number "
+                            + record.getRecordNumber() + " in " + csv.getName());
+                }
+
+                run.add(record);
+                size += RECORD_OVERHEAD;
+                for (String value : record) {
+                    size += 2L * value.length() + VALUE_OVERHEAD;
+                }
+
+                if (size >= runSize) {
+                    runs.add(writeRun(run));
+                    run.clear();
+                    size = 0;
+                }
+            }
+
+            if (runs.isEmpty()) {
+                // everything fits into memory
+                run.sort(Comparator.comparing(this::getUid));
+                return new SortedRecords(run.iterator(), Collections.emptyList(), csv.getName(), unique);
+            }
+
+            if (!run.isEmpty()) {
+                runs.add(writeRun(run));
+            }
+
+            while (runs.size() > MAX_MERGED_RUNS) {
+                final List<File> merged = new ArrayList<>(runs.subList(0, MAX_MERGED_RUNS));
+                runs.subList(0, MAX_MERGED_RUNS).clear();
+                runs.add(mergeRuns(merged));
+            }
+
+            LOG.ok("Sorted {0} into {1} runs", csv.getName(), runs.size());
+            return new SortedRecords(new RunMerger(runs), runs, csv.getName(), unique);
+        } catch (IOException | RuntimeException ex) {
+            deleteRuns(runs);
+            throw ex;
+        }
+    }
+
+    private File writeRun(List<CSVRecord> run) throws IOException {
+        run.sort(Comparator.comparing(this::getUid));
+
+        final File file = Files.createTempFile("csv-sync", ".run").toFile();
+        try (CSVPrinter printer = RUN_FORMAT.print(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            for (CSVRecord record : run) {
+                printer.printRecord(record);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file.toPath());
+            throw ex;
+        }
+
+        return file;
+    }
+
+    private File mergeRuns(List<File> runs) throws IOException {
+        final File file = Files.createTempFile("csv-sync", ".run").toFile();
+        try (RunMerger merger = new RunMerger(runs);
+             CSVPrinter printer = RUN_FORMAT.print(new BufferedWriter(
+                     new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            while (merger.hasNext()) {
+                printer.printRecord(merger.next());
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file.toPath());
+            throw ex;
+        } finally {
+            deleteRuns(runs);
+        }
+
+        return file;
+    }
+
+    private static void deleteRuns(List<File> runs) {
+        for (File run : runs) {
+            if (!run.delete() && run.exists()) {
+                LOG.warn("Couldn't delete sort run {0}", run);
+            }
+        }
+    }
+
+    /**
+     * Records of all runs in the order of uids, the smallest current record of all runs goes first.
+     */
+    private class RunMerger implements Iterator<CSVRecord>, Closeable {
+
+        private final List<Reader> readers = new ArrayList<>();
+        private final PriorityQueue<RunCursor> queue = new PriorityQueue<>(
+                Comparator.comparing((RunCursor cursor) -> getUid(cursor.current)));
+
+        private RunMerger(List<File> runs) throws IOException {
+            try {
+                for (File run : runs) {
+                    final Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(run),
+                            StandardCharsets.UTF_8));
+                    readers.add(reader);
+
+                    final RunCursor cursor = new RunCursor(RUN_FORMAT.parse(reader).iterator());
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public CSVRecord next() {
+            final RunCursor cursor = queue.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+
+            final CSVRecord record = cursor.current;
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+            return record;
+        }
+
+        @Override
+        public void close() {
+            readers.forEach(reader -> {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    // nothing was written
+                }
+            });
+        }
+    }
+
+    private static class RunCursor {
+
+        private final Iterator<CSVRecord> records;
+        private CSVRecord current;
+
+        private RunCursor(Iterator<CSVRecord> records) {
+            this.records = records;
+        }
+
+        private boolean advance() {
+            current = records.hasNext() ? records.next() : null;
+            return current != null;
+        }
+    }
+
+    /**
+     * Sorted records of one version, run files are deleted once it's closed.
+     */
+    private class SortedRecords implements Closeable {
+
+        private final Iterator<CSVRecord> records;
+        private final List<File> runs;
+        private final String source;
+        private final boolean unique;
+
+        private String previousUid;
+
+        private SortedRecords(Iterator<CSVRecord> records, List<File> runs, String source, boolean unique) {
+            this.records = records;
+            this.runs = runs;
+            this.source = source;
+            this.unique = unique;
+        }
+
+        /**
+         * Next record, null at the end.
+         */
+        private CSVRecord next() {
+            if (!records.hasNext()) {
+                return null;
+            }
+
+            final CSVRecord record = records.next();
+            final String uid = getUid(record);
+            if (unique && uid.equals(previousUid)) {
+                throw new ConnectorException("Unique attribute value '" + uid + "' is not unique in " + source);
+            }
+            previousUid = uid;
+
+            return record;
+        }
+
+        @Override
+        public void close() {
+            if (records instanceof Closeable) {
+                Util.closeQuietly((Closeable) records);
+            }
+            deleteRuns(runs);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact form of a sync snapshot, uid of every record with a 64-bit hash of all its values. Records are sorted
+ * by hash of their uid, uids are kept as UTF-8 bytes packed in one array, so looking up a uid is a binary search
+ * over primitive array and there's no object per record. Records are compared by the hash only, full records are
+ * read just for the changed ones.
+ */
+public class SyncHashIndex {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Mixed in after every value and for null value, outside of the char range so they can't clash with content.
+     */
+    private static final int VALUE_END = 0x10000;
+    private static final int NULL_VALUE = 0x10001;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final long[] keys;
+    private final byte[] uids;
+    private final int[] offsets;
+    private final long[] hashes;
+
+    private SyncHashIndex(long[] keys, byte[] uids, int[] offsets, long[] hashes) {
+        this.keys = keys;
+        this.uids = uids;
+        this.offsets = offsets;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Hash of all values of the record, records with the same values in the same columns have the same hash.
+     */
+    public static long hash(CSVRecord record) {
+        return hash(CsvRow.of(record));
+    }
+
+    /**
+     * Same hash as {@link #hash(CSVRecord)} computed over views of the values, no value has to be a string.
+     */
+    public static long hash(CsvRow record) {
+        long hash = FNV_OFFSET;
+        for (int column = 0; column < record.size(); column++) {
+            final CharSequence value = record.getView(column);
+            if (value == null) {
+                hash = mix(hash, NULL_VALUE);
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    hash = mix(hash, value.charAt(i));
+                }
+            }
+            hash = mix(hash, VALUE_END);
+        }
+
+        return finish(hash);
+    }
+
+    private static long hash(byte[] bytes, int from, int to) {
+        long hash = FNV_OFFSET;
+        for (int i = from; i < to; i++) {
+            hash = mix(hash, bytes[i] & 0xff);
+        }
+
+        return finish(hash);
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    /**
+     * Spreads bits of the last values over the whole hash (murmur3 finalizer).
+     */
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    /**
+     * Ordinal of the uid, -1 if there's no record with it.
+     */
+    public int find(String uid) {
+        final byte[] bytes = uid.getBytes(StandardCharsets.UTF_8);
+        final long key = hash(bytes, 0, bytes.length);
+
+        int ordinal = Arrays.binarySearch(keys, key);
+        if (ordinal < 0) {
+            return -1;
+        }
+
+        // different uids may have the same hash, all of them are next to each other
+        while (ordinal > 0 && keys[ordinal - 1] == key) {
+            ordinal--;
+        }
+        for (; ordinal < keys.length && keys[ordinal] == key; ordinal++) {
+            if (equals(uids, offsets[ordinal], offsets[ordinal + 1], bytes, 0, bytes.length)) {
+                return ordinal;
+            }
+        }
+
+        return -1;
+    }
+
+    public String getUid(int ordinal) {
+        return new String(uids, offsets[ordinal], offsets[ordinal + 1] - offsets[ordinal], StandardCharsets.UTF_8);
+    }
+
+    public long getHash(int ordinal) {
+        return hashes[ordinal];
+    }
+
+    private static boolean equals(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+        if (aTo - aFrom != bTo - bFrom) {
+            return false;
+        }
+        for (int i = 0; i < aTo - aFrom; i++) {
+            if (a[aFrom + i] != b[bFrom + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects uids and hashes of records in any order, they are sorted once all of them are added.
+     */
+    public static class Builder {
+
+        private long[] keys = new long[256];
+        private byte[] uids = new byte[4096];
+        private int[] offsets = new int[257];
+        private long[] hashes = new long[256];
+        private int size = 0;
+
+        public void add(String uid, long hash) {
+            final byte[] bytes = uid.getBytes(StandardCharsets.UTF_8);
+            if (size == hashes.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2 + 1);
+            }
+
+            final int offset = offsets[size];
+            if (offset + bytes.length > uids.length) {
+                uids = Arrays.copyOf(uids, Math.max(uids.length * 2, offset + bytes.length));
+            }
+
+            System.arraycopy(bytes, 0, uids, offset, bytes.length);
+            keys[size] = SyncHashIndex.hash(bytes, 0, bytes.length);
+            hashes[size] = hash;
+            offsets[size + 1] = offset + bytes.length;
+            size++;
+        }
+
+        /**
+         * @param source name used in the error message if some uid was added more than once
+         */
+        public SyncHashIndex build(String source) {
+            final long[] sortedKeys = Arrays.copyOf(keys, size);
+            final int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            // keys are moved together with the record indexes, so sorting doesn't jump around the other arrays
+            sort(sortedKeys, order, 0, size - 1);
+
+            final byte[] sortedUids = new byte[offsets[size]];
+            final int[] sortedOffsets = new int[size + 1];
+            final long[] sortedHashes = new long[size];
+            for (int i = 0; i < size; i++) {
+                final int from = offsets[order[i]];
+                final int length = offsets[order[i] + 1] - from;
+
+                for (int j = i - 1; j >= 0 && sortedKeys[j] == sortedKeys[i]; j--) {
+                    if (SyncHashIndex.equals(sortedUids, sortedOffsets[j], sortedOffsets[j + 1],
+                            uids, from, from + length)) {
+                        throw new ConnectorException("Unique attribute value '"
+                                + new String(uids, from, length, StandardCharsets.UTF_8) + "' is not unique in "
+                                + source);
+                    }
+                }
+
+                System.arraycopy(uids, from, sortedUids, sortedOffsets[i], length);
+                sortedOffsets[i + 1] = sortedOffsets[i] + length;
+                sortedHashes[i] = hashes[order[i]];
+            }
+
+            return new SyncHashIndex(sortedKeys, sortedUids, sortedOffsets, sortedHashes);
+        }
+
+        /**
+         * Quicksort of the keys which swaps record indexes along, there's no such sort for primitive arrays.
+         */
+        private static void sort(long[] keys, int[] order, int from, int to) {
+            while (to - from >= INSERTION_SORT_THRESHOLD) {
+                final long pivot = keys[(from + to) >>> 1];
+
+                int i = from;
+                int j = to;
+                while (i <= j) {
+                    while (keys[i] < pivot) {
+                        i++;
+                    }
+                    while (keys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(keys, order, i++, j--);
+                    }
+                }
+
+                // recursion into the smaller part keeps the stack depth logarithmic
+                if (j - from < to - i) {
+                    sort(keys, order, from, j);
+                    from = i;
+                } else {
+                    sort(keys, order, i, to);
+                    to = j;
+                }
+            }
+
+            for (int i = from + 1; i <= to; i++) {
+                for (int j = i; j > from && keys[j - 1] > keys[j]; j--) {
+                    swap(keys, order, j - 1, j);
+                }
+            }
+        }
+
+        private static void swap(long[] keys, int[] order, int i, int j) {
+            final long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+
+            final int index = order[i];
+            order[i] = order[j];
+            order[j] = index;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.local;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudStorageService;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshot;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshotCache;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.SnapshotCachingOutputStream;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provider storing objects as files in a local or mounted (e.g. NFS) directory, the bucket name is path
+ * of the directory. Object names containing '/' are files in subdirectories.
+ *
+ * Files are never changed in place. Writes go to a temporary file next to the target, which then replaces
+ * the target by atomic rename, so readers see either the old or the new content. Version of an object is derived
+ * from the file identity, modification time and size, a renamed file has a new identity. Files are renamed
+ * while holding a lock of the object, both within the JVM and as a file lock for other processes sharing
+ * the directory, conditional writes compare the version under the same lock.
+ *
+ * Reads copy the file to a local snapshot through memory mapped buffers, the snapshot is reused while the version
+ * doesn't change.
+ */
+public class FileSystemStorageService extends CloudStorageService {
+
+    private static final Log LOG = Log.getLog(FileSystemStorageService.class);
+
+    private static final int SNAPSHOT_LOAD_ATTEMPTS = 3;
+
+    /**
+     * Files starting with this prefix are temporary files and locks, they aren't listed as objects.
+     */
+    private static final String HIDDEN_PREFIX = ".";
+
+    private static final String TEMP_SUFFIX = ".upload";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /**
+     * Size of the file region mapped at once while copying.
+     */
+    private static final long MAPPED_REGION_SIZE = 64L * 1024 * 1024;
+
+    private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path root;
+
+    public FileSystemStorageService(final CloudCsvConfiguration config) {
+        if (config.getBucketName() == null || config.getBucketName().isEmpty()) {
+            throw new ConfigurationException("Bucket name has to be path of the directory for filesystem provider");
+        }
+        this.root = Paths.get(config.getBucketName()).toAbsolutePath().normalize();
+    }
+
+    private Path resolve(final String name) {
+        final Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            throw new ConfigurationException("Object name '" + name + "' is outside of directory " + root);
+        }
+        return path;
+    }
+
+    /**
+     * Version of the file, null if it doesn't exist.
+     */
+    private static String getVersion(Path path) throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+
+        final StringBuilder version = new StringBuilder();
+        version.append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)).append('-').append(attributes.size());
+        if (attributes.fileKey() != null) {
+            version.append('-').append(attributes.fileKey());
+        }
+        return version.toString();
+    }
+
+    /**
+     * Opens the file in the version, fails with {@link ObjectVersionConflictException} if it's in another one.
+     * Once it's open, the content can't change, files are only replaced.
+     */
+    private FileChannel open(Path path, String version) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            final String actualVersion = getVersion(path);
+            if (!Objects.equals(version, actualVersion)) {
+                throw new ObjectVersionConflictException(path.toString(), version, actualVersion);
+            }
+            return channel;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static void copy(FileChannel source, FileChannel target) throws IOException {
+        final long size = source.size();
+        for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+            final MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAPPED_REGION_SIZE, size - position));
+            while (region.hasRemaining()) {
+                target.write(region);
+            }
+        }
+    }
+
+    private static Path createTempFile(Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        return Files.createTempFile(target.getParent(), HIDDEN_PREFIX + target.getFileName(), TEMP_SUFFIX);
+    }
+
+    /**
+     * Writes the content to a temporary file and renames it to the target.
+     */
+    private void write(Path target, ContentWriter writer) throws IOException {
+        write(target, false, writer);
+    }
+
+    /**
+     * Writes the content to a temporary file and renames it to the target, if new only if the target doesn't exist.
+     */
+    private void write(Path target, boolean createNew, ContentWriter writer) throws IOException {
+        final Path temp = createTempFile(target);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writer.write(channel);
+                channel.force(true);
+            }
+            replace(temp, target, createNew, null);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private interface ContentWriter {
+
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Renames the temporary file to the target, if conditional only if the target is still in the expected version.
+     * Returns version of the new target. Unconditional rename takes the lock as well, so it can't replace the target
+     * between version check and rename of a conditional one.
+     */
+    private String replace(Path temp, Path target, boolean conditional, String expectedVersion) throws IOException {
+        synchronized (LOCKS.computeIfAbsent(target, k -> new Object())) {
+            try (FileChannel lockChannel = FileChannel.open(getLockFile(target), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                final FileLock lock = lockChannel.lock();
+                try {
+                    if (conditional) {
+                        final String actualVersion = getVersion(target);
+                        if (!Objects.equals(expectedVersion, actualVersion)) {
+                            throw new ObjectVersionConflictException(target.toString(), expectedVersion,
+                                    actualVersion);
+                        }
+                    }
+
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    return getVersion(target);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static Path getLockFile(Path target) {
+        return target.resolveSibling(HIDDEN_PREFIX + target.getFileName() + LOCK_SUFFIX);
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final File file) throws Exception {
+        uploadFile(config, config.getFileName(), file);
+    }
+
+    @Override
+    public void uploadString(final CloudCsvConfiguration config, final String stringToUpload) throws Exception {
+        uploadFileContent(config, config.getFileName(), stringToUpload.getBytes(config.getEncoding()));
+    }
+
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config) throws Exception {
+        final RenamingOutputStream output = new RenamingOutputStream(resolve(config.getFileName()), false,
+                null);
+        return new SnapshotCachingOutputStream(output, getObjectKey(config), output::getVersion);
+    }
+
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config,
+                                                         final String expectedVersion) throws Exception {
+        final RenamingOutputStream output = new RenamingOutputStream(resolve(config.getFileName()), true,
+                expectedVersion);
+        return new SnapshotCachingOutputStream(output, getObjectKey(config), output::getVersion);
+    }
+
+    @Override
+    public String getFileVersion(final CloudCsvConfiguration config) throws Exception {
+        return getVersion(resolve(config.getFileName()));
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final File fileToCopyTo) throws Exception {
+        getFileAsAFile(config, config.getFileName(), fileToCopyTo);
+    }
+
+    @Override
+    public Object getFileLastUpdated(final CloudCsvConfiguration config) throws Exception {
+        return new Date(Files.getLastModifiedTime(resolve(config.getFileName())).toMillis());
+    }
+
+    @Override
+    public boolean checkBucketExists(final CloudCsvConfiguration config) {
+        return Files.isDirectory(root);
+    }
+
+    @Override
+    public boolean checkFileExistsAndCanRead(final CloudCsvConfiguration config) {
+        final Path path = resolve(config.getFileName());
+        return Files.isRegularFile(path) && Files.isReadable(path);
+    }
+
+    @Override
+    public Reader getFileAsReader(final CloudCsvConfiguration config) throws Exception {
+        final ObjectSnapshot snapshot = getFileSnapshot(config);
+        try {
+            return snapshot.openReader(config.getEncoding());
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * File is copied only if the cached snapshot isn't in its current version.
+     */
+    @Override
+    public ObjectSnapshot getFileSnapshot(final CloudCsvConfiguration config) throws Exception {
+        final Path path = resolve(config.getFileName());
+
+        for (int attempt = 1; ; attempt++) {
+            final String version = getVersion(path);
+            if (version == null) {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            try {
+                return ObjectSnapshotCache.getInstance().acquire(getObjectKey(config), version, file -> {
+                    try (FileChannel source = open(path, version);
+                         FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+                        copy(source, target);
+                    }
+                });
+            } catch (ObjectVersionConflictException ex) {
+                // file was replaced between reading its version and opening it
+                if (attempt >= SNAPSHOT_LOAD_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.ok("File {0} changed while copying, attempt {1}", path, attempt);
+            }
+        }
+    }
+
+    @Override
+    public List<String> listFolder(final CloudCsvConfiguration config, final String folder) throws Exception {
+        final Path directory = resolve(folder);
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+
+        final List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                if (!name.startsWith(HIDDEN_PREFIX) && Files.isRegularFile(file)) {
+                    names.add(folder + name);
+                }
+            }
+        }
+        Collections.sort(names);
+
+        return names;
+    }
+
+    @Override
+    public byte[] getFileContent(final CloudCsvConfiguration config, final String name) throws Exception {
+        return Files.readAllBytes(resolve(name));
+    }
+
+    @Override
+    public void uploadFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        write(resolve(name), channel -> {
+            final ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
+    }
+
+    @Override
+    public void createFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        write(resolve(name), true, channel -> {
+            final ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
+    }
+
+    @Override
+    public void deleteFiles(final CloudCsvConfiguration config, final Collection<String> names) throws Exception {
+        for (String name : names) {
+            final Path path = resolve(name);
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(getLockFile(path));
+        }
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final String name, final File fileToCopyTo)
+            throws Exception {
+        final Path path = resolve(name);
+        try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(fileToCopyTo.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            copy(source, target);
+        }
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final String name, final File file) throws Exception {
+        write(resolve(name), channel -> {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                copy(source, channel);
+            }
+        });
+    }
+
+    @Override
+    public void copyFile(final CloudCsvConfiguration config, final String expectedVersion, final String name)
+            throws Exception {
+        final Path path = resolve(config.getFileName());
+        try (FileChannel source = open(path, expectedVersion)) {
+            write(resolve(name), channel -> copy(source, channel));
+        } catch (NoSuchFileException ex) {
+            throw new ObjectVersionConflictException(getObjectKey(config), expectedVersion, null);
+        }
+    }
+
+    @Override
+    public void createBucketIfNotExists(final CloudCsvConfiguration configuration) throws Exception {
+        Files.createDirectories(root);
+    }
+
+    /**
+     * Writes to a temporary file through its channel, the file replaces the target once closed.
+     */
+    private class RenamingOutputStream extends CloudObjectOutputStream {
+
+        private final Path target;
+        private final boolean conditional;
+        private final String expectedVersion;
+
+        private final Path temp;
+        private final FileChannel channel;
+        private final OutputStream output;
+
+        private String version;
+        private boolean closed = false;
+
+        private RenamingOutputStream(Path target, boolean conditional, String expectedVersion) throws IOException {
+            this.target = target;
+            this.conditional = conditional;
+            this.expectedVersion = expectedVersion;
+
+            this.temp = createTempFile(target);
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            this.output = new BufferedOutputStream(Channels.newOutputStream(channel));
+        }
+
+        /**
+         * Version of the stored file, null until it's stored.
+         */
+        private String getVersion() {
+            return version;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!isAborted()) {
+                output.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!isAborted()) {
+                output.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (isAborted()) {
+                    channel.close();
+                    return;
+                }
+
+                output.flush();
+                channel.force(true);
+                channel.close();
+
+                checkPrecondition();
+                version = replace(temp, target, conditional, expectedVersion);
+            } finally {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.local;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudStorageService;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshot;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshotCache;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.SnapshotCachingOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provider keeping objects in memory of the JVM, without any network or disk access except for local snapshots.
+ * Buckets are shared by all connector instances in the JVM and they are lost when it stops, so it's meant for
+ * tests, benchmarks and latency baselines. Objects are versioned like S3 objects, every write creates a new version.
+ */
+public class MemoryStorageService extends CloudStorageService {
+
+    private static final Map<String, Map<String, StoredObject>> BUCKETS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private static class StoredObject {
+
+        private final String version;
+        private final byte[] content;
+        private final long lastModified;
+
+        private StoredObject(byte[] content) {
+            this.version = Long.toString(VERSIONS.incrementAndGet());
+            this.content = content;
+            this.lastModified = System.currentTimeMillis();
+        }
+    }
+
+    private final Map<String, StoredObject> objects;
+
+    public MemoryStorageService(final CloudCsvConfiguration config) {
+        this.objects = BUCKETS.computeIfAbsent(Objects.toString(config.getBucketName(), ""),
+                k -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Removes all objects of the bucket.
+     */
+    public static void clearBucket(final String bucketName) {
+        BUCKETS.remove(Objects.toString(bucketName, ""));
+    }
+
+    private String put(String name, byte[] content) {
+        final StoredObject object = new StoredObject(content);
+        objects.put(name, object);
+        return object.version;
+    }
+
+    private String put(String name, String expectedVersion, byte[] content) throws IOException {
+        synchronized (objects) {
+            final StoredObject current = objects.get(name);
+            final String actualVersion = current != null ? current.version : null;
+            if (!Objects.equals(expectedVersion, actualVersion)) {
+                throw new ObjectVersionConflictException(name, expectedVersion, actualVersion);
+            }
+            return put(name, content);
+        }
+    }
+
+    private StoredObject get(String name) throws IOException {
+        final StoredObject object = objects.get(name);
+        if (object == null) {
+            throw new NoSuchFileException(name);
+        }
+        return object;
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final File file) throws Exception {
+        put(config.getFileName(), Files.readAllBytes(file.toPath()));
+    }
+
+    @Override
+    public void uploadString(final CloudCsvConfiguration config, final String stringToUpload) throws Exception {
+        put(config.getFileName(), stringToUpload.getBytes(config.getEncoding()));
+    }
+
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config) throws Exception {
+        final MemoryOutputStream output = new MemoryOutputStream(config.getFileName(), false, null);
+        return new SnapshotCachingOutputStream(output, getObjectKey(config), output::getVersion);
+    }
+
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config,
+                                                         final String expectedVersion) throws Exception {
+        final MemoryOutputStream output = new MemoryOutputStream(config.getFileName(), true, expectedVersion);
+        return new SnapshotCachingOutputStream(output, getObjectKey(config), output::getVersion);
+    }
+
+    @Override
+    public String getFileVersion(final CloudCsvConfiguration config) {
+        final StoredObject object = objects.get(config.getFileName());
+        return object != null ? object.version : null;
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final File fileToCopyTo) throws Exception {
+        getFileAsAFile(config, config.getFileName(), fileToCopyTo);
+    }
+
+    @Override
+    public Object getFileLastUpdated(final CloudCsvConfiguration config) throws Exception {
+        return new Date(get(config.getFileName()).lastModified);
+    }
+
+    @Override
+    public boolean checkBucketExists(final CloudCsvConfiguration config) {
+        return true;
+    }
+
+    @Override
+    public boolean checkFileExistsAndCanRead(final CloudCsvConfiguration config) {
+        return objects.containsKey(config.getFileName());
+    }
+
+    @Override
+    public Reader getFileAsReader(final CloudCsvConfiguration config) throws Exception {
+        final ObjectSnapshot snapshot = getFileSnapshot(config);
+        try {
+            return snapshot.openReader(config.getEncoding());
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Content is written to local file only once per version, like an object downloaded from S3.
+     */
+    @Override
+    public ObjectSnapshot getFileSnapshot(final CloudCsvConfiguration config) throws Exception {
+        final StoredObject object = get(config.getFileName());
+        return ObjectSnapshotCache.getInstance().acquire(getObjectKey(config), object.version,
+                file -> Files.write(file.toPath(), object.content));
+    }
+
+    @Override
+    public List<String> listFolder(final CloudCsvConfiguration config, final String folder) {
+        final List<String> names = new ArrayList<>();
+        for (String name : objects.keySet()) {
+            if (name.startsWith(folder)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+
+        return names;
+    }
+
+    @Override
+    public byte[] getFileContent(final CloudCsvConfiguration config, final String name) throws Exception {
+        return get(name).content.clone();
+    }
+
+    @Override
+    public void uploadFileContent(final CloudCsvConfiguration config, final String name, final byte[] content) {
+        put(name, content.clone());
+    }
+
+    @Override
+    public void createFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws IOException {
+        put(name, null, content.clone());
+    }
+
+    @Override
+    public void deleteFiles(final CloudCsvConfiguration config, final Collection<String> names) {
+        names.forEach(objects::remove);
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final String name, final File fileToCopyTo)
+            throws Exception {
+        Files.write(fileToCopyTo.toPath(), get(name).content);
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final String name, final File file) throws Exception {
+        put(name, Files.readAllBytes(file.toPath()));
+    }
+
+    @Override
+    public void copyFile(final CloudCsvConfiguration config, final String expectedVersion, final String name)
+            throws Exception {
+        final StoredObject object = get(config.getFileName());
+        if (!Objects.equals(expectedVersion, object.version)) {
+            throw new ObjectVersionConflictException(getObjectKey(config), expectedVersion, object.version);
+        }
+        put(name, object.content);
+    }
+
+    @Override
+    public void createBucketIfNotExists(final CloudCsvConfiguration configuration) {
+        // buckets are created with the first object
+    }
+
+    /**
+     * Collects the content in memory and stores it as a new version once closed.
+     */
+    private class MemoryOutputStream extends CloudObjectOutputStream {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private final String name;
+        private final boolean conditional;
+        private final String expectedVersion;
+
+        private String version;
+        private boolean closed = false;
+
+        private MemoryOutputStream(String name, boolean conditional, String expectedVersion) {
+            this.name = name;
+            this.conditional = conditional;
+            this.expectedVersion = expectedVersion;
+        }
+
+        /**
+         * Version of the stored object, null until it's stored.
+         */
+        private String getVersion() {
+            return version;
+        }
+
+        @Override
+        public void write(int b) {
+            if (!isAborted()) {
+                buffer.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (!isAborted()) {
+                buffer.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed || isAborted()) {
+                return;
+            }
+            closed = true;
+
+            checkPrecondition();
+            version = conditional ? put(name, expectedVersion, buffer.toByteArray()) : put(name, buffer.toByteArray());
+        }
+    }
+}
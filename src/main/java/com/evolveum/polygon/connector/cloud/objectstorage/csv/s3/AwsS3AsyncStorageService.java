@@ -0,0 +1,355 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudStorageService;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshot;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshotCache;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.SnapshotCachingInputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.SnapshotCachingOutputStream;
+import io.netty.util.internal.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.model.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * S3 storage service built on the non-blocking client. Reading a CSV object which isn't cached streams it
+ * from the network while it's being parsed, writing uploads parts in the background while the next one
+ * is being printed.
+ */
+public class AwsS3AsyncStorageService extends CloudStorageService {
+    private static final Log LOG = Log.getLog(AwsS3AsyncStorageService.class);
+
+    private static final int SNAPSHOT_LOAD_ATTEMPTS = 3;
+
+    private S3AsyncClient s3Client;
+    private Region region;
+    private AwsS3Configuration awsConfig = new AwsS3Configuration();
+
+    public AwsS3AsyncStorageService(final CloudCsvConfiguration config) throws URISyntaxException {
+        final S3AsyncClientBuilder builder = S3AsyncClient.builder();
+        AwsS3ConfigurationBuilder.prepareAsyncClientBuilder(builder, config, config.isTestMode());
+        this.s3Client = builder.build();
+        this.awsConfig = AwsS3ConfigurationBuilder.prepareConfig(config);
+        this.region = (StringUtil.isNullOrEmpty(config.getRegion())) ? Region.US_EAST_1 : Region.of(config.getRegion());
+    }
+
+    public S3AsyncClient getS3Client() {
+        return s3Client;
+    }
+
+    public void setS3Client(S3AsyncClient s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    @Override
+    public boolean checkBucketExists(final CloudCsvConfiguration config) throws Exception {
+        try {
+            S3AsyncUtils.join(s3Client.headBucket(HeadBucketRequest.builder()
+                    .bucket(config.getBucketName())
+                    .build()));
+            return true;
+        } catch (NoSuchBucketException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void createBucketIfNotExists(final CloudCsvConfiguration config) throws Exception {
+        boolean exists = false;
+
+        try {
+            exists = checkBucketExists(config);
+        } catch (Exception e) {
+            LOG.info("Error retrieving bucket {0} with {1}, attempting to creating bucket...", config.getBucketName(), e);
+        }
+
+        if (!exists) {
+            S3AsyncUtils.join(s3Client.createBucket(CreateBucketRequest.builder()
+                    .bucket(config.getBucketName())
+                    .createBucketConfiguration(CreateBucketConfiguration.builder()
+                            .locationConstraint(region.id())
+                            .build())
+                    .build()));
+            S3AsyncUtils.join(s3Client.waiter().waitUntilBucketExists(HeadBucketRequest.builder()
+                    .bucket(config.getBucketName())
+                    .build()));
+        }
+    }
+
+    /**
+     * Cached snapshot is used if its ETag matches, otherwise the object is parsed while it's being downloaded.
+     * The downloaded copy becomes the cached snapshot if the reader gets to the end of the object.
+     */
+    @Override
+    public BufferedReader getFileAsReader(final CloudCsvConfiguration config) throws Exception {
+        final String bucket = config.getBucketName();
+        final String key = config.getFileName();
+
+        for (int attempt = 1; ; attempt++) {
+            final String eTag = S3AsyncUtils.join(S3AsyncUtils.headObject(bucket, key, s3Client)).eTag();
+
+            final ObjectSnapshot snapshot = ObjectSnapshotCache.getInstance().find(getObjectKey(config), eTag);
+            if (snapshot != null) {
+                try {
+                    return snapshot.openReader(config.getEncoding());
+                } finally {
+                    snapshot.release();
+                }
+            }
+
+            final InputStream body;
+            try {
+                body = S3AsyncUtils.join(S3AsyncUtils.getObjectAsStream(bucket, key, eTag, s3Client));
+            } catch (S3Exception ex) {
+                // 412, object was changed between HEAD and GET requests
+                if (ex.statusCode() != 412 || attempt >= SNAPSHOT_LOAD_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.ok("Object {0} changed while downloading, attempt {1}", key, attempt);
+                continue;
+            }
+
+            try {
+                return new BufferedReader(new InputStreamReader(
+                        new SnapshotCachingInputStream(body, getObjectKey(config), eTag), config.getEncoding()));
+            } catch (Exception ex) {
+                body.close();
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public ObjectSnapshot getFileSnapshot(final CloudCsvConfiguration config) throws Exception {
+        return S3AsyncUtils.join(getFileSnapshotAsync(config));
+    }
+
+    /**
+     * Object is downloaded only if ETag of the cached snapshot doesn't match the one returned by HEAD request.
+     */
+    @Override
+    public CompletableFuture<ObjectSnapshot> getFileSnapshotAsync(final CloudCsvConfiguration config) {
+        return getFileSnapshotAsync(config, 1);
+    }
+
+    private CompletableFuture<ObjectSnapshot> getFileSnapshotAsync(final CloudCsvConfiguration config, final int attempt) {
+        final String bucket = config.getBucketName();
+        final String key = config.getFileName();
+        final String objectKey = getObjectKey(config);
+
+        return S3AsyncUtils.headObject(bucket, key, s3Client).thenCompose(head -> {
+            final String eTag = head.eTag();
+            final ObjectSnapshot cached = ObjectSnapshotCache.getInstance().find(objectKey, eTag);
+            if (cached != null) {
+                LOG.ok("Using cached snapshot {0} for {1}", cached, objectKey);
+                return CompletableFuture.completedFuture(cached);
+            }
+
+            final File file;
+            try {
+                file = ObjectSnapshotCache.getInstance().createSnapshotFile();
+            } catch (Exception ex) {
+                return S3AsyncUtils.failed(ex);
+            }
+
+            return S3AsyncUtils.getObjectAsAFile(bucket, key, eTag, file, s3Client).thenApply(response -> {
+                LOG.ok("Loaded snapshot of version {0} for {1}, size {2}", eTag, objectKey, file.length());
+                final ObjectSnapshot snapshot = new ObjectSnapshot(eTag, file, true);
+                ObjectSnapshotCache.getInstance().install(objectKey, snapshot.retain());
+                return snapshot;
+            }).whenComplete((snapshot, error) -> {
+                if (error != null) {
+                    file.delete();
+                }
+            });
+        }).handle((snapshot, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(snapshot);
+            }
+
+            final Exception cause = S3AsyncUtils.unwrap(error);
+            if (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 412
+                    && attempt < SNAPSHOT_LOAD_ATTEMPTS) {
+                LOG.ok("Object {0} changed while downloading, attempt {1}", key, attempt);
+                return getFileSnapshotAsync(config, attempt + 1);
+            }
+            return S3AsyncUtils.<ObjectSnapshot>failed(cause);
+        }).thenCompose(future -> future);
+    }
+
+    @Override
+    public String getFileVersion(final CloudCsvConfiguration config) throws Exception {
+        return getFileVersion(config, config.getFileName());
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final File fileToCopyTo) throws Exception {
+        Files.deleteIfExists(fileToCopyTo.toPath());
+        S3AsyncUtils.join(s3Client.getObject(GetObjectRequest.builder()
+                .bucket(config.getBucketName())
+                .key(config.getFileName())
+                .build(), AsyncResponseTransformer.toFile(fileToCopyTo.toPath())));
+    }
+
+    @Override
+    public Date getFileLastUpdated(final CloudCsvConfiguration config) throws Exception {
+        return Date.from(S3AsyncUtils.join(S3AsyncUtils.headObject(config.getBucketName(), config.getFileName(), s3Client))
+                .lastModified());
+    }
+
+    @Override
+    public boolean checkFileExistsAndCanRead(final CloudCsvConfiguration config) {
+        boolean result = false;
+        try {
+            S3AsyncUtils.join(S3AsyncUtils.headObject(config.getBucketName(), config.getFileName(), s3Client));
+            result = true;
+        } catch (Exception e) {
+            LOG.info("Error attempting to check if file exists and connector can read for file {0} with error {1}", config.getFileName(), e);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final File file) throws Exception {
+        S3AsyncUtils.join(uploadFileAsync(config, file));
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadFileAsync(final CloudCsvConfiguration config, final File file) {
+        final String objectKey = getObjectKey(config);
+        return S3AsyncUtils.uploadFileToS3(config.getBucketName(), config.getFileName(), file, s3Client)
+                .thenAccept(response -> ObjectSnapshotCache.getInstance().invalidate(objectKey));
+    }
+
+    @Override
+    public void uploadString(final CloudCsvConfiguration config, final String file) throws Exception {
+        S3AsyncUtils.join(s3Client.putObject(PutObjectRequest.builder()
+                .bucket(config.getBucketName())
+                .key(config.getFileName())
+                .build(), AsyncRequestBody.fromString(file)));
+        ObjectSnapshotCache.getInstance().invalidate(getObjectKey(config));
+    }
+
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config) throws Exception {
+        final S3AsyncMultipartOutputStream upload = new S3AsyncMultipartOutputStream(config.getBucketName(),
+                config.getFileName(), S3MultipartOutputStream.DEFAULT_PART_SIZE, awsConfig.getMaxConnections(), s3Client);
+        return new SnapshotCachingOutputStream(upload, getObjectKey(config), upload::getETag);
+    }
+
+    /**
+     * Sends the expected version as If-Match, or If-None-Match if the object must not exist, with the request which
+     * stores the object, so S3 rejects the write if the object was replaced in the meantime. The version is also
+     * compared with a HEAD request right before that. It's the only check on S3 compatible stores which ignore
+     * If-Match, there the window between the check and the write remains.
+     */
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config, final String expectedVersion)
+            throws Exception {
+        final S3AsyncMultipartOutputStream upload = new S3AsyncMultipartOutputStream(config.getBucketName(),
+                config.getFileName(), S3MultipartOutputStream.DEFAULT_PART_SIZE, awsConfig.getMaxConnections(), s3Client);
+        upload.setExpectedETag(expectedVersion);
+
+        final CloudObjectOutputStream output = new SnapshotCachingOutputStream(upload, getObjectKey(config), upload::getETag);
+        output.setPrecondition(createVersionCheck(config, expectedVersion));
+        return output;
+    }
+
+    @Override
+    public List<String> listFolder(final CloudCsvConfiguration config, final String folder) throws Exception {
+        final List<String> names = S3AsyncUtils.join(S3AsyncUtils.listObjectKeys(config.getBucketName(), folder, s3Client));
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public byte[] getFileContent(final CloudCsvConfiguration config, final String name) throws Exception {
+        return S3AsyncUtils.join(S3AsyncUtils.getObjectAsBytes(config.getBucketName(), name, s3Client));
+    }
+
+    @Override
+    public void uploadFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        S3AsyncUtils.join(S3AsyncUtils.putObject(config.getBucketName(), name, content, s3Client));
+    }
+
+    /**
+     * Stores that don't support If-None-Match overwrite the object, delta log written there must have a single writer.
+     */
+    @Override
+    public void createFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        try {
+            S3AsyncUtils.join(S3AsyncUtils.putObjectIfNoneMatch(config.getBucketName(), name, content, s3Client));
+        } catch (S3Exception ex) {
+            if (ex.statusCode() != 412 && ex.statusCode() != 409) {
+                throw ex;
+            }
+            throw new ObjectVersionConflictException(config.getBucketName() + "/" + name, null,
+                    getFileVersion(config, name));
+        }
+    }
+
+    /**
+     * ETag of another object of the CSV object bucket, null if it doesn't exist.
+     */
+    private String getFileVersion(final CloudCsvConfiguration config, final String name) throws Exception {
+        try {
+            return S3AsyncUtils.join(S3AsyncUtils.headObject(config.getBucketName(), name, s3Client)).eTag();
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public void deleteFiles(final CloudCsvConfiguration config, final Collection<String> names) throws Exception {
+        S3AsyncUtils.join(S3AsyncUtils.deleteObjects(config.getBucketName(), new ArrayList<>(names), s3Client));
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final String name, final File fileToCopyTo)
+            throws Exception {
+        S3AsyncUtils.join(S3AsyncUtils.getObjectAsAFile(config.getBucketName(), name, null, fileToCopyTo, s3Client));
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final String name, final File file) throws Exception {
+        S3AsyncUtils.join(S3AsyncUtils.uploadFileToS3(config.getBucketName(), name, file, s3Client));
+    }
+
+    @Override
+    public void copyFile(final CloudCsvConfiguration config, final String expectedVersion, final String name)
+            throws Exception {
+        try {
+            S3AsyncUtils.join(S3AsyncUtils.copyObjectIfMatch(config.getBucketName(), config.getFileName(),
+                    expectedVersion, name, s3Client));
+        } catch (S3Exception ex) {
+            if (ex.statusCode() != 412) {
+                throw ex;
+            }
+            throw new ObjectVersionConflictException(getObjectKey(config), expectedVersion, getFileVersion(config));
+        }
+    }
+}
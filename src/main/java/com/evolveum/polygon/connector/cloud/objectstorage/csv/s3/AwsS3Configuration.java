@@ -21,6 +21,10 @@ public class AwsS3Configuration {
 
     private int maxConnections = 10;
 
+    private long downloadPartSize = 8 * 1024 * 1024;
+
+    private long parallelDownloadThreshold = 32 * 1024 * 1024;
+
     private String connectionTimeout = "5000";
 
     private String socketTimeout = "5000";
@@ -114,6 +118,29 @@ public class AwsS3Configuration {
         this.maxConnections = maxConnections;
     }
 
+    /**
+     * Size of one byte range fetched by parallel download.
+     */
+    public long getDownloadPartSize() {
+        return downloadPartSize;
+    }
+
+    public void setDownloadPartSize(long downloadPartSize) {
+        this.downloadPartSize = downloadPartSize;
+    }
+
+    /**
+     * Objects of this size and bigger are downloaded as byte ranges fetched concurrently,
+     * using at most {@link #getMaxConnections()} connections.
+     */
+    public long getParallelDownloadThreshold() {
+        return parallelDownloadThreshold;
+    }
+
+    public void setParallelDownloadThreshold(long parallelDownloadThreshold) {
+        this.parallelDownloadThreshold = parallelDownloadThreshold;
+    }
+
     /**
      * Connection timeout.
      */
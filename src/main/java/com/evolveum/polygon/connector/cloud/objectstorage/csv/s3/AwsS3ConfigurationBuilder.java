@@ -13,9 +13,12 @@ import software.amazon.awssdk.http.SdkHttpClient;
 import software.amazon.awssdk.http.SdkHttpConfigurationOption;
 import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.http.apache.ProxyConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.profiles.ProfileFile;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.utils.AttributeMap;
 import software.amazon.awssdk.utils.StringUtils;
@@ -93,7 +96,53 @@ public class AwsS3ConfigurationBuilder {
         return builder;
     }
 
-    private static AwsS3Configuration prepareConfig(final CloudCsvConfiguration config) {
+    /**
+     * Same as {@link #prepareClientBuilder} for the non-blocking client, which uses Netty NIO HTTP client.
+     */
+    public static S3AsyncClientBuilder prepareAsyncClientBuilder(final S3AsyncClientBuilder builder,
+                                                                 final CloudCsvConfiguration config, boolean isTestMode) throws URISyntaxException {
+        final AwsS3Configuration awsConfig = prepareConfig(config);
+
+        builder.credentialsProvider(AwsS3ConfigurationBuilder.getCredentials(awsConfig));
+        builder.region(StringUtils.isBlank(awsConfig.getRegion()) ? Region.AWS_GLOBAL : Region.of(awsConfig.getRegion()));
+        if (StringUtils.isNotBlank(awsConfig.getEndpoint())) {
+            builder.endpointOverride(new URI(awsConfig.getEndpoint()));
+        }
+
+        if (!isTestMode) {
+            final NettyNioAsyncHttpClient.Builder httpClientBuilder = NettyNioAsyncHttpClient.builder()
+                    .maxConcurrency(awsConfig.getMaxConnections())
+                    .useIdleConnectionReaper(awsConfig.isUseReaper())
+                    .readTimeout(Duration.ofMillis(Long.parseLong(awsConfig.getSocketTimeout())))
+                    .writeTimeout(Duration.ofMillis(Long.parseLong(awsConfig.getSocketTimeout())))
+                    .connectionTimeout(Duration.ofMillis(Long.parseLong(awsConfig.getConnectionTimeout())))
+                    .connectionAcquisitionTimeout(Duration.ofMillis(Long.parseLong(awsConfig.getClientExecutionTimeout())));
+
+            if (StringUtils.isNotBlank(awsConfig.getProxyHost())) {
+                // Netty client supports neither proxy authentication nor local address in this SDK version
+                final URI proxy = new URI(awsConfig.getProxyHost());
+                httpClientBuilder.proxyConfiguration(software.amazon.awssdk.http.nio.netty.ProxyConfiguration.builder()
+                        .scheme(proxy.getScheme())
+                        .host(proxy.getHost())
+                        .port(proxy.getPort())
+                        .build());
+            }
+
+            builder.httpClientBuilder(httpClientBuilder);
+            builder.overrideConfiguration(ClientOverrideConfiguration.builder()
+                    .retryPolicy(RetryMode.valueOf(awsConfig.getRetryMode()))
+                    .build());
+        } else {
+            final SdkAsyncHttpClient httpClient = NettyNioAsyncHttpClient.builder()
+                    .buildWithDefaults(AttributeMap.builder()
+                            .put(SdkHttpConfigurationOption.TRUST_ALL_CERTIFICATES, Boolean.TRUE).build());
+            builder.httpClient(httpClient);
+        }
+
+        return builder;
+    }
+
+    public static AwsS3Configuration prepareConfig(final CloudCsvConfiguration config) {
         final AwsS3Configuration props = new AwsS3Configuration();
         props.setRegion(config.getRegion());
         props.setEndpoint(config.getEndpoint());
@@ -5,20 +5,34 @@ import org.identityconnectors.common.logging.Log;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshot;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectSnapshotCache;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.SnapshotCachingOutputStream;
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudStorageService;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import java.io.BufferedReader;
 import java.io.File;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 
 public class AwsS3StorageService extends CloudStorageService {
     private static final Log LOG = Log.getLog(AwsS3StorageService.class);
 
+    private static final int SNAPSHOT_LOAD_ATTEMPTS = 3;
+
     private S3Client s3Client;
     private Region region;
+    private AwsS3Configuration awsConfig = new AwsS3Configuration();
 
     public AwsS3StorageService() {
         this.region = Region.US_EAST_1;
@@ -33,6 +47,7 @@ public class AwsS3StorageService extends CloudStorageService {
         final S3ClientBuilder builder = S3Client.builder();
         AwsS3ConfigurationBuilder.prepareClientBuilder(builder, config, config.isTestMode());
         this.s3Client = builder.build();
+        this.awsConfig = AwsS3ConfigurationBuilder.prepareConfig(config);
         this.region = (StringUtil.isNullOrEmpty(config.getRegion())) ? Region.US_EAST_1 : Region.of(config.getRegion());
     }
 
@@ -66,7 +81,48 @@ public class AwsS3StorageService extends CloudStorageService {
 
     @Override
     public BufferedReader getFileAsReader(final CloudCsvConfiguration config) throws Exception {
-        return S3Utils.getObjectAsReader(config.getBucketName(), config.getFileName(), s3Client);
+        final ObjectSnapshot snapshot = getFileSnapshot(config);
+        try {
+            return snapshot.openReader(config.getEncoding());
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * Object is downloaded only if ETag of the cached snapshot doesn't match the one returned by HEAD request.
+     */
+    @Override
+    public ObjectSnapshot getFileSnapshot(final CloudCsvConfiguration config) throws Exception {
+        final String bucket = config.getBucketName();
+        final String key = config.getFileName();
+
+        for (int attempt = 1; ; attempt++) {
+            final HeadObjectResponse head = S3Utils.headObject(bucket, key, s3Client);
+            final String eTag = head.eTag();
+            final long size = head.contentLength();
+            try {
+                return ObjectSnapshotCache.getInstance().acquire(getObjectKey(config), eTag, file -> {
+                    if (size >= awsConfig.getParallelDownloadThreshold()) {
+                        S3Utils.getObjectAsAFileInRanges(bucket, key, eTag, size, awsConfig.getDownloadPartSize(),
+                                awsConfig.getMaxConnections(), file, s3Client);
+                    } else {
+                        S3Utils.getObjectAsAFile(bucket, key, eTag, file, s3Client);
+                    }
+                });
+            } catch (S3Exception ex) {
+                // 412, object was changed between HEAD and GET requests
+                if (ex.statusCode() != 412 || attempt >= SNAPSHOT_LOAD_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.ok("Object {0} changed while downloading, attempt {1}", key, attempt);
+            }
+        }
+    }
+
+    @Override
+    public String getFileVersion(final CloudCsvConfiguration config) throws Exception {
+        return getFileVersion(config, config.getFileName());
     }
 
     @Override
@@ -100,4 +156,105 @@ public class AwsS3StorageService extends CloudStorageService {
     public void uploadString(final CloudCsvConfiguration config, final String file) throws Exception {
         S3Utils.uploadStringToS3(config.getBucketName(), config.getFileName(), file, s3Client);
     }
+
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config) throws Exception {
+        final S3MultipartOutputStream upload = new S3MultipartOutputStream(config.getBucketName(), config.getFileName(), s3Client);
+        return new SnapshotCachingOutputStream(upload, getObjectKey(config), upload::getETag);
+    }
+
+    /**
+     * Sends the expected version as If-Match, or If-None-Match if the object must not exist, with the request which
+     * stores the object, so S3 rejects the write if the object was replaced in the meantime. The version is also
+     * compared with a HEAD request right before that. It's the only check on S3 compatible stores which ignore
+     * If-Match, there the window between the check and the write remains.
+     */
+    @Override
+    public CloudObjectOutputStream getFileAsOutputStream(final CloudCsvConfiguration config, final String expectedVersion)
+            throws Exception {
+        final S3MultipartOutputStream upload = new S3MultipartOutputStream(config.getBucketName(), config.getFileName(), s3Client);
+        upload.setExpectedETag(expectedVersion);
+
+        final CloudObjectOutputStream output = new SnapshotCachingOutputStream(upload, getObjectKey(config), upload::getETag);
+        output.setPrecondition(createVersionCheck(config, expectedVersion));
+        return output;
+    }
+
+    @Override
+    public List<String> listFolder(final CloudCsvConfiguration config, final String folder) throws Exception {
+        final List<String> names = S3Utils.listObjectKeys(config.getBucketName(), folder, s3Client);
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public byte[] getFileContent(final CloudCsvConfiguration config, final String name) throws Exception {
+        return S3Utils.getObjectAsBytes(config.getBucketName(), name, s3Client);
+    }
+
+    @Override
+    public void uploadFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        S3Utils.putObject(config.getBucketName(), name, content, s3Client);
+    }
+
+    /**
+     * Stores that don't support If-None-Match overwrite the object, delta log written there must have a single writer.
+     */
+    @Override
+    public void createFileContent(final CloudCsvConfiguration config, final String name, final byte[] content)
+            throws Exception {
+        try {
+            S3Utils.putObjectIfNoneMatch(config.getBucketName(), name, content, s3Client);
+        } catch (S3Exception ex) {
+            if (ex.statusCode() != 412 && ex.statusCode() != 409) {
+                throw ex;
+            }
+            throw new ObjectVersionConflictException(config.getBucketName() + "/" + name, null,
+                    getFileVersion(config, name));
+        }
+    }
+
+    /**
+     * ETag of another object of the CSV object bucket, null if it doesn't exist.
+     */
+    private String getFileVersion(final CloudCsvConfiguration config, final String name) throws Exception {
+        try {
+            return S3Utils.headObject(config.getBucketName(), name, s3Client).eTag();
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public void deleteFiles(final CloudCsvConfiguration config, final Collection<String> names) throws Exception {
+        S3Utils.deleteObjects(config.getBucketName(), new ArrayList<>(names), s3Client);
+    }
+
+    @Override
+    public void getFileAsAFile(final CloudCsvConfiguration config, final String name, final File fileToCopyTo)
+            throws Exception {
+        S3Utils.getObjectAsAFile(config.getBucketName(), name, fileToCopyTo, s3Client);
+    }
+
+    @Override
+    public void uploadFile(final CloudCsvConfiguration config, final String name, final File file) throws Exception {
+        S3Utils.uploadFileToS3(config.getBucketName(), name, file, s3Client);
+    }
+
+    @Override
+    public void copyFile(final CloudCsvConfiguration config, final String expectedVersion, final String name)
+            throws Exception {
+        try {
+            S3Utils.copyObjectIfMatch(config.getBucketName(), config.getFileName(), expectedVersion, name, s3Client);
+        } catch (S3Exception ex) {
+            if (ex.statusCode() != 412) {
+                throw ex;
+            }
+            throw new ObjectVersionConflictException(getObjectKey(config), expectedVersion, getFileVersion(config));
+        }
+    }
 }
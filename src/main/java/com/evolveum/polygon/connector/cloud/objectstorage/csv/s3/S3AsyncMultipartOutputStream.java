@@ -0,0 +1,266 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import org.identityconnectors.common.logging.Log;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Same as {@link S3MultipartOutputStream}, but parts are uploaded by the non-blocking client while the next
+ * part is being written. At most {@code maxPartsInFlight} parts are being sent at once, writer waits when
+ * the limit is reached, so memory use stays bounded.
+ */
+public class S3AsyncMultipartOutputStream extends CloudObjectOutputStream {
+
+    private static final Log LOG = Log.getLog(S3AsyncMultipartOutputStream.class);
+
+    public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+
+    private final S3AsyncClient s3Client;
+    private final String bucket;
+    private final String key;
+
+    private final int partSize;
+    private byte[] buffer;
+    private int count = 0;
+
+    private final Semaphore partsInFlight;
+
+    private String uploadId;
+    private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+
+    private String eTag;
+
+    private boolean conditional = false;
+    private String expectedETag;
+
+    private boolean closed = false;
+
+    public S3AsyncMultipartOutputStream(String bucket, String key, S3AsyncClient s3Client) {
+        this(bucket, key, S3MultipartOutputStream.DEFAULT_PART_SIZE, DEFAULT_PARTS_IN_FLIGHT, s3Client);
+    }
+
+    public S3AsyncMultipartOutputStream(String bucket, String key, int partSize, int maxPartsInFlight,
+                                        S3AsyncClient s3Client) {
+        this.bucket = bucket;
+        this.key = key;
+        this.s3Client = s3Client;
+        this.partSize = Math.max(partSize, S3MultipartOutputStream.MIN_PART_SIZE);
+        this.buffer = new byte[this.partSize];
+        this.partsInFlight = new Semaphore(Math.max(maxPartsInFlight, 1));
+    }
+
+    /**
+     * Object is stored only if it still has the expected ETag, null means it must not exist yet. Otherwise closing
+     * the stream fails with {@link ObjectVersionConflictException}.
+     */
+    public void setExpectedETag(String expectedETag) {
+        this.conditional = true;
+        this.expectedETag = expectedETag;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (isAborted()) {
+            return;
+        }
+        ensureOpen();
+
+        if (count == buffer.length) {
+            uploadPart();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (isAborted()) {
+            return;
+        }
+        ensureOpen();
+
+        while (len > 0) {
+            if (count == buffer.length) {
+                uploadPart();
+            }
+
+            int size = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, size);
+            count += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (isAborted()) {
+            abortUpload();
+            return;
+        }
+
+        try {
+            if (uploadId == null) {
+                checkPrecondition();
+                final PutObjectRequest.Builder request = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key);
+                if (conditional) {
+                    request.overrideConfiguration(S3Utils.createWriteCondition(expectedETag));
+                }
+                eTag = S3AsyncUtils.join(s3Client.putObject(request.build(),
+                        AsyncRequestBody.fromBytes(Arrays.copyOf(buffer, count)))).eTag();
+                return;
+            }
+
+            if (count > 0) {
+                uploadPart();
+            }
+
+            final List<CompletedPart> completed = new ArrayList<>();
+            for (CompletableFuture<CompletedPart> part : parts) {
+                completed.add(S3AsyncUtils.join(part));
+            }
+
+            checkPrecondition();
+            final CompleteMultipartUploadRequest.Builder request = CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build());
+            if (conditional) {
+                request.overrideConfiguration(S3Utils.createWriteCondition(expectedETag));
+            }
+            eTag = S3AsyncUtils.join(s3Client.completeMultipartUpload(request.build())).eTag();
+
+            LOG.ok("Multipart upload of {0} finished, {1} parts", key, completed.size());
+        } catch (IOException ex) {
+            abortUpload();
+            throw ex;
+        } catch (Exception ex) {
+            abort();
+            abortUpload();
+            if (conditional && ex instanceof S3Exception && S3Utils.isWriteConditionFailed((S3Exception) ex)) {
+                throw createConflict();
+            }
+            throw new IOException("Couldn't upload " + key + " to bucket " + bucket + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * ETag of the stored object, available after the stream was successfully closed.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    private void uploadPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                uploadId = S3AsyncUtils.join(s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build())).uploadId();
+            }
+
+            partsInFlight.acquire();
+            failIfAnyPartFailed();
+
+            final int partNumber = parts.size() + 1;
+            final byte[] data = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+            final CompletableFuture<CompletedPart> part = s3Client.uploadPart(UploadPartRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .contentLength((long) data.length)
+                            .build(),
+                    AsyncRequestBody.fromBytes(data))
+                    .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build());
+            part.whenComplete((response, error) -> partsInFlight.release());
+
+            parts.add(part);
+            // previous buffer belongs to the request now
+            buffer = new byte[partSize];
+            count = 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while uploading part of " + key);
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        } catch (Exception ex) {
+            abort();
+            throw new IOException("Couldn't upload part of " + key + " to bucket " + bucket + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void failIfAnyPartFailed() throws Exception {
+        for (CompletableFuture<CompletedPart> part : parts) {
+            if (part.isCompletedExceptionally()) {
+                S3AsyncUtils.join(part);
+            }
+        }
+    }
+
+    private ObjectVersionConflictException createConflict() throws IOException {
+        String actualETag = null;
+        try {
+            actualETag = S3AsyncUtils.join(S3AsyncUtils.headObject(bucket, key, s3Client)).eTag();
+        } catch (S3Exception ex) {
+            if (ex.statusCode() != 404) {
+                throw new IOException("Couldn't check version of " + key + " in bucket " + bucket + ", reason: "
+                        + ex.getMessage(), ex);
+            }
+        } catch (Exception ex) {
+            throw new IOException("Couldn't check version of " + key + " in bucket " + bucket + ", reason: "
+                    + ex.getMessage(), ex);
+        }
+
+        return new ObjectVersionConflictException(bucket + "/" + key, expectedETag, actualETag);
+    }
+
+    private void abortUpload() {
+        if (uploadId == null) {
+            return;
+        }
+
+        // parts still being sent would otherwise remain stored after the abort
+        CompletableFuture.allOf(parts.stream()
+                .map(part -> part.exceptionally(error -> null))
+                .collect(Collectors.toList())
+                .toArray(new CompletableFuture<?>[0])).join();
+
+        try {
+            S3AsyncUtils.join(s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()));
+        } catch (Exception ex) {
+            LOG.warn(ex, "Couldn't abort multipart upload {0} of {1}", uploadId, key);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream already closed");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Counterpart of {@link S3Utils} for the non-blocking client, all methods return immediately.
+ */
+public class S3AsyncUtils {
+
+    public static CompletableFuture<HeadObjectResponse> headObject(final String bucket, final String key,
+                                                                   final S3AsyncClient s3Client) {
+        return s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build());
+    }
+
+    /**
+     * Downloads the version of the object identified by the eTag (the current one if it's null) into the file,
+     * the file is overwritten.
+     */
+    public static CompletableFuture<GetObjectResponse> getObjectAsAFile(final String bucket, final String key,
+                                                                        final String eTag, final File file,
+                                                                        final S3AsyncClient s3Client) {
+        try {
+            // transformer creates the file itself
+            Files.deleteIfExists(file.toPath());
+        } catch (Exception ex) {
+            return failed(ex);
+        }
+
+        return s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifMatch(eTag)
+                .build(), AsyncResponseTransformer.toFile(file.toPath()));
+    }
+
+    /**
+     * Starts download of the object version identified by the eTag. Returned future completes as soon as
+     * the response headers arrive, the body is read through the stream while it's still being received.
+     */
+    public static CompletableFuture<S3PublisherInputStream> getObjectAsStream(final String bucket, final String key,
+                                                                             final String eTag,
+                                                                             final S3AsyncClient s3Client) {
+        final S3PublisherInputStream stream = new S3PublisherInputStream();
+
+        final CompletableFuture<S3PublisherInputStream> result = new CompletableFuture<>();
+        s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifMatch(eTag)
+                .build(), new AsyncResponseTransformer<GetObjectResponse, S3PublisherInputStream>() {
+
+            @Override
+            public CompletableFuture<S3PublisherInputStream> prepare() {
+                return result;
+            }
+
+            @Override
+            public void onResponse(GetObjectResponse response) {
+            }
+
+            @Override
+            public void onStream(SdkPublisher<ByteBuffer> publisher) {
+                publisher.subscribe(stream);
+                result.complete(stream);
+            }
+
+            @Override
+            public void exceptionOccurred(Throwable error) {
+                if (!result.completeExceptionally(error)) {
+                    stream.onError(error);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    public static CompletableFuture<PutObjectResponse> uploadFileToS3(final String bucket, final String key,
+                                                                     final File file, final S3AsyncClient s3Client) {
+        return s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build(), AsyncRequestBody.fromFile(file));
+    }
+
+    /**
+     * Copies the version of the object identified by the eTag within the bucket.
+     */
+    public static CompletableFuture<CopyObjectResponse> copyObjectIfMatch(final String bucket, final String fromKey,
+                                                                          final String eTag, final String toKey,
+                                                                          final S3AsyncClient s3Client) {
+        return s3Client.copyObject(CopyObjectRequest.builder()
+                .copySource(bucket + "/" + fromKey)
+                .copySourceIfMatch(eTag)
+                .destinationBucket(bucket)
+                .destinationKey(toKey)
+                .build());
+    }
+
+    /**
+     * All keys starting with the prefix, next page is requested once the previous one arrives.
+     */
+    public static CompletableFuture<List<String>> listObjectKeys(final String bucket, final String prefix,
+                                                                 final S3AsyncClient s3Client) {
+        return listObjectKeys(bucket, prefix, null, new ArrayList<>(), s3Client);
+    }
+
+    private static CompletableFuture<List<String>> listObjectKeys(final String bucket, final String prefix,
+                                                                  final String continuationToken,
+                                                                  final List<String> keys,
+                                                                  final S3AsyncClient s3Client) {
+        return s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .continuationToken(continuationToken)
+                .build()).thenCompose(response -> {
+            response.contents().forEach(obj -> keys.add(obj.key()));
+            if (!response.isTruncated()) {
+                return CompletableFuture.completedFuture(keys);
+            }
+            return listObjectKeys(bucket, prefix, response.nextContinuationToken(), keys, s3Client);
+        });
+    }
+
+    public static CompletableFuture<byte[]> getObjectAsBytes(final String bucket, final String key,
+                                                             final S3AsyncClient s3Client) {
+        return s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build(), AsyncResponseTransformer.toBytes()).thenApply(response -> response.asByteArray());
+    }
+
+    public static CompletableFuture<PutObjectResponse> putObject(final String bucket, final String key,
+                                                                 final byte[] content, final S3AsyncClient s3Client) {
+        return s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build(), AsyncRequestBody.fromBytes(content));
+    }
+
+    /**
+     * Creates the object only if there isn't any object with the key yet (If-None-Match: *), fails with status code
+     * 412 when the object already exists, 409 when it's being created concurrently.
+     */
+    public static CompletableFuture<PutObjectResponse> putObjectIfNoneMatch(final String bucket, final String key,
+                                                                            final byte[] content,
+                                                                            final S3AsyncClient s3Client) {
+        return s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .overrideConfiguration(S3Utils.createWriteCondition(null))
+                .build(), AsyncRequestBody.fromBytes(content));
+    }
+
+    /**
+     * Deletes the objects, at most 1000 of them in one request, requests are sent in parallel.
+     */
+    public static CompletableFuture<Void> deleteObjects(final String bucket, final List<String> keys,
+                                                        final S3AsyncClient s3Client) {
+        final List<CompletableFuture<?>> requests = new ArrayList<>();
+        for (int from = 0; from < keys.size(); from += 1000) {
+            final List<ObjectIdentifier> toDelete = keys.subList(from, Math.min(from + 1000, keys.size())).stream()
+                    .map(key -> ObjectIdentifier.builder().key(key).build())
+                    .collect(Collectors.toList());
+
+            requests.add(s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucket).delete(Delete.builder().objects(toDelete).quiet(true).build()).build()));
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Waits for the future, failure is rethrown unwrapped as it would be by the blocking client.
+     */
+    public static <T> T join(final CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw unwrap(ex);
+        }
+    }
+
+    public static Exception unwrap(final Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new Exception(cause);
+    }
+
+    static <T> CompletableFuture<T> failed(final Throwable error) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(error);
+        return result;
+    }
+}
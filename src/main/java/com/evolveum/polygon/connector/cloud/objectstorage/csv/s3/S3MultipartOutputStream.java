@@ -0,0 +1,225 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import org.identityconnectors.common.logging.Log;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the written data to S3 as parts of a multipart upload, so at most one part is held in memory.
+ * Content smaller than one part is stored with a single put object request when the stream is closed.
+ * Conditional stream sends the expected version with the put object or complete multipart upload request,
+ * so S3 stores the object only if nobody replaced it in the meantime.
+ */
+public class S3MultipartOutputStream extends CloudObjectOutputStream {
+
+    private static final Log LOG = Log.getLog(S3MultipartOutputStream.class);
+
+    /**
+     * S3 doesn't accept smaller parts than 5 MiB, except for the last one.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+
+    private final byte[] buffer;
+    private int count = 0;
+
+    private String uploadId;
+    private final List<CompletedPart> parts = new ArrayList<>();
+
+    private String eTag;
+
+    private boolean conditional = false;
+    private String expectedETag;
+
+    private boolean closed = false;
+
+    public S3MultipartOutputStream(String bucket, String key, S3Client s3Client) {
+        this(bucket, key, DEFAULT_PART_SIZE, s3Client);
+    }
+
+    public S3MultipartOutputStream(String bucket, String key, int partSize, S3Client s3Client) {
+        this.bucket = bucket;
+        this.key = key;
+        this.s3Client = s3Client;
+        this.buffer = new byte[Math.max(partSize, MIN_PART_SIZE)];
+    }
+
+    /**
+     * Object is stored only if it still has the expected ETag, null means it must not exist yet. Otherwise closing
+     * the stream fails with {@link ObjectVersionConflictException}.
+     */
+    public void setExpectedETag(String expectedETag) {
+        this.conditional = true;
+        this.expectedETag = expectedETag;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (isAborted()) {
+            return;
+        }
+        ensureOpen();
+
+        if (count == buffer.length) {
+            uploadPart();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (isAborted()) {
+            return;
+        }
+        ensureOpen();
+
+        while (len > 0) {
+            if (count == buffer.length) {
+                uploadPart();
+            }
+
+            int size = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, size);
+            count += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (isAborted()) {
+            abortUpload();
+            return;
+        }
+
+        try {
+            if (uploadId == null) {
+                checkPrecondition();
+                final PutObjectRequest.Builder request = PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key);
+                if (conditional) {
+                    request.overrideConfiguration(S3Utils.createWriteCondition(expectedETag));
+                }
+                eTag = s3Client.putObject(request.build(),
+                        RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, count), count)).eTag();
+                return;
+            }
+
+            if (count > 0) {
+                uploadPart();
+            }
+
+            checkPrecondition();
+            final CompleteMultipartUploadRequest.Builder request = CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build());
+            if (conditional) {
+                request.overrideConfiguration(S3Utils.createWriteCondition(expectedETag));
+            }
+            eTag = s3Client.completeMultipartUpload(request.build()).eTag();
+
+            LOG.ok("Multipart upload of {0} finished, {1} parts", key, parts.size());
+        } catch (IOException ex) {
+            abortUpload();
+            throw ex;
+        } catch (S3Exception ex) {
+            abort();
+            abortUpload();
+            if (conditional && S3Utils.isWriteConditionFailed(ex)) {
+                throw createConflict();
+            }
+            throw new IOException("Couldn't upload " + key + " to bucket " + bucket + ", reason: " + ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            abort();
+            abortUpload();
+            throw new IOException("Couldn't upload " + key + " to bucket " + bucket + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private ObjectVersionConflictException createConflict() throws IOException {
+        try {
+            return new ObjectVersionConflictException(bucket + "/" + key, expectedETag,
+                    S3Utils.findObjectETag(bucket, key, s3Client));
+        } catch (Exception ex) {
+            throw new IOException("Couldn't check version of " + key + " in bucket " + bucket + ", reason: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * ETag of the stored object, available after the stream was successfully closed.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    private void uploadPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build()).uploadId();
+            }
+
+            int partNumber = parts.size() + 1;
+            UploadPartResponse response = s3Client.uploadPart(UploadPartRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber)
+                            .contentLength((long) count)
+                            .build(),
+                    RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, count), count));
+
+            parts.add(CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build());
+            count = 0;
+        } catch (RuntimeException ex) {
+            abort();
+            throw new IOException("Couldn't upload part of " + key + " to bucket " + bucket + ", reason: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void abortUpload() {
+        if (uploadId == null) {
+            return;
+        }
+
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (RuntimeException ex) {
+            LOG.warn(ex, "Couldn't abort multipart upload {0} of {1}", uploadId, key);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream already closed");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Blocking view of the response body published by the non-blocking client. Only a few buffers are requested
+ * ahead of the reader, so the download proceeds while the previous data is being parsed, but it never
+ * gets further than that.
+ */
+public class S3PublisherInputStream extends InputStream implements Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_PREFETCH = 16;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+    private final int prefetch;
+
+    private volatile Subscription subscription;
+    private volatile Throwable error;
+    private volatile boolean terminated = false;
+
+    private ByteBuffer current;
+    private boolean done = false;
+
+    public S3PublisherInputStream() {
+        this(DEFAULT_PREFETCH);
+    }
+
+    public S3PublisherInputStream(int prefetch) {
+        this.prefetch = Math.max(prefetch, 1);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        if (this.subscription != null || done) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer) {
+        queue.add(buffer);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        error = t;
+        queue.add(END);
+    }
+
+    @Override
+    public void onComplete() {
+        if (terminated) {
+            return;
+        }
+        terminated = true;
+        queue.add(END);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+
+        int size = Math.min(len, current.remaining());
+        current.get(b, off, size);
+        return size;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.remaining() : 0;
+    }
+
+    @Override
+    public void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        current = null;
+        queue.clear();
+
+        Subscription s = subscription;
+        if (s != null && !terminated) {
+            s.cancel();
+        }
+    }
+
+    private boolean fill() throws IOException {
+        while (!done && (current == null || !current.hasRemaining())) {
+            if (current != null) {
+                // consumed buffer is replaced by a new one
+                subscription.request(1);
+            }
+
+            try {
+                current = queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+
+            if (current == END) {
+                done = true;
+                current = null;
+                if (error != null) {
+                    throw new IOException("Couldn't download object, reason: " + error.getMessage(), error);
+                }
+            }
+        }
+
+        return !done;
+    }
+}
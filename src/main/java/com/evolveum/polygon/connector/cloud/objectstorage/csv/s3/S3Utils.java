@@ -1,6 +1,7 @@
 package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
 
 import org.identityconnectors.common.logging.Log;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.waiters.WaiterResponse;
@@ -11,9 +12,17 @@ import org.apache.commons.io.FileUtils;
 import software.amazon.awssdk.services.s3.waiters.S3Waiter;
 import software.amazon.awssdk.utils.StringUtils;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 
@@ -66,6 +75,99 @@ public class S3Utils {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * All keys starting with the prefix, listed page by page.
+     */
+    public static List<String> listObjectKeys(String bucketName, String prefix, S3Client s3Client) throws Exception {
+        final List<String> keys = new ArrayList<>();
+
+        String continuationToken = null;
+        do {
+            final ListObjectsV2Response response = s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .continuationToken(continuationToken)
+                    .build());
+            response.contents().forEach(obj -> keys.add(obj.key()));
+            continuationToken = response.isTruncated() ? response.nextContinuationToken() : null;
+        } while (continuationToken != null);
+
+        return keys;
+    }
+
+    public static byte[] getObjectAsBytes(String bucketName, String key, S3Client s3Client) throws Exception {
+        return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()).asByteArray();
+    }
+
+    public static String putObject(String bucket, String key, byte[] content, S3Client s3Client) throws Exception {
+        return s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build(),
+                RequestBody.fromBytes(content)).eTag();
+    }
+
+    /** Creates the object only if there isn't any object with the key yet (If-None-Match: *)
+     * @throws S3Exception with status code 412 when the object already exists, 409 when it's being created concurrently
+     */
+    public static String putObjectIfNoneMatch(String bucket, String key, byte[] content, S3Client s3Client) throws Exception {
+        return s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .overrideConfiguration(createWriteCondition(null))
+                        .build(),
+                RequestBody.fromBytes(content)).eTag();
+    }
+
+    /**
+     * Override configuration of a conditional write. Object is stored only if it still has the expected ETag
+     * (If-Match), null expected ETag means the object must not exist yet (If-None-Match: *). S3 rejects the write
+     * with status code 412, or 409 if another conditional write of the object is in progress.
+     */
+    public static AwsRequestOverrideConfiguration createWriteCondition(String expectedETag) {
+        return AwsRequestOverrideConfiguration.builder()
+                .putHeader(expectedETag != null ? "If-Match" : "If-None-Match", expectedETag != null ? expectedETag : "*")
+                .build();
+    }
+
+    /**
+     * True if the exception is the rejection of a conditional write.
+     */
+    public static boolean isWriteConditionFailed(S3Exception ex) {
+        return ex.statusCode() == 412 || ex.statusCode() == 409;
+    }
+
+    /**
+     * ETag of the object, null if it doesn't exist.
+     */
+    public static String findObjectETag(String bucket, String key, S3Client s3Client) throws Exception {
+        try {
+            return headObject(bucket, key, s3Client).eTag();
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Deletes the objects, at most 1000 of them in one request.
+     */
+    public static void deleteObjects(String bucket, List<String> keys, S3Client s3Client) throws Exception {
+        for (int from = 0; from < keys.size(); from += 1000) {
+            final List<ObjectIdentifier> toDelete = keys.subList(from, Math.min(from + 1000, keys.size())).stream()
+                    .map(key -> ObjectIdentifier.builder().key(key).build())
+                    .collect(Collectors.toList());
+
+            s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucket).delete(Delete.builder().objects(toDelete).quiet(true).build()).build());
+        }
+    }
+
     /** Method to open the File from S3
      * @param bucketName The bucket where the file is
      * @param fileName the filename (including the path)
@@ -77,6 +179,94 @@ public class S3Utils {
         return new BufferedReader(new InputStreamReader(response, encoding));
     }
 
+    /** Downloads the object only if it still has the expected ETag
+     * @param eTag ETag of the object version to download
+     * @throws S3Exception with status code 412 when the object has been changed in the meantime
+     */
+    public static void getObjectAsAFile(String bucketName, String fileName, String eTag, File file, S3Client s3Client) throws Exception {
+        try (ResponseInputStream<GetObjectResponse> response = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(fileName)
+                .ifMatch(eTag)
+                .build())) {
+            FileUtils.copyInputStreamToFile(response, file);
+        }
+    }
+
+    /** Downloads the object as byte ranges fetched concurrently, every range is written to its position in the file
+     * @param eTag ETag of the object version to download
+     * @param size size of the object version
+     * @param partSize size of one byte range
+     * @param parallelism maximum number of concurrent range requests
+     * @throws S3Exception with status code 412 when the object has been changed in the meantime
+     */
+    public static void getObjectAsAFileInRanges(String bucketName, String fileName, String eTag, long size, long partSize,
+                                                int parallelism, File file, S3Client s3Client) throws Exception {
+        final int parts = (int) ((size + partSize - 1) / partSize);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, parts)), r -> {
+            Thread thread = new Thread(r, "s3-download-" + fileName);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                final long start = i * partSize;
+                final long end = Math.min(start + partSize, size) - 1;
+                futures.add(executor.submit(() -> {
+                    getObjectRange(bucketName, fileName, eTag, start, end, channel, s3Client);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    futures.forEach(f -> f.cancel(true));
+
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOG.ok("Downloaded {0} ({1} bytes) in {2} ranges", fileName, size, parts);
+    }
+
+    private static void getObjectRange(String bucketName, String fileName, String eTag, long start, long end,
+                                       FileChannel channel, S3Client s3Client) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> response = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(fileName)
+                .ifMatch(eTag)
+                .range("bytes=" + start + "-" + end)
+                .build())) {
+
+            final byte[] buffer = new byte[64 * 1024];
+            long position = start;
+            int read;
+            while ((read = response.read(buffer)) != -1) {
+                final ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+
+            if (position != end + 1) {
+                throw new IOException("Range " + start + "-" + end + " of " + fileName + " is incomplete, got "
+                        + (position - start) + " bytes");
+            }
+        }
+    }
+
     public static void getObjectAsAFile(String bucketName, String fileName, File file, S3Client s3Client) throws Exception {
         final ResponseInputStream<GetObjectResponse> response = s3Client.getObject(GetObjectRequest.builder().bucket(bucketName).key(fileName).build());
         FileUtils.copyInputStreamToFile(response, file);
@@ -103,6 +293,19 @@ public class S3Utils {
                 .build());
     }
 
+    /** Copies the object within the bucket only if it still has the expected ETag
+     * @param eTag ETag of the object version to copy
+     * @throws S3Exception with status code 412 when the object has been changed in the meantime
+     */
+    public static void copyObjectIfMatch(String bucket, String fromKey, String eTag, String toKey, S3Client s3Client) throws Exception {
+        s3Client.copyObject(CopyObjectRequest.builder()
+                .copySource(bucket + separator + fromKey)
+                .copySourceIfMatch(eTag)
+                .destinationBucket(bucket)
+                .destinationKey(toKey)
+                .build());
+    }
+
     public static void deleteObject(String bucket, String key, S3Client s3Client) throws Exception {
         s3Client.deleteObject(DeleteObjectRequest.builder()
                 .bucket(bucket)
@@ -215,6 +418,10 @@ public class S3Utils {
         return filename;
     }
 
+    public static HeadObjectResponse headObject(String bucket, String key, S3Client s3Client) throws Exception {
+        return s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+    }
+
     public static Long getObjectSize(String bucket, String key, S3Client s3Client) throws Exception {
         return s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build()).contentLength();
     }
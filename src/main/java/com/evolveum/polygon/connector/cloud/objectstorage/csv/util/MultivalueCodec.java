@@ -0,0 +1,175 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.util;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import org.identityconnectors.common.StringUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Splits raw column value into values of a multivalued attribute and joins values back. Delimiter is matched
+ * literally, it's not a regular expression. If escaping is enabled, delimiter preceded by the escape character is
+ * part of the value, as well as doubled escape character. Escape character followed by anything else is kept as it
+ * is, so only values containing the delimiter or escape character right before it or at the end are written
+ * differently. Single value is escaped as well, otherwise it would be split when read. Columns which are never
+ * split (uid, name and password) use {@link #singleValue()}, their values are written as they are.
+ *
+ * Codec is immutable, there's one for every delimiter and escape character.
+ */
+public final class MultivalueCodec {
+
+    private static final Map<String, MultivalueCodec> CODECS = new ConcurrentHashMap<>();
+
+    private static final MultivalueCodec SINGLE_VALUE = new MultivalueCodec(null, -1);
+
+    private final String delimiter;
+    private final int escape;
+
+    private MultivalueCodec(String delimiter, int escape) {
+        this.delimiter = delimiter;
+        this.escape = escape;
+    }
+
+    /**
+     * Codec keeping every raw value as one value, e.g. for uid and name columns.
+     */
+    public static MultivalueCodec singleValue() {
+        return SINGLE_VALUE;
+    }
+
+    /**
+     * Codec of the multivalue delimiter, it uses the escape character only if multivalue escaping is enabled.
+     */
+    public static MultivalueCodec of(CloudCsvConfiguration configuration) {
+        return of(configuration.getMultivalueDelimiter(),
+                configuration.isMultivalueEscape() ? configuration.getEscape() : null);
+    }
+
+    /**
+     * @param delimiter without delimiter every raw value is one value
+     * @param escape escape character, delimiters aren't escaped without it or if it's part of the delimiter
+     */
+    public static MultivalueCodec of(String delimiter, String escape) {
+        if (StringUtil.isEmpty(delimiter)) {
+            return SINGLE_VALUE;
+        }
+
+        return CODECS.computeIfAbsent(delimiter + '\u0000' + escape, key -> {
+            final boolean escaped = escape != null && escape.length() == 1 && delimiter.indexOf(escape.charAt(0)) < 0;
+            return new MultivalueCodec(delimiter, escaped ? escape.charAt(0) : -1);
+        });
+    }
+
+    public boolean isMultivalued() {
+        return delimiter != null;
+    }
+
+    /**
+     * Non empty values of the raw value as immutable list, raw value is one value if there's no delimiter.
+     */
+    public List<String> split(String raw) {
+        if (raw == null || raw.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        if (delimiter == null) {
+            return Collections.singletonList(raw);
+        }
+
+        if (escape >= 0 && raw.indexOf(escape) >= 0) {
+            return splitEscaped(raw);
+        }
+
+        int next = raw.indexOf(delimiter);
+        if (next < 0) {
+            return Collections.singletonList(raw);
+        }
+
+        final List<String> values = new ArrayList<>();
+        int start = 0;
+        while (next >= 0) {
+            if (next > start) {
+                values.add(raw.substring(start, next));
+            }
+            start = next + delimiter.length();
+            next = raw.indexOf(delimiter, start);
+        }
+        if (start < raw.length()) {
+            values.add(raw.substring(start));
+        }
+
+        return Collections.unmodifiableList(values);
+    }
+
+    private List<String> splitEscaped(String raw) {
+        final List<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+
+        int i = 0;
+        while (i < raw.length()) {
+            final char c = raw.charAt(i);
+            if (c == escape && raw.startsWith(delimiter, i + 1)) {
+                value.append(delimiter);
+                i += 1 + delimiter.length();
+            } else if (c == escape && i + 1 < raw.length() && raw.charAt(i + 1) == escape) {
+                value.append(c);
+                i += 2;
+            } else if (raw.startsWith(delimiter, i)) {
+                addValue(values, value);
+                i += delimiter.length();
+            } else {
+                value.append(c);
+                i++;
+            }
+        }
+        addValue(values, value);
+
+        return Collections.unmodifiableList(values);
+    }
+
+    private static void addValue(List<String> values, StringBuilder value) {
+        if (value.length() > 0) {
+            values.add(value.toString());
+            value.setLength(0);
+        }
+    }
+
+    /**
+     * Appends delimiter, it has to be written between values.
+     */
+    public void appendDelimiter(StringBuilder raw) {
+        raw.append(delimiter);
+    }
+
+    /**
+     * Appends the value escaped, so it's split back as one value. Without escape character the value is appended
+     * as it is.
+     */
+    public void appendValue(StringBuilder raw, String value) {
+        if (delimiter == null || escape < 0 || (value.indexOf(delimiter) < 0 && value.indexOf(escape) < 0)) {
+            // without escape character delimiter in the value can't be told apart
+            raw.append(value);
+            return;
+        }
+
+        int i = 0;
+        while (i < value.length()) {
+            if (value.startsWith(delimiter, i)) {
+                raw.append((char) escape).append(delimiter);
+                i += delimiter.length();
+                continue;
+            }
+
+            final char c = value.charAt(i);
+            if (c == escape && (i + 1 == value.length() || value.charAt(i + 1) == escape
+                    || value.startsWith(delimiter, i + 1))) {
+                // would escape the next character
+                raw.append(c);
+            }
+            raw.append(c);
+            i++;
+        }
+    }
+}
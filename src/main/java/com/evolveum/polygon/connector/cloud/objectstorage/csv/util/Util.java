@@ -1,7 +1,6 @@
 package com.evolveum.polygon.connector.cloud.objectstorage.csv.util;
 
 import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
-import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvObjectStorageConnector;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.QuoteMode;
 import org.identityconnectors.common.Base64;
@@ -90,25 +89,28 @@ public class Util {
         return new BufferedReader(in);
     }
 
+    public static BufferedWriter createWriter(final OutputStream output, final CloudCsvConfiguration configuration) throws IOException {
+        OutputStreamWriter out = new OutputStreamWriter(output, configuration.getEncoding());
+        return new BufferedWriter(out);
+    }
+
     public static boolean checkCanReadFile(File file) {
         if (file == null) {
             LOG.info("File path is not defined!");
             return false;
         }
         
-        synchronized (CloudCsvObjectStorageConnector.SYNCH_FILE_LOCK) {
-        	if (!file.exists()) {
-                LOG.info("File '" + file + "' doesn't exist. A file with a CSV header must exist!");
-                return false;
-        	}
-        	if (file.isDirectory()) {
-                LOG.info("File path '" + file + "' is a directory, must be a CSV file!");
-                return false;
-        	}
-        	if (!file.canRead()) {
-                LOG.info("File '" + file + "' can't be read!");
-                return false;
-        	}
+        if (!file.exists()) {
+            LOG.info("File '" + file + "' doesn't exist. A file with a CSV header must exist!");
+            return false;
+        }
+        if (file.isDirectory()) {
+            LOG.info("File path '" + file + "' is a directory, must be a CSV file!");
+            return false;
+        }
+        if (!file.canRead()) {
+            LOG.info("File '" + file + "' can't be read!");
+            return false;
         }
 
         return true;
@@ -188,11 +190,18 @@ public class Util {
     }
 
     public static String createRawValue(List<Object> values, CloudCsvConfiguration configuration) {
+        return createRawValue(values, MultivalueCodec.of(configuration));
+    }
+
+    /**
+     * Joins the values with the codec, values are escaped by it, so they're split back the same way.
+     */
+    public static String createRawValue(List<Object> values, MultivalueCodec codec) {
         if (values == null || values.isEmpty()) {
             return null;
         }
 
-        if (values.size() > 1 && StringUtil.isEmpty(configuration.getMultivalueDelimiter())) {
+        if (values.size() > 1 && !codec.isMultivalued()) {
             throw new ConnectorException("Multivalue delimiter not defined in connector configuration");
         }
 
@@ -200,25 +209,27 @@ public class Util {
 
         for (int i = 0; i < values.size(); i++) {
             Object obj = values.get(i);
+            String value;
             if (obj instanceof GuardedString) {
                 GuardedString gs = (GuardedString) obj;
                 StringAccessor sa = new StringAccessor();
                 gs.access(sa);
 
-                sb.append(sa.getValue());
+                value = sa.getValue();
             } else if (obj instanceof GuardedByteArray) {
                 GuardedByteArray ga = (GuardedByteArray) obj;
                 ByteArrayAccessor ba = new ByteArrayAccessor();
                 ga.access(ba);
 
-                String value = org.identityconnectors.common.Base64.encode(ba.getValue());
-                sb.append(value);
+                value = org.identityconnectors.common.Base64.encode(ba.getValue());
             } else {
-                sb.append(obj);
+                value = String.valueOf(obj);
             }
 
+            codec.appendValue(sb, value);
+
             if (i + 1 < values.size()) {
-                sb.append(configuration.getMultivalueDelimiter());
+                codec.appendDelimiter(sb);
             }
         }
 
@@ -227,28 +238,20 @@ public class Util {
 
     public static <T extends Object> List<T> createAttributeValues(String raw, Class<T> type,
                                                                    CloudCsvConfiguration configuration) {
+        return createAttributeValues(raw, type, MultivalueCodec.of(configuration));
+    }
+
+    public static <T extends Object> List<T> createAttributeValues(String raw, Class<T> type, MultivalueCodec codec) {
         if (StringUtil.isEmpty(raw)) {
             return new ArrayList<>();
         }
 
         List<T> result = new ArrayList<>();
 
-        if (StringUtil.isEmpty(configuration.getMultivalueDelimiter())) {
-            Object value = createValue(raw, type);
+        for (String item : codec.split(raw)) {
+            T value = (T) createValue(item, type);
             if (value != null) {
-                result.add((T) value);
-            }
-        } else {
-            String[] array = raw.split(configuration.getMultivalueDelimiter());
-            for (String item : array) {
-                if (StringUtil.isEmpty(item)) {
-                    continue;
-                }
-
-                T value = (T) createValue(item, type);
-                if (value != null) {
-                    result.add(value);
-                }
+                result.add(value);
             }
         }
 
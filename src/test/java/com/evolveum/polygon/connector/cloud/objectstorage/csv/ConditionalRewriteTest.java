@@ -0,0 +1,108 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.exceptions.PreconditionFailedException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Rewrites of the CSV object conditional on the version which was read, writes of other nodes between the read
+ * and the write are not overwritten.
+ */
+public class ConditionalRewriteTest extends MemoryStorageBaseTest {
+
+    /**
+     * Storage where another node changes the object every time a rewrite starts, until conflicts run out.
+     */
+    private static class ConflictingStorage extends MemoryStorageService {
+
+        private int conflicts;
+
+        private int attempts;
+
+        ConflictingStorage(CloudCsvConfiguration config, int conflicts) {
+            super(config);
+            this.conflicts = conflicts;
+        }
+
+        @Override
+        public CloudObjectOutputStream getFileAsOutputStream(CloudCsvConfiguration config, String expectedVersion)
+                throws Exception {
+            final CloudObjectOutputStream output = super.getFileAsOutputStream(config, expectedVersion);
+            attempts++;
+            if (conflicts > 0) {
+                conflicts--;
+                final String content = "firstName;uid;lastName;password\n"
+                        + "michal;miso;other" + attempts + ";asdf\n"
+                        + "viliam;vilo;repan;Z29vZA==\n";
+                uploadFileContent(config, config.getFileName(), content.getBytes(StandardCharsets.UTF_8));
+            }
+
+            return output;
+        }
+    }
+
+    @Test
+    public void conflictingWriteIsRetriedWithNewVersion() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final ConflictingStorage storage = createStorage(config, 2);
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null);
+
+        assertEquals(3, storage.attempts);
+        // change of the other node is kept and the update is applied on top of it
+        assertEquals("other2", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+        assertEquals("changed", getValue(find(processor, "vilo"), ATTR_LAST_NAME));
+    }
+
+    @Test
+    public void createIsRetriedWithNewVersion() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final ConflictingStorage storage = createStorage(config, 1);
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.create(ObjectClass.ACCOUNT, new HashSet<>(Arrays.asList(
+                createAttribute(ATTR_UID, "jdoe"), createAttribute(ATTR_LAST_NAME, "doe"))), null);
+
+        assertEquals(2, storage.attempts);
+        assertEquals("other1", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+        assertEquals("doe", getValue(find(processor, "jdoe"), ATTR_LAST_NAME));
+    }
+
+    @Test
+    public void writeFailsWhenAttemptsRunOut() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final ConflictingStorage storage = createStorage(config, Integer.MAX_VALUE);
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        try {
+            processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                    Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null);
+            fail("Update should have failed");
+        } catch (PreconditionFailedException ex) {
+            // expected
+        }
+
+        assertEquals(5, storage.attempts);
+        assertEquals("other5", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+        assertEquals("repan", getValue(find(processor, "vilo"), ATTR_LAST_NAME));
+    }
+
+    private ConflictingStorage createStorage(CloudCsvConfiguration config, int conflicts) throws Exception {
+        MemoryStorageService.clearBucket(config.getBucketName());
+
+        final ConflictingStorage storage = new ConflictingStorage(config, conflicts);
+        storage.uploadFile(config, new File(BaseTest.TEMPLATE_FOLDER_PATH + "/update.csv"));
+
+        return storage;
+    }
+}
@@ -0,0 +1,177 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.util.Util;
+import org.apache.commons.csv.CSVRecord;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Differential test of the connector's own CSV parsers, they have to return exactly the same records
+ * as commons-csv parser with the same configuration, or fail if it fails.
+ */
+public class CsvTokenizerTest {
+
+    private static final String[] ALPHABET = {",", ";", "\t", "\"", "\\", "#", "\r", "\n", "\r\n", " ", "a", "b",
+            "n", "\u00e9", "\u3000", "\u2003", "\u20ac"};
+
+    private static final String[] LATIN1_ALPHABET = {",", ";", "\t", "\"", "\\", "#", "\r", "\n", "\r\n", " ",
+            "a", "b", "n", "\u00e9", "\u00a0"};
+
+    @Test
+    public void simpleRecords() throws Exception {
+        assertSameRecords(createConfiguration(), "id,name\n1,a\n2,b\n");
+        assertSameRecords(createConfiguration(), "id,name\r\n1,a\r\n2,b");
+        assertSameRecords(createConfiguration(), "1,,3,\n,\n");
+    }
+
+    @Test
+    public void quotedValues() throws Exception {
+        assertSameRecords(createConfiguration(), "\"a,b\",\"c\"\"d\",\"e\nf\"\n\"\",x");
+        assertSameRecords(createConfiguration(), "\"a\"  ,b\n");
+        assertSameRecords(createConfiguration(), "a\"b\",c\n");
+    }
+
+    @Test
+    public void escapedCharacters() throws Exception {
+        assertSameRecords(createConfiguration(), "a\\,b,c\\\\d,e\\n\\tf,\\x\n\"g\\\"h\"\n");
+    }
+
+    @Test
+    public void commentsAndEmptyLines() throws Exception {
+        final CloudCsvConfiguration configuration = createConfiguration();
+        assertSameRecords(configuration, "# comment\n\n\na,b\n#x\n\nc,d\n#");
+
+        configuration.setIgnoreEmptyLines(false);
+        assertSameRecords(configuration, "# comment\n\n\na,b\n#x\n\nc,d\n#");
+    }
+
+    @Test
+    public void surroundingSpacesAndTrim() throws Exception {
+        final CloudCsvConfiguration configuration = createConfiguration();
+        configuration.setIgnoreSurroundingSpaces(true);
+        assertSameRecords(configuration, "  a  , \"b \" ,\u3000c\u3000\n\t,\n");
+
+        configuration.setIgnoreSurroundingSpaces(false);
+        configuration.setTrim(true);
+        assertSameRecords(configuration, "  a  , \"b \" ,\u3000c\u3000\n\t,\n");
+    }
+
+    @Test
+    public void trailingDelimiter() throws Exception {
+        final CloudCsvConfiguration configuration = createConfiguration();
+        configuration.setTrailingDelimiter(true);
+        assertSameRecords(configuration, "a,b,\nc,\n,\n");
+    }
+
+    @Test
+    public void invalidContent() throws Exception {
+        assertSameRecords(createConfiguration(), "a,\"b");
+        assertSameRecords(createConfiguration(), "a,\"b\"c,d");
+        assertSameRecords(createConfiguration(), "a,b\\");
+    }
+
+    @Test
+    public void randomContent() throws Exception {
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final CloudCsvConfiguration configuration = createRandomConfiguration(random);
+            final String[] alphabet = "UTF-8".equals(configuration.getEncoding()) ? ALPHABET : LATIN1_ALPHABET;
+
+            final StringBuilder content = new StringBuilder();
+            final int length = random.nextInt(80);
+            for (int j = 0; j < length; j++) {
+                content.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+
+            assertSameRecords(configuration, content.toString());
+        }
+    }
+
+    private CloudCsvConfiguration createConfiguration() throws Exception {
+        final CloudCsvConfiguration configuration = new CloudCsvConfiguration();
+        configuration.setFieldDelimiter(",");
+
+        return configuration;
+    }
+
+    private CloudCsvConfiguration createRandomConfiguration(Random random) throws Exception {
+        final CloudCsvConfiguration configuration = new CloudCsvConfiguration();
+        configuration.setEncoding(random.nextBoolean() ? "UTF-8" : "ISO-8859-1");
+        configuration.setFieldDelimiter(new String[]{",", ";", "\t"}[random.nextInt(3)]);
+        configuration.setQuote(random.nextInt(5) == 0 ? null : "\"");
+        configuration.setEscape(random.nextInt(3) == 0 ? null : "\\");
+        configuration.setCommentMarker(random.nextInt(3) == 0 ? null : "#");
+        configuration.setIgnoreEmptyLines(random.nextBoolean());
+        configuration.setIgnoreSurroundingSpaces(random.nextBoolean());
+        configuration.setTrim(random.nextBoolean());
+        configuration.setTrailingDelimiter(random.nextBoolean());
+
+        return configuration;
+    }
+
+    private void assertSameRecords(CloudCsvConfiguration configuration, String content) throws Exception {
+        final List<String> expected = new ArrayList<>();
+        try (Reader reader = new StringReader(content)) {
+            for (CSVRecord record : Util.createCsvFormatReader(configuration).parse(reader)) {
+                final List<String> values = new ArrayList<>();
+                record.forEach(values::add);
+                expected.add(record.getRecordNumber() + ":" + values);
+            }
+        } catch (IOException | IllegalStateException ex) {
+            expected.add("error");
+        }
+
+        final String message = "Content '" + content + "' with " + describe(configuration);
+
+        assertEquals(message, expected, readRecords(new CsvTokenizer(new StringReader(content), configuration)));
+
+        final File file = File.createTempFile("csv-tokenizer-test", ".csv");
+        try {
+            Files.write(file.toPath(), content.getBytes(Charset.forName(configuration.getEncoding())));
+            final ObjectSnapshot snapshot = new ObjectSnapshot("1", file, false);
+            assertTrue(MappedCsvRowReader.isSupported(snapshot, configuration));
+
+            assertEquals(message, expected, readRecords(MappedCsvRowReader.open(snapshot, configuration)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private List<String> readRecords(CsvRowReader reader) throws IOException {
+        final List<String> records = new ArrayList<>();
+        try (CsvRowReader rows = reader) {
+            CsvRow row;
+            while ((row = rows.next()) != null) {
+                final List<String> values = new ArrayList<>();
+                // views and strings of the same row have to be the same
+                for (int i = 0; i < row.size(); i++) {
+                    values.add(row.getView(i).toString());
+                    assertEquals(values.get(i), row.get(i));
+                }
+                records.add(row.getRecordNumber() + ":" + values);
+            }
+        } catch (IOException ex) {
+            records.add("error");
+        }
+
+        return records;
+    }
+
+    private String describe(CloudCsvConfiguration configuration) {
+        return "encoding " + configuration.getEncoding() + ", delimiter '" + configuration.getFieldDelimiter()
+                + "', quote " + configuration.getQuote() + ", escape " + configuration.getEscape()
+                + ", comment " + configuration.getCommentMarker()
+                + ", ignore empty lines " + configuration.isIgnoreEmptyLines()
+                + ", ignore surrounding spaces " + configuration.isIgnoreSurroundingSpaces()
+                + ", trim " + configuration.isTrim() + ", trailing delimiter " + configuration.isTrailingDelimiter();
+    }
+}
@@ -0,0 +1,306 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.PreconditionFailedException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Writes appended to the delta log, reads merging it with the CSV object, compaction and writers of several nodes
+ * appending to the same log.
+ */
+public class DeltaLogTest extends MemoryStorageBaseTest {
+
+    private static final String LOG_FOLDER = FILE_NAME + ".log/";
+
+    /**
+     * Storage of another node, it shares the bucket with other nodes, but not the locks and caches of the object.
+     * The hook runs once, right before the first delta object is created.
+     */
+    private static class NodeStorage extends MemoryStorageService {
+
+        private final String node;
+
+        private Callable<?> beforeCreate;
+
+        NodeStorage(CloudCsvConfiguration config, String node) {
+            super(config);
+            this.node = node;
+        }
+
+        @Override
+        public String getObjectKey(CloudCsvConfiguration config) {
+            return super.getObjectKey(config) + "#" + node;
+        }
+
+        @Override
+        public void createFileContent(CloudCsvConfiguration config, String name, byte[] content) throws IOException {
+            final Callable<?> hook = beforeCreate;
+            beforeCreate = null;
+            if (hook != null) {
+                try {
+                    hook.call();
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            super.createFileContent(config, name, content);
+        }
+    }
+
+    @Test
+    public void writesAreAppendedAsNumberedDeltaObjects() throws Exception {
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(100);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+        final String original = readObject(config, storage);
+
+        processor.create(ObjectClass.ACCOUNT, createAccount("jdoe", "john", "doe"), null);
+        processor.update(ObjectClass.ACCOUNT, new Uid("miso"), set(createAttribute(ATTR_LAST_NAME, "mlok")), null);
+        processor.delete(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+
+        // CSV object itself isn't touched
+        assertEquals(original, readObject(config, storage));
+
+        final List<String> names = storage.listFolder(config, LOG_FOLDER);
+        assertEquals(3, names.size());
+        assertEquals(LOG_FOLDER + "0000000000001", names.get(0));
+        assertEquals(LOG_FOLDER + "0000000000002", names.get(1));
+        assertEquals(LOG_FOLDER + "0000000000003", names.get(2));
+
+        assertEquals("+;jdoe;john;jdoe;doe;secret\r\n", readObject(config, storage, names.get(0)));
+        assertEquals("+;miso;michal;miso;mlok;asdf\r\n", readObject(config, storage, names.get(1)));
+        assertEquals("-;vilo\r\n", readObject(config, storage, names.get(2)));
+    }
+
+    @Test
+    public void readsMergeDeltaLogWithObject() throws Exception {
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(100);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.create(ObjectClass.ACCOUNT, createAccount("jdoe", "john", "doe"), null);
+        processor.update(ObjectClass.ACCOUNT, new Uid("miso"), set(createAttribute(ATTR_LAST_NAME, "mlok")), null);
+        processor.delete(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+
+        // another processor doesn't have anything cached
+        final CloudCsvProcessor reader = createProcessor(config, new NodeStorage(config, "reader"));
+        final List<ConnectorObject> objects = search(reader);
+        assertEquals(2, objects.size());
+        assertEquals("miso", objects.get(0).getUid().getUidValue());
+        assertEquals("mlok", getValue(objects.get(0), ATTR_LAST_NAME));
+        assertEquals("jdoe", objects.get(1).getUid().getUidValue());
+        assertNull(find(reader, "vilo"));
+    }
+
+    @Test
+    public void compactionFoldsDeltaLogIntoObject() throws Exception {
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(3);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.create(ObjectClass.ACCOUNT, createAccount("jdoe", "john", "doe"), null);
+        processor.update(ObjectClass.ACCOUNT, new Uid("miso"), set(createAttribute(ATTR_LAST_NAME, "mlok")), null);
+        processor.delete(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+
+        assertEquals("firstName;uid;lastName;password\r\n"
+                + "michal;miso;mlok;asdf\r\n"
+                + "john;jdoe;doe;secret\r\n", readObject(config, storage));
+
+        // newest delta object stays, the next one continues the sequence
+        assertEquals(Arrays.asList(LOG_FOLDER + "0000000000003", LOG_FOLDER + "compacted-0000000000002"),
+                storage.listFolder(config, LOG_FOLDER));
+        processor.update(ObjectClass.ACCOUNT, new Uid("jdoe"), set(createAttribute(ATTR_FIRST_NAME, "johnny")), null);
+
+        final List<String> names = storage.listFolder(config, LOG_FOLDER);
+        assertEquals(LOG_FOLDER + "0000000000003", names.get(0));
+        assertEquals(LOG_FOLDER + "0000000000004", names.get(1));
+
+        final List<ConnectorObject> objects = search(processor);
+        assertEquals(2, objects.size());
+        assertEquals("mlok", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+        assertEquals("johnny", getValue(find(processor, "jdoe"), ATTR_FIRST_NAME));
+    }
+
+    /**
+     * Node 1 stalls after it listed the log, meanwhile node 2 appends and compacts past its sequence number,
+     * so the name node 1 appends as is free again.
+     */
+    @Test
+    public void stalledWriterDoesntOverwriteCompactedChanges() throws Exception {
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(3);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final NodeStorage storage1 = new NodeStorage(config, "1");
+        final CloudCsvProcessor node1 = createProcessor(config, storage1);
+        final CloudCsvProcessor node2 = createProcessor(config, new NodeStorage(config, "2"));
+
+        storage1.beforeCreate = () -> {
+            node2.update(ObjectClass.ACCOUNT, new Uid("miso"), set(createAttribute(ATTR_FIRST_NAME, "michael")), null);
+            node2.update(ObjectClass.ACCOUNT, new Uid("vilo"), set(createAttribute(ATTR_LAST_NAME, "x")), null);
+            node2.update(ObjectClass.ACCOUNT, new Uid("vilo"), set(createAttribute(ATTR_LAST_NAME, "y")), null);
+            // compaction removed the name node 1 is about to create
+            assertFalse(storage.listFolder(config, LOG_FOLDER).contains(LOG_FOLDER + "0000000000001"));
+            return null;
+        };
+
+        node1.update(ObjectClass.ACCOUNT, new Uid("miso"), set(createAttribute(ATTR_LAST_NAME, "mlok")), null);
+
+        final CloudCsvProcessor reader = createProcessor(config, new NodeStorage(config, "reader"));
+        final ConnectorObject miso = find(reader, "miso");
+        assertEquals("michael", getValue(miso, ATTR_FIRST_NAME));
+        assertEquals("mlok", getValue(miso, ATTR_LAST_NAME));
+        assertEquals("y", getValue(find(reader, "vilo"), ATTR_LAST_NAME));
+
+        // stale delta object was removed, the write was appended again after the newest one
+        assertEquals(Arrays.asList(LOG_FOLDER + "0000000000003", LOG_FOLDER + "0000000000004",
+                LOG_FOLDER + "compacted-0000000000002"), storage.listFolder(config, LOG_FOLDER));
+    }
+
+    @Test
+    public void createOfTheSameUidOnAnotherNodeFails() throws Exception {
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(100);
+        createStorage(config, "/update.csv");
+        final NodeStorage storage1 = new NodeStorage(config, "1");
+        final CloudCsvProcessor node1 = createProcessor(config, storage1);
+        final CloudCsvProcessor node2 = createProcessor(config, new NodeStorage(config, "2"));
+
+        // node 2 creates the account after node 1 read the log, but before it appended to it
+        storage1.beforeCreate = () -> node2.create(ObjectClass.ACCOUNT, createAccount("jdoe", "john", "doe"), null);
+
+        try {
+            node1.create(ObjectClass.ACCOUNT, createAccount("jdoe", "jane", "doe"), null);
+            fail("Account was created twice");
+        } catch (AlreadyExistsException ex) {
+            // expected
+        }
+
+        final ConnectorObject created = find(node1, "jdoe");
+        assertEquals("john", getValue(created, ATTR_FIRST_NAME));
+        assertEquals(3, search(node2).size());
+        assertEquals(1, storage1.listFolder(config, LOG_FOLDER).size());
+    }
+
+    @Test
+    public void concurrentUpdatesOfAnotherNodeAreKept() throws Exception {
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(100);
+        createStorage(config, "/update.csv");
+        final NodeStorage storage1 = new NodeStorage(config, "1");
+        final CloudCsvProcessor node1 = createProcessor(config, storage1);
+        final CloudCsvProcessor node2 = createProcessor(config, new NodeStorage(config, "2"));
+
+        storage1.beforeCreate = () -> node2.update(ObjectClass.ACCOUNT, new Uid("miso"),
+                set(createAttribute(ATTR_FIRST_NAME, "michael")), null);
+
+        node1.update(ObjectClass.ACCOUNT, new Uid("miso"), set(createAttribute(ATTR_LAST_NAME, "mlok")), null);
+
+        for (CloudCsvProcessor node : new CloudCsvProcessor[]{node1, node2}) {
+            final ConnectorObject miso = find(node, "miso");
+            assertEquals("michael", getValue(miso, ATTR_FIRST_NAME));
+            assertEquals("mlok", getValue(miso, ATTR_LAST_NAME));
+        }
+        assertEquals(2, storage1.listFolder(config, LOG_FOLDER).size());
+    }
+
+    /**
+     * Writes may fail with {@link PreconditionFailedException} once they run out of attempts, but a write which
+     * succeeded must be seen by everybody.
+     */
+    @Test
+    public void writersOfSeveralNodesDontLoseRecords() throws Exception {
+        final int nodes = 3;
+        final int threads = 3;
+        final int accounts = 10;
+
+        final CloudCsvConfiguration config = createDeltaLogConfiguration(5);
+        createStorage(config, "/update.csv");
+
+        // last name of every created account
+        final Map<String, String> expected = new ConcurrentHashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(nodes * threads);
+        final List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int n = 0; n < nodes; n++) {
+                final CloudCsvProcessor node = createProcessor(config, new NodeStorage(config, Integer.toString(n)));
+                for (int t = 0; t < threads; t++) {
+                    final String prefix = "u" + n + "-" + t + "-";
+                    results.add(executor.submit(() -> {
+                        for (int i = 0; i < accounts; i++) {
+                            final String uid = prefix + i;
+                            try {
+                                node.create(ObjectClass.ACCOUNT, createAccount(uid, "first", "last"), null);
+                                expected.put(uid, "last");
+                                node.update(ObjectClass.ACCOUNT, new Uid(uid),
+                                        set(createAttribute(ATTR_LAST_NAME, "changed")), null);
+                                expected.put(uid, "changed");
+                            } catch (PreconditionFailedException ex) {
+                                // write wasn't done
+                            }
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final CloudCsvProcessor reader = createProcessor(config, new NodeStorage(config, "reader"));
+        final Map<String, String> actual = new HashMap<>();
+        for (ConnectorObject object : search(reader)) {
+            final String uid = object.getUid().getUidValue();
+            assertNull("Duplicate record " + uid, actual.put(uid, (String) getValue(object, ATTR_LAST_NAME)));
+        }
+        actual.remove("miso");
+        actual.remove("vilo");
+
+        assertEquals(expected, actual);
+        assertTrue(expected.size() > nodes * threads * accounts / 2);
+    }
+
+    private CloudCsvConfiguration createDeltaLogConfiguration(int compactionThreshold) throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setDeltaLog(true);
+        config.setDeltaLogCompactionThreshold(compactionThreshold);
+
+        return config;
+    }
+
+    private Set<Attribute> createAccount(String uid, String firstName, String lastName) {
+        return set(new Name(uid), createAttribute(ATTR_FIRST_NAME, firstName),
+                createAttribute(ATTR_LAST_NAME, lastName),
+                createAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString("secret".toCharArray())));
+    }
+
+    private Set<Attribute> set(Attribute... attributes) {
+        final Set<Attribute> set = new HashSet<>();
+        for (Attribute attribute : attributes) {
+            set.add(attribute);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,174 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.testng.annotations.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Filters translated to {@link CsvFilter} and evaluated against the raw records. Every search returns the same
+ * objects the framework filter accepts, except for uid which was always matched ignoring case.
+ */
+public class FilterPushdownTest extends MemoryStorageBaseTest {
+
+    private static final String ATTR_GROUPS = "groups";
+
+    private static final String CONTENT = "uid;firstName;lastName;password;groups\r\n"
+            + "jdoe;John;Doe;x;admins,users\r\n"
+            + "JSmith;Jane;Smith;x;users\r\n"
+            + "abrown;Adam;Brown;x;\r\n"
+            + "mblack;Mary;;x;admins\r\n";
+
+    @Test
+    public void equals() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        assertFound(processor, FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "John")), "jdoe");
+        // values are compared as they are
+        assertFound(processor, FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "john")));
+        assertFound(processor, FilterBuilder.equalTo(createAttribute(ATTR_LAST_NAME, "Brown")), "abrown");
+    }
+
+    @Test
+    public void stringMatches() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        assertFound(processor, FilterBuilder.startsWith(createAttribute(ATTR_FIRST_NAME, "J")), "JSmith", "jdoe");
+        assertFound(processor, FilterBuilder.endsWith(createAttribute(ATTR_LAST_NAME, "n")), "abrown");
+        assertFound(processor, FilterBuilder.contains(createAttribute(ATTR_LAST_NAME, "mit")), "JSmith");
+        assertFound(processor, FilterBuilder.contains(createAttribute(ATTR_LAST_NAME, "x")));
+    }
+
+    @Test
+    public void comparisons() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        // empty last name of mblack isn't an attribute at all
+        assertFound(processor, FilterBuilder.greaterThan(createAttribute(ATTR_LAST_NAME, "Doe")), "JSmith");
+        assertFound(processor, FilterBuilder.greaterThanOrEqualTo(createAttribute(ATTR_LAST_NAME, "Doe")),
+                "JSmith", "jdoe");
+        assertFound(processor, FilterBuilder.lessThan(createAttribute(ATTR_LAST_NAME, "Doe")), "abrown");
+        assertFound(processor, FilterBuilder.lessThanOrEqualTo(createAttribute(ATTR_LAST_NAME, "Doe")),
+                "abrown", "jdoe");
+    }
+
+    @Test
+    public void logicalOperators() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        assertFound(processor, FilterBuilder.and(
+                FilterBuilder.startsWith(createAttribute(ATTR_FIRST_NAME, "J")),
+                FilterBuilder.endsWith(createAttribute(ATTR_LAST_NAME, "e"))), "jdoe");
+        assertFound(processor, FilterBuilder.or(
+                FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "Adam")),
+                FilterBuilder.endsWith(createAttribute(ATTR_LAST_NAME, "e"))), "abrown", "jdoe");
+        assertFound(processor, FilterBuilder.not(FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "John"))),
+                "JSmith", "abrown", "mblack");
+        assertFound(processor, FilterBuilder.not(FilterBuilder.or(
+                FilterBuilder.startsWith(createAttribute(ATTR_FIRST_NAME, "M")),
+                FilterBuilder.lessThan(createAttribute(ATTR_LAST_NAME, "Doe")))), "JSmith", "jdoe");
+    }
+
+    @Test
+    public void multivaluedColumn() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        // all values have to be equal, in the same order
+        assertFound(processor, FilterBuilder.equalTo(createAttribute(ATTR_GROUPS, "users")), "JSmith");
+        assertFound(processor, FilterBuilder.equalTo(createAttribute(ATTR_GROUPS, "admins", "users")), "jdoe");
+        assertFound(processor, FilterBuilder.equalTo(createAttribute(ATTR_GROUPS, "users", "admins")));
+
+        // string filters look only at the first value
+        assertFound(processor, FilterBuilder.startsWith(createAttribute(ATTR_GROUPS, "adm")), "jdoe", "mblack");
+        assertFound(processor, FilterBuilder.startsWith(createAttribute(ATTR_GROUPS, "us")), "JSmith");
+
+        // multiple values are never greater
+        assertFound(processor, FilterBuilder.greaterThan(createAttribute(ATTR_GROUPS, "a")), "JSmith", "mblack");
+    }
+
+    @Test
+    public void uidIsMatchedIgnoringCase() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        assertEquals(Collections.singletonList("JSmith"), search(processor, FilterBuilder.equalTo(new Uid("jsmith"))));
+        assertEquals(Collections.singletonList("jdoe"), search(processor, FilterBuilder.equalTo(new Uid("JDOE"))));
+        assertEquals(Collections.emptyList(), search(processor, FilterBuilder.equalTo(new Uid("jdo"))));
+    }
+
+    /**
+     * Filters which require the uid are evaluated only on the candidates found through the index, the others
+     * have to read all records.
+     */
+    @Test
+    public void indexLookupWithNotAndOr() throws Exception {
+        final CloudCsvProcessor processor = createProcessor();
+
+        assertFound(processor, FilterBuilder.and(
+                FilterBuilder.equalTo(new Uid("jdoe")),
+                FilterBuilder.not(FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "John")))));
+        assertFound(processor, FilterBuilder.and(
+                FilterBuilder.not(FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "Adam"))),
+                FilterBuilder.equalTo(new Uid("jdoe"))), "jdoe");
+        assertFound(processor, FilterBuilder.not(FilterBuilder.equalTo(new Uid("jdoe"))),
+                "JSmith", "abrown", "mblack");
+        assertFound(processor, FilterBuilder.or(
+                FilterBuilder.equalTo(new Uid("jdoe")),
+                FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "Adam"))), "abrown", "jdoe");
+        assertFound(processor, FilterBuilder.or(
+                FilterBuilder.equalTo(new Uid("jdoe")),
+                FilterBuilder.equalTo(new Uid("mblack"))), "jdoe", "mblack");
+    }
+
+    private CloudCsvProcessor createProcessor() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setMultivalueDelimiter(",");
+        config.setMultivalueAttributes(ATTR_GROUPS);
+
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        storage.uploadFileContent(config, FILE_NAME, CONTENT.getBytes(StandardCharsets.UTF_8));
+
+        return createProcessor(config, storage);
+    }
+
+    /**
+     * Checks the translated filter finds the objects and that the framework filter accepts just the same ones.
+     */
+    private void assertFound(CloudCsvProcessor processor, Filter filter, String... uids) {
+        final List<String> expected = new ArrayList<>(Arrays.asList(uids));
+        Collections.sort(expected);
+
+        final List<String> accepted = new ArrayList<>();
+        for (ConnectorObject object : search(processor)) {
+            if (filter.accept(object)) {
+                accepted.add(object.getUid().getUidValue());
+            }
+        }
+        Collections.sort(accepted);
+        assertEquals("Framework filter " + filter, expected, accepted);
+
+        assertEquals("Translated filter " + filter, expected, search(processor, filter));
+    }
+
+    private List<String> search(CloudCsvProcessor processor, Filter filter) {
+        final List<CsvFilter> filters = processor.createFilterTranslator(ObjectClass.ACCOUNT, null).translate(filter);
+        assertEquals("Filter " + filter + " wasn't translated", 1, filters.size());
+        assertNotNull(filters.get(0));
+
+        final List<String> uids = new ArrayList<>();
+        processor.executeQuery(ObjectClass.ACCOUNT, filters.get(0), object -> uids.add(object.getUid().getUidValue()),
+                new OperationOptionsBuilder().build());
+        Collections.sort(uids);
+
+        return uids;
+    }
+}
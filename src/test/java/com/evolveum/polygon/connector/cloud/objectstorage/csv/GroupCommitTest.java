@@ -0,0 +1,131 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Writes of several callers waiting for the same object are written in one rewrite, every caller gets the result
+ * of its own write.
+ */
+public class GroupCommitTest extends MemoryStorageBaseTest {
+
+    private static final long TIMEOUT = 10;
+
+    /**
+     * Storage counting rewrites of the object.
+     */
+    private static class CountingStorage extends MemoryStorageService {
+
+        private final AtomicInteger rewrites = new AtomicInteger();
+
+        CountingStorage(CloudCsvConfiguration config) {
+            super(config);
+        }
+
+        @Override
+        public CloudObjectOutputStream getFileAsOutputStream(CloudCsvConfiguration config, String expectedVersion)
+                throws Exception {
+            rewrites.incrementAndGet();
+            return super.getFileAsOutputStream(config, expectedVersion);
+        }
+    }
+
+    @Test
+    public void everyCallerGetsItsOwnResult() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        MemoryStorageService.clearBucket(config.getBucketName());
+        final CountingStorage storage = new CountingStorage(config);
+        storage.uploadFile(config, new File(BaseTest.TEMPLATE_FOLDER_PATH + "/update.csv"));
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final List<Callable<Uid>> writes = Arrays.asList(
+                () -> processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                        Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null),
+                () -> processor.update(ObjectClass.ACCOUNT, new Uid("unknown"),
+                        Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null),
+                () -> processor.create(ObjectClass.ACCOUNT, new HashSet<>(Arrays.asList(
+                        createAttribute(ATTR_UID, "miso"), createAttribute(ATTR_LAST_NAME, "duplicate"))), null),
+                () -> processor.create(ObjectClass.ACCOUNT, new HashSet<>(Arrays.asList(
+                        createAttribute(ATTR_UID, "jdoe"), createAttribute(ATTR_LAST_NAME, "doe"))), null));
+
+        final List<Future<Uid>> results = submitWhileLocked(storage.getObjectKey(config), writes);
+
+        assertEquals("vilo", results.get(0).get(TIMEOUT, TimeUnit.SECONDS).getUidValue());
+        assertFailure(results.get(1), UnknownUidException.class);
+        assertFailure(results.get(2), AlreadyExistsException.class);
+        assertEquals("jdoe", results.get(3).get(TIMEOUT, TimeUnit.SECONDS).getUidValue());
+
+        assertEquals(1, storage.rewrites.get());
+        assertEquals("changed", getValue(find(processor, "vilo"), ATTR_LAST_NAME));
+        assertEquals("asdf", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+        assertEquals("doe", getValue(find(processor, "jdoe"), ATTR_LAST_NAME));
+        assertEquals(3, search(processor).size());
+    }
+
+    /**
+     * Starts the writes while the object is locked, so they all wait in the queue, then unlocks the object.
+     */
+    private List<Future<Uid>> submitWhileLocked(String objectKey, List<Callable<Uid>> writes) throws Exception {
+        final Lock lock = ObjectLockRegistry.getInstance().getLock(objectKey).writeLock();
+        final ExecutorService executor = Executors.newFixedThreadPool(writes.size());
+        final List<Future<Uid>> results = new ArrayList<>();
+
+        lock.lock();
+        try {
+            final List<Thread> threads = new ArrayList<>();
+            for (Callable<Uid> write : writes) {
+                results.add(executor.submit(() -> {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return write.call();
+                }));
+            }
+
+            // all writers wait for the lock
+            while (!allWaiting(threads, writes.size())) {
+                Thread.sleep(10);
+            }
+        } finally {
+            lock.unlock();
+            executor.shutdown();
+        }
+
+        return results;
+    }
+
+    private boolean allWaiting(List<Thread> threads, int count) {
+        synchronized (threads) {
+            return threads.size() == count
+                    && threads.stream().allMatch(thread -> thread.getState() == Thread.State.TIMED_WAITING);
+        }
+    }
+
+    private void assertFailure(Future<Uid> result, Class<? extends Exception> type) throws Exception {
+        try {
+            result.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Write should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause().toString(), type.isInstance(ex.getCause()));
+        }
+    }
+}
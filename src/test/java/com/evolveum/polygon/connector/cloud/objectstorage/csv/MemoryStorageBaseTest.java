@@ -0,0 +1,102 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests running against the in-memory provider, they don't need any S3 bucket. Every configuration gets a bucket
+ * of its own, so objects, snapshots and caches of one test don't leak into another.
+ */
+public abstract class MemoryStorageBaseTest {
+
+    public static final String FILE_NAME = "data.csv";
+
+    public static final String ATTR_UID = BaseTest.ATTR_UID;
+    public static final String ATTR_FIRST_NAME = BaseTest.ATTR_FIRST_NAME;
+    public static final String ATTR_LAST_NAME = BaseTest.ATTR_LAST_NAME;
+    public static final String ATTR_PASSWORD = BaseTest.ATTR_PASSWORD;
+
+    private static final AtomicInteger BUCKETS = new AtomicInteger();
+
+    protected CloudCsvConfiguration createConfiguration() throws Exception {
+        final CloudCsvConfiguration config = new CloudCsvConfiguration();
+        config.setCloudObjectStorageProvider("memory");
+        config.setBucketName(getClass().getSimpleName() + "-" + BUCKETS.incrementAndGet());
+        config.setFileName(FILE_NAME);
+        config.setUniqueAttribute(ATTR_UID);
+        config.setPasswordAttribute(ATTR_PASSWORD);
+
+        return config;
+    }
+
+    /**
+     * Empty bucket of the configuration with just the CSV object copied from the template.
+     */
+    protected MemoryStorageService createStorage(CloudCsvConfiguration config, String csvTemplate) throws Exception {
+        MemoryStorageService.clearBucket(config.getBucketName());
+
+        final MemoryStorageService storage = new MemoryStorageService(config);
+        storage.uploadFile(config, new File(BaseTest.TEMPLATE_FOLDER_PATH + csvTemplate));
+
+        return storage;
+    }
+
+    protected CloudCsvProcessor createProcessor(CloudCsvConfiguration config, CloudStorageService storage)
+            throws Exception {
+        config.validate();
+        return new CloudCsvProcessor(config, storage);
+    }
+
+    protected String readObject(CloudCsvConfiguration config, CloudStorageService storage, String name)
+            throws Exception {
+        return new String(storage.getFileContent(config, name), StandardCharsets.UTF_8);
+    }
+
+    protected String readObject(CloudCsvConfiguration config, CloudStorageService storage) throws Exception {
+        return readObject(config, storage, config.getFileName());
+    }
+
+    protected List<ConnectorObject> search(CloudCsvProcessor processor) {
+        return search(processor, new OperationOptionsBuilder().build());
+    }
+
+    protected List<ConnectorObject> search(CloudCsvProcessor processor, OperationOptions options) {
+        final List<ConnectorObject> objects = new ArrayList<>();
+        processor.executeQuery(ObjectClass.ACCOUNT, null, objects::add, options);
+
+        return objects;
+    }
+
+    /**
+     * Object with the uid, null if there isn't any.
+     */
+    protected ConnectorObject find(CloudCsvProcessor processor, String uid) {
+        for (ConnectorObject object : search(processor)) {
+            if (uid.equals(object.getUid().getUidValue())) {
+                return object;
+            }
+        }
+
+        return null;
+    }
+
+    protected Object getValue(ConnectorObject object, String name) {
+        final Attribute attribute = object.getAttributeByName(name);
+        return attribute != null && attribute.getValue() != null && !attribute.getValue().isEmpty()
+                ? attribute.getValue().get(0) : null;
+    }
+
+    protected Attribute createAttribute(String name, Object... values) {
+        return AttributeBuilder.build(name, values);
+    }
+}
@@ -0,0 +1,89 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Multivalued columns with escaped multivalue delimiter written by the connector and read back after the object
+ * was rewritten.
+ */
+public class MultivalueEscapeTest extends MemoryStorageBaseTest {
+
+    private static final List<Object> VALUES = Arrays.asList("a|b", "c\\", "d");
+
+    @Test
+    public void escapedValuesSurviveRewrite() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setMultivalueDelimiter("|");
+        config.setMultivalueEscape(true);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_FIRST_NAME, VALUES.toArray())), null);
+        assertEquals(VALUES, getValues(find(processor, "vilo"), ATTR_FIRST_NAME));
+
+        // another record is rewritten, the escaped column is parsed and printed again
+        processor.update(ObjectClass.ACCOUNT, new Uid("miso"),
+                Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null);
+        assertEquals(VALUES, getValues(find(processor, "vilo"), ATTR_FIRST_NAME));
+        assertEquals("changed", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+
+        // adding a value rewrites the escaped column itself
+        processor.addAttributeValues(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_FIRST_NAME, "e|")), null);
+        assertEquals(Arrays.asList("a|b", "c\\", "d", "e|"), getValues(find(processor, "vilo"), ATTR_FIRST_NAME));
+    }
+
+    @Test
+    public void singleValuesAreEscaped() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setMultivalueDelimiter("|");
+        config.setMultivalueEscape(true);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_FIRST_NAME, "a|b")), null);
+        processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_LAST_NAME, "x\\|y")), null);
+        processor.create(ObjectClass.ACCOUNT, new HashSet<>(Arrays.asList(createAttribute(ATTR_UID, "jd|oe"),
+                createAttribute(ATTR_LAST_NAME, "do\\"))), null);
+
+        assertEquals(Collections.singletonList("a|b"), getValues(find(processor, "vilo"), ATTR_FIRST_NAME));
+        assertEquals(Collections.singletonList("x\\|y"), getValues(find(processor, "vilo"), ATTR_LAST_NAME));
+        assertEquals(Collections.singletonList("do\\"), getValues(find(processor, "jd|oe"), ATTR_LAST_NAME));
+
+        // uid is never split, so it's written as it is
+        assertTrue(readObject(config, storage).contains(";jd|oe;"));
+    }
+
+    @Test
+    public void delimiterInValueIsNotEscapedByDefault() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setMultivalueDelimiter("|");
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_FIRST_NAME, VALUES.toArray())), null);
+
+        assertEquals(Arrays.asList("a", "b", "c\\", "d"), getValues(find(processor, "vilo"), ATTR_FIRST_NAME));
+        // the CSV escape character is escaped by the printer, the column value is a|b|c\|d
+        assertTrue(readObject(config, storage).contains("\"a|b|c\\\\|d\";vilo"));
+    }
+
+    private static List<Object> getValues(ConnectorObject object, String name) {
+        final Attribute attribute = object.getAttributeByName(name);
+        return attribute != null ? attribute.getValue() : null;
+    }
+}
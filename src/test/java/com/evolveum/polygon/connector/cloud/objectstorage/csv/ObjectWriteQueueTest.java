@@ -0,0 +1,168 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.testng.annotations.Test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Group commit of {@link ObjectWriteQueue}, writes waiting for the object lock are written in one batch and every
+ * submitter gets the result of its own write.
+ */
+public class ObjectWriteQueueTest {
+
+    private static final long TIMEOUT = 10;
+
+    private static class TestWrite extends PendingWrite<String> {
+
+        private final String value;
+
+        TestWrite(String value) {
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void waitingWritesAreWrittenInOneBatch() throws Exception {
+        final List<Integer> batches = new ArrayList<>();
+        final List<Future<String>> results = submitWhileLocked("batch", 3, batch -> {
+            synchronized (batches) {
+                batches.add(batch.size());
+            }
+            for (PendingWrite<?> write : batch) {
+                final TestWrite test = (TestWrite) write;
+                test.complete("written " + test.value);
+            }
+        });
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("written " + i, results.get(i).get(TIMEOUT, TimeUnit.SECONDS));
+        }
+        assertEquals(1, batches.size());
+        assertEquals(3, (int) batches.get(0));
+    }
+
+    @Test
+    public void everyWriteGetsItsOwnResult() throws Exception {
+        final List<Future<String>> results = submitWhileLocked("own", 3, batch -> {
+            for (PendingWrite<?> write : batch) {
+                final TestWrite test = (TestWrite) write;
+                if ("0".equals(test.value)) {
+                    test.complete("written");
+                } else if ("1".equals(test.value)) {
+                    test.fail(new IOException("conflict of 1"));
+                }
+                // third write isn't completed at all
+            }
+        });
+
+        assertEquals("written", results.get(0).get(TIMEOUT, TimeUnit.SECONDS));
+        assertFailure(results.get(1), IOException.class, "conflict of 1");
+        assertFailure(results.get(2), IllegalStateException.class, "Write wasn't processed");
+    }
+
+    @Test
+    public void writerExceptionFailsUnfinishedWrites() throws Exception {
+        final List<Future<String>> results = submitWhileLocked("exception", 2, batch -> {
+            ((TestWrite) batch.get(0)).complete("written");
+            throw new IOException("upload failed");
+        });
+
+        int written = 0;
+        for (Future<String> result : results) {
+            try {
+                result.get(TIMEOUT, TimeUnit.SECONDS);
+                written++;
+            } catch (ExecutionException ex) {
+                assertEquals("upload failed", ex.getCause().getMessage());
+            }
+        }
+        assertEquals(1, written);
+    }
+
+    @Test
+    public void writerErrorFailsAllWrites() throws Exception {
+        final List<Future<String>> results = submitWhileLocked("error", 3, batch -> {
+            throw new StackOverflowError();
+        });
+
+        int errors = 0;
+        for (Future<String> result : results) {
+            try {
+                result.get(TIMEOUT, TimeUnit.SECONDS);
+                fail("Write should have failed");
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof StackOverflowError) {
+                    // thrown in the thread which wrote the batch
+                    errors++;
+                } else {
+                    assertTrue(ex.getCause() instanceof IllegalStateException);
+                    assertTrue(ex.getCause().getCause() instanceof StackOverflowError);
+                }
+            }
+        }
+        assertEquals(1, errors);
+    }
+
+    /**
+     * Submits the writes while the object is locked, so they all wait in the queue, then unlocks the object.
+     */
+    private List<Future<String>> submitWhileLocked(String key, int count, ObjectWriteQueue.BatchWriter writer)
+            throws Exception {
+        final String objectKey = ObjectWriteQueueTest.class.getName() + "/" + key;
+        final Lock lock = ObjectLockRegistry.getInstance().getLock(objectKey).writeLock();
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+        final List<Future<String>> results = new ArrayList<>();
+
+        lock.lock();
+        try {
+            final List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final TestWrite write = new TestWrite(Integer.toString(i));
+                final Callable<String> submit = () -> {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return ObjectWriteQueue.getInstance().submit(objectKey, objectKey, write, writer);
+                };
+                results.add(executor.submit(submit));
+            }
+
+            // all submitters wait for the lock
+            while (!allWaiting(threads, count)) {
+                Thread.sleep(10);
+            }
+        } finally {
+            lock.unlock();
+            executor.shutdown();
+        }
+
+        return results;
+    }
+
+    private boolean allWaiting(List<Thread> threads, int count) {
+        synchronized (threads) {
+            return threads.size() == count
+                    && threads.stream().allMatch(thread -> thread.getState() == Thread.State.TIMED_WAITING);
+        }
+    }
+
+    private void assertFailure(Future<String> result, Class<? extends Exception> type, String message)
+            throws Exception {
+        try {
+            result.get(TIMEOUT, TimeUnit.SECONDS);
+            fail("Write should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(type.isInstance(ex.getCause()));
+            assertEquals(message, ex.getCause().getMessage());
+        }
+    }
+}
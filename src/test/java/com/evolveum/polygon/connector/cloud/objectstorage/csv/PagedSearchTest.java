@@ -0,0 +1,166 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+import org.testng.annotations.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Paged searches, pages are read from the snapshot the first page was read from and the cookie points
+ * to the record the next page starts with.
+ */
+public class PagedSearchTest extends MemoryStorageBaseTest {
+
+    private static final int RECORDS = 7;
+
+    /**
+     * Objects and the search result of one page.
+     */
+    private static class Page {
+
+        final List<ConnectorObject> objects = new ArrayList<>();
+
+        SearchResult result;
+
+        List<String> getUids() {
+            final List<String> uids = new ArrayList<>();
+            objects.forEach(object -> uids.add(object.getUid().getUidValue()));
+            return uids;
+        }
+    }
+
+    @Test
+    public void cookieContinuesWithNextPage() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final CloudCsvProcessor processor = createProcessor(config, createStorage(config));
+
+        final Page first = page(processor, new OperationOptionsBuilder().setPageSize(3));
+        assertEquals(uids(0, 3), first.getUids());
+        assertNotNull(first.result.getPagedResultsCookie());
+        assertEquals(4, first.result.getRemainingPagedResults());
+        assertFalse(first.result.isAllResultsReturned());
+
+        final Page second = page(processor, new OperationOptionsBuilder().setPageSize(3)
+                .setPagedResultsCookie(first.result.getPagedResultsCookie()));
+        assertEquals(uids(3, 6), second.getUids());
+        assertEquals(1, second.result.getRemainingPagedResults());
+
+        final Page last = page(processor, new OperationOptionsBuilder().setPageSize(3)
+                .setPagedResultsCookie(second.result.getPagedResultsCookie()));
+        assertEquals(uids(6, 7), last.getUids());
+        assertNull(last.result.getPagedResultsCookie());
+        assertEquals(0, last.result.getRemainingPagedResults());
+        assertTrue(last.result.isAllResultsReturned());
+    }
+
+    @Test
+    public void pagesAreReadFromTheFirstSnapshot() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final CloudCsvProcessor processor = createProcessor(config, createStorage(config));
+
+        final Page first = page(processor, new OperationOptionsBuilder().setPageSize(3));
+        processor.update(ObjectClass.ACCOUNT, new Uid("user4"),
+                Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null);
+        processor.delete(ObjectClass.ACCOUNT, new Uid("user5"), null);
+
+        final Page second = page(processor, new OperationOptionsBuilder().setPageSize(3)
+                .setPagedResultsCookie(first.result.getPagedResultsCookie()));
+        assertEquals(uids(3, 6), second.getUids());
+        assertEquals("last4", getValue(second.objects.get(1), ATTR_LAST_NAME));
+
+        // new search sees the new version
+        assertEquals("changed", getValue(find(processor, "user4"), ATTR_LAST_NAME));
+        assertNull(find(processor, "user5"));
+    }
+
+    @Test
+    public void offsetStartsWithGivenRecord() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final CloudCsvProcessor processor = createProcessor(config, createStorage(config));
+
+        final Page page = page(processor, new OperationOptionsBuilder().setPageSize(2).setPagedResultsOffset(3));
+        assertEquals(uids(2, 4), page.getUids());
+        assertEquals(3, page.result.getRemainingPagedResults());
+
+        final Page beyond = page(processor, new OperationOptionsBuilder().setPageSize(2)
+                .setPagedResultsOffset(RECORDS + 5));
+        assertTrue(beyond.objects.isEmpty());
+        assertNull(beyond.result.getPagedResultsCookie());
+    }
+
+    @Test
+    public void unpagedSearchReportsAllResults() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final CloudCsvProcessor processor = createProcessor(config, createStorage(config));
+
+        final Page page = page(processor, new OperationOptionsBuilder());
+        assertEquals(uids(0, RECORDS), page.getUids());
+        assertNull(page.result.getPagedResultsCookie());
+        assertTrue(page.result.isAllResultsReturned());
+    }
+
+    @Test
+    public void invalidCookieIsRejected() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final CloudCsvProcessor processor = createProcessor(config, createStorage(config));
+
+        for (String cookie : new String[]{"zz", "dmVyc2lvbg:x", "dmVyc2lvbg:-1", ":1"}) {
+            try {
+                page(processor, new OperationOptionsBuilder().setPageSize(2).setPagedResultsCookie(cookie));
+                fail("Cookie " + cookie + " should have been rejected");
+            } catch (InvalidAttributeValueException ex) {
+                // expected
+            }
+        }
+    }
+
+    private MemoryStorageService createStorage(CloudCsvConfiguration config) throws Exception {
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+
+        final StringBuilder content = new StringBuilder("firstName;uid;lastName;password\n");
+        for (int i = 0; i < RECORDS; i++) {
+            content.append("first").append(i).append(";user").append(i).append(";last").append(i)
+                    .append(";password").append(i).append('\n');
+        }
+        storage.uploadFileContent(config, config.getFileName(), content.toString().getBytes(StandardCharsets.UTF_8));
+
+        return storage;
+    }
+
+    private static List<String> uids(int from, int to) {
+        final List<String> uids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            uids.add("user" + i);
+        }
+        return uids;
+    }
+
+    private static Page page(CloudCsvProcessor processor, OperationOptionsBuilder options) {
+        final Page page = new Page();
+        processor.executeQuery(ObjectClass.ACCOUNT, null, new SearchResultsHandler() {
+
+            @Override
+            public void handleResult(SearchResult result) {
+                page.result = result;
+            }
+
+            @Override
+            public boolean handle(ConnectorObject object) {
+                page.objects.add(object);
+                return true;
+            }
+        }, options.build());
+
+        return page;
+    }
+}
@@ -0,0 +1,71 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Rewrites copy records which aren't changed byte for byte, only changed records are printed again.
+ */
+public class RecordPassthroughTest extends MemoryStorageBaseTest {
+
+    private static final String HEAD = "firstName;uid;lastName;password\n"
+            + "# comment;with;delimiters\n"
+            + "\"michal\";miso;'asdf';\"as\"\"df\"\r\n"
+            + "\n";
+
+    private static final String TAIL = "  jan ;jano;\"multi\nline\";x\n"
+            + "# last comment";
+
+    private static final String VILO = "\"viliam\";\"vilo\";\"repan\";\"Z29vZA==\"\n";
+
+    @Test
+    public void untouchedRecordsAreCopied() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createObject(config, HEAD + VILO + TAIL);
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null);
+
+        assertEquals(HEAD + "viliam;vilo;changed;Z29vZA==\r\n" + TAIL, readObject(config, storage));
+        assertEquals("'asdf'", getValue(find(processor, "miso"), ATTR_LAST_NAME));
+        assertEquals("multi\nline", getValue(find(processor, "jano"), ATTR_LAST_NAME));
+    }
+
+    @Test
+    public void deleteRemovesOnlyTheRecord() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createObject(config, HEAD + VILO + TAIL);
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.delete(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+
+        assertEquals(HEAD + TAIL, readObject(config, storage));
+    }
+
+    @Test
+    public void createIsAppendedAfterLineBreak() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createObject(config, HEAD + VILO + TAIL);
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.create(ObjectClass.ACCOUNT, new HashSet<>(Arrays.asList(
+                createAttribute(ATTR_UID, "jdoe"), createAttribute(ATTR_LAST_NAME, "doe"))), null);
+
+        assertEquals(HEAD + VILO + TAIL + "\r\n;jdoe;doe;\r\n", readObject(config, storage));
+    }
+
+    private MemoryStorageService createObject(CloudCsvConfiguration config, String content) throws Exception {
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        storage.uploadFileContent(config, config.getFileName(), content.getBytes(StandardCharsets.UTF_8));
+
+        return storage;
+    }
+}
@@ -0,0 +1,209 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Lookups of records through the snapshot index and reading them back from positions which are after checkpoints,
+ * long values, multi-byte characters and line breaks inside quoted values.
+ */
+public class SnapshotIndexTest extends MemoryStorageBaseTest {
+
+    private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withDelimiter(';').withRecordSeparator("\r\n");
+
+    private static final String HEADER = "uid;firstName;lastName;password";
+
+    /**
+     * Different values with the same hash.
+     */
+    private static final String COLLIDING_1 = "anaa";
+    private static final String COLLIDING_2 = "c0aa";
+
+    private final List<File> files = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteFiles() {
+        files.forEach(File::delete);
+        files.clear();
+    }
+
+    @Test
+    public void collidingValuesAreBothCandidates() throws Exception {
+        final List<List<String>> records = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            records.add(Arrays.asList("u" + i, "first" + i, "last", "x"));
+        }
+        records.add(Arrays.asList(COLLIDING_1, "first", "last", "x"));
+        records.add(Arrays.asList(COLLIDING_2, "first", "last", "x"));
+        records.add(Arrays.asList(COLLIDING_1.toUpperCase(), "first", "last", "x"));
+
+        final SnapshotIndex index = build(records);
+        assertEquals(records.size(), index.size());
+
+        // hashes are equal, caller has to check the candidates
+        assertEquals(index.find(0, COLLIDING_1).length, index.find(0, COLLIDING_2).length);
+        final int[] candidates = index.find(0, COLLIDING_1);
+        assertTrue(Arrays.equals(new int[]{1000, 1001, 1002}, candidates));
+        final List<String> uids = new ArrayList<>();
+        for (int ordinal : candidates) {
+            uids.add(index.readRecord(ordinal, FORMAT).get(0));
+        }
+        assertEquals(Arrays.asList(COLLIDING_1, COLLIDING_2, COLLIDING_1.toUpperCase()), uids);
+
+        // every record is found through a chain of its bucket
+        for (int i = 0; i < 1000; i++) {
+            final int ordinal = i;
+            assertTrue("u" + i, Arrays.stream(index.find(0, "u" + i)).anyMatch(o -> o == ordinal));
+        }
+        assertTrue(Arrays.equals(new int[]{0}, index.find(1, "first0")));
+        assertEquals(0, index.find(0, "missing").length);
+        assertEquals(0, index.find(0, "").length);
+    }
+
+    @Test
+    public void lookupIgnoresCase() throws Exception {
+        final SnapshotIndex index = build(Arrays.asList(
+                Arrays.asList("Miso", "michal", "", "x"),
+                Arrays.asList("ŽOFIA", "žofia", "", "x"),
+                Arrays.asList("straße", "", "", "x")));
+
+        assertTrue(Arrays.equals(new int[]{0}, index.find(0, "miso")));
+        assertTrue(Arrays.equals(new int[]{0}, index.find(0, "MISO")));
+        assertTrue(Arrays.equals(new int[]{1}, index.find(0, "žofia")));
+        assertTrue(Arrays.equals(new int[]{2}, index.find(0, "STRAßE")));
+        // empty columns aren't indexed
+        assertEquals(0, index.find(2, "").length);
+    }
+
+    @Test
+    public void identifiersIgnoringCaseAreFoundAfterCheckpoints() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setIgnoreIdentifierCase(true);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+
+        final StringBuilder content = new StringBuilder("firstName;uid;lastName;password\r\n");
+        for (int i = 0; i < 2000; i++) {
+            content.append("first").append(i).append(";User").append(i).append(";last;x\r\n");
+        }
+        storage.uploadFileContent(config, FILE_NAME, content.toString().getBytes(StandardCharsets.UTF_8));
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        processor.update(ObjectClass.ACCOUNT, new Uid("USER1999"),
+                Collections.singleton(createAttribute(ATTR_LAST_NAME, "changed")), null);
+
+        final ConnectorObject changed = find(processor, "User1999");
+        assertEquals("changed", getValue(changed, ATTR_LAST_NAME));
+        assertEquals("last", getValue(find(processor, "User1998"), ATTR_LAST_NAME));
+    }
+
+    @Test
+    public void namesWithCollidingHashesAreResolvedIgnoringCase() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setNameAttribute(ATTR_LAST_NAME);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+
+        final StringBuilder content = new StringBuilder("firstName;uid;lastName;password\r\n");
+        for (int i = 0; i < 2000; i++) {
+            content.append("first;u").append(i).append(";name").append(i).append(";x\r\n");
+        }
+        content.append("first;u-1;").append(COLLIDING_1).append(";x\r\n");
+        content.append("first;u-2;").append(COLLIDING_2).append(";x\r\n");
+        storage.uploadFileContent(config, FILE_NAME, content.toString().getBytes(StandardCharsets.UTF_8));
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        assertEquals("u-2", processor.resolveUsername(ObjectClass.ACCOUNT, COLLIDING_2.toUpperCase(), null)
+                .getUidValue());
+        assertEquals("u-1", processor.resolveUsername(ObjectClass.ACCOUNT, COLLIDING_1, null).getUidValue());
+        assertEquals("u1999", processor.resolveUsername(ObjectClass.ACCOUNT, "NAME1999", null).getUidValue());
+    }
+
+    @Test
+    public void recordsAfterCheckpointsAreReadBack() throws Exception {
+        final char[] longValue = new char[SnapshotIndex.CHECKPOINT_INTERVAL + 100];
+        Arrays.fill(longValue, 'x');
+
+        final List<List<String>> records = new ArrayList<>();
+        records.add(Arrays.asList("long", new String(longValue), "", "x"));
+        for (int i = 0; i < 3000; i++) {
+            switch (i % 3) {
+                case 0:
+                    records.add(Arrays.asList("u" + i, "ľubomír čierny " + i, "😀 ščťž", "x"));
+                    break;
+                case 1:
+                    records.add(Arrays.asList("u" + i, "line\r\nbreak " + i, "a;b", "\"quoted\""));
+                    break;
+                default:
+                    records.add(Arrays.asList("u" + i, "plain " + i, "", "x"));
+            }
+        }
+
+        final SnapshotIndex index = build(records);
+        final File file = files.get(files.size() - 1);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        assertTrue(bytes.length > 4 * SnapshotIndex.CHECKPOINT_INTERVAL);
+
+        for (int ordinal = 0; ordinal < records.size(); ordinal++) {
+            final List<String> expected = records.get(ordinal);
+            assertEquals(expected, values(index.readRecord(ordinal, FORMAT)));
+
+            final SnapshotIndex.RawRecord raw = index.readRawRecord(ordinal, FORMAT);
+            assertEquals(expected, values(raw.getRecord()));
+            final int length = (int) (raw.getEnd() - raw.getStart());
+            assertEquals(print(expected), new String(bytes, (int) raw.getStart(), length, StandardCharsets.UTF_8));
+        }
+
+        final int[] found = index.find(0, "U2998");
+        assertTrue(Arrays.equals(new int[]{2999}, found));
+
+        try (SnapshotIndex.Cursor cursor = index.openCursor(2990, FORMAT)) {
+            for (int ordinal = 2990; ordinal < records.size(); ordinal++) {
+                assertEquals(ordinal, cursor.getOrdinal());
+                assertEquals(records.get(ordinal), values(cursor.next()));
+            }
+            assertNull(cursor.next());
+        }
+    }
+
+    private SnapshotIndex build(List<List<String>> records) throws IOException {
+        final StringBuilder content = new StringBuilder(HEADER).append("\r\n");
+        for (List<String> record : records) {
+            content.append(print(record));
+        }
+
+        final File file = File.createTempFile("snapshot-index", ".csv");
+        files.add(file);
+        Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+
+        final ObjectSnapshot snapshot = new ObjectSnapshot("1", file, false);
+        return SnapshotIndex.build(snapshot, "UTF-8", FORMAT, record -> record.getRecordNumber() == 1, 0, 1, 2);
+    }
+
+    private static String print(List<String> record) throws IOException {
+        final StringWriter writer = new StringWriter();
+        new CSVPrinter(writer, FORMAT).printRecord(record);
+        return writer.toString();
+    }
+
+    private static List<String> values(CSVRecord record) {
+        final List<String> values = new ArrayList<>();
+        record.forEach(values::add);
+        return values;
+    }
+}
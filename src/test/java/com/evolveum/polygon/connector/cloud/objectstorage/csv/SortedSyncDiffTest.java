@@ -0,0 +1,111 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Sort-merge diff of two CSV files, tiny runs make it spill every record and merge the runs in several rounds.
+ */
+public class SortedSyncDiffTest {
+
+    private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withDelimiter(';').withCommentMarker('#');
+
+    private final List<File> files = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteFiles() {
+        files.forEach(File::delete);
+        files.clear();
+    }
+
+    @Test
+    public void deltasAreReportedInUidOrder() throws Exception {
+        final StringBuilder oldCsv = new StringBuilder("uid;value\n");
+        final StringBuilder newCsv = new StringBuilder("uid;value\n# comment\n");
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final String uid = String.format("u%03d", i);
+            if (i % 7 != 3) {
+                oldCsv.append(uid).append(";v").append(i).append('\n');
+            }
+            if (i % 7 == 3) {
+                expected.add(SyncDeltaType.CREATE + " " + uid + " v" + i);
+            } else if (i % 5 == 0) {
+                expected.add(SyncDeltaType.DELETE + " " + uid + " v" + i);
+                continue;
+            } else if (i % 4 == 0) {
+                expected.add(SyncDeltaType.UPDATE + " " + uid + " \"changed\";\nv" + i + " v" + i);
+                newCsv.insert(newCsv.indexOf("\n") + 1, uid + ";\"\"\"changed\"\";\nv" + i + "\"\n");
+                continue;
+            }
+            // new file is in reversed order
+            newCsv.insert(newCsv.indexOf("\n") + 1, uid + ";v" + i + "\n");
+        }
+
+        for (long runSize : new long[]{1, 1000, SortedSyncDiff.DEFAULT_RUN_SIZE}) {
+            assertEquals("run size " + runSize, expected, diff(oldCsv.toString(), newCsv.toString(), runSize));
+        }
+    }
+
+    @Test
+    public void diffCanBeStopped() throws Exception {
+        final SortedSyncDiff diff = new SortedSyncDiff(FORMAT, 0, record -> record.getRecordNumber() == 1, 1);
+
+        final List<String> reported = new ArrayList<>();
+        final int changes = diff.diff(write("uid;value\na;1\nb;1\n"), write("uid;value\nb;2\nc;1\na;2\n"), "UTF-8",
+                (type, record, oldRecord) -> {
+                    reported.add(record.get(0));
+                    return reported.size() < 2;
+                });
+
+        assertEquals(2, changes);
+        assertEquals(2, reported.size());
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void duplicateOldUidIsRejected() throws Exception {
+        diff("uid;value\na;1\nb;1\na;2\n", "uid;value\na;1\n", 1);
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void missingUidIsRejected() throws Exception {
+        diff("uid;value\na;1\n", "uid;value\n;1\n", 1);
+    }
+
+    private List<String> diff(String oldCsv, String newCsv, long runSize) throws IOException {
+        final SortedSyncDiff diff = new SortedSyncDiff(FORMAT, 0, record -> record.getRecordNumber() == 1, runSize);
+
+        final List<String> deltas = new ArrayList<>();
+        diff.diff(write(oldCsv), write(newCsv), "UTF-8", (type, record, oldRecord) -> {
+            String delta = type + " " + record.get(0) + " " + record.get(1);
+            if (type == SyncDeltaType.UPDATE) {
+                delta += " " + oldRecord.get(1);
+            } else {
+                assertNull(oldRecord);
+            }
+            deltas.add(delta);
+            return true;
+        });
+
+        return deltas;
+    }
+
+    private File write(String content) throws IOException {
+        final File file = Files.createTempFile("sorted-sync-diff", ".csv").toFile();
+        files.add(file);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+        return file;
+    }
+}
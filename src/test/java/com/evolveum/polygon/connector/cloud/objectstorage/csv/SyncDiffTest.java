@@ -0,0 +1,174 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Deltas found by the in-memory hash diff and by the sorted diff of sync snapshots, optionally with only
+ * the changed attributes.
+ */
+public class SyncDiffTest extends MemoryStorageBaseTest {
+
+    private static final int RECORDS = 300;
+
+    @Test
+    public void hashDiffFindsChangedRecords() throws Exception {
+        final Map<String, String> deltas = syncChanges(createConfiguration());
+
+        assertEquals(expectedChanges(), deltas);
+    }
+
+    @Test
+    public void sortedDiffFindsTheSameRecords() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setSyncSortThreshold(0);
+
+        assertEquals(expectedChanges(), syncChanges(config));
+    }
+
+    @Test
+    public void reorderedRecordsArentChanged() throws Exception {
+        for (int threshold : new int[]{256, 0}) {
+            final CloudCsvConfiguration config = createConfiguration();
+            config.setSyncSortThreshold(threshold);
+            final MemoryStorageService storage = createStorage(config, "/update.csv");
+            final CloudCsvProcessor processor = createProcessor(config, storage);
+
+            SyncSnapshotTest.write(config, storage, "michal;miso;asdf;asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+            final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+            SyncSnapshotTest.write(config, storage, "viliam;vilo;repan;Z29vZA==\n", "\"michal\";miso;asdf;\"asdf\"\n");
+
+            assertTrue(SyncSnapshotTest.sync(processor, token).deltas.isEmpty());
+        }
+    }
+
+    @Test
+    public void changedAttributesOnly() throws Exception {
+        for (int threshold : new int[]{256, 0}) {
+            final CloudCsvConfiguration config = createConfiguration();
+            config.setSyncSortThreshold(threshold);
+            config.setSyncChangedAttributesOnly(true);
+            final MemoryStorageService storage = createStorage(config, "/update.csv");
+            final CloudCsvProcessor processor = createProcessor(config, storage);
+
+            final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+            SyncSnapshotTest.write(config, storage, "michal;miso;changed;\n", "viliam;vilo;repan;Z29vZA==\n",
+                    "jan;jano;novak;secret\n");
+
+            final List<SyncDelta> deltas = SyncSnapshotTest.sync(processor, token).deltas;
+            assertEquals(2, deltas.size());
+
+            final SyncDelta update = find(deltas, "miso");
+            assertEquals(SyncDeltaType.UPDATE, update.getDeltaType());
+            assertEquals(getNames(Uid.NAME, Name.NAME, ATTR_LAST_NAME, OperationalAttributes.PASSWORD_NAME),
+                    getNames(update.getObject()));
+            assertEquals("changed", getValue(update.getObject(), ATTR_LAST_NAME));
+            // emptied attribute is present without values
+            assertTrue(update.getObject().getAttributeByName(OperationalAttributes.PASSWORD_NAME).getValue().isEmpty());
+
+            // created record is complete
+            final SyncDelta create = find(deltas, "jano");
+            assertEquals(SyncDeltaType.CREATE, create.getDeltaType());
+            assertEquals("jan", getValue(create.getObject(), ATTR_FIRST_NAME));
+            assertEquals("novak", getValue(create.getObject(), ATTR_LAST_NAME));
+        }
+    }
+
+    @Test
+    public void updatesCarryWholeObjectByDefault() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        SyncSnapshotTest.write(config, storage, "michal;miso;changed;asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+
+        final SyncDelta update = SyncSnapshotTest.sync(processor, token).deltas.get(0);
+        assertEquals("michal", getValue(update.getObject(), ATTR_FIRST_NAME));
+        assertEquals("changed", getValue(update.getObject(), ATTR_LAST_NAME));
+        assertTrue(update.getObject().getAttributeByName(OperationalAttributes.PASSWORD_NAME).getValue()
+                .get(0) instanceof GuardedString);
+    }
+
+    /**
+     * Every third record is changed, every fifth deleted and new records are added.
+     */
+    private Map<String, String> syncChanges(CloudCsvConfiguration config) throws Exception {
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final List<String> records = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            records.add("first" + i + ";user" + i + ";last" + i + ";pwd" + i + "\n");
+        }
+        SyncSnapshotTest.write(config, storage, records.toArray(new String[0]));
+        final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+        records.clear();
+        for (int i = RECORDS + 9; i >= 0; i--) {
+            if (i % 5 == 0 && i < RECORDS) {
+                continue;
+            }
+            records.add("first" + i + ";user" + i + ";" + (i % 3 == 0 ? "changed" : "last") + i + ";pwd" + i + "\n");
+        }
+        SyncSnapshotTest.write(config, storage, records.toArray(new String[0]));
+
+        final Map<String, String> deltas = new TreeMap<>();
+        for (SyncDelta delta : SyncSnapshotTest.sync(processor, token).deltas) {
+            final String previous = deltas.put(delta.getUid().getUidValue(),
+                    delta.getDeltaType() + " " + getValue(delta.getObject(), ATTR_LAST_NAME));
+            assertNull(previous);
+        }
+        return deltas;
+    }
+
+    private Map<String, String> expectedChanges() {
+        final Map<String, String> deltas = new TreeMap<>();
+        for (int i = 0; i < RECORDS + 10; i++) {
+            if (i >= RECORDS) {
+                deltas.put("user" + i, SyncDeltaType.CREATE + " " + (i % 3 == 0 ? "changed" : "last") + i);
+            } else if (i % 5 == 0) {
+                deltas.put("user" + i, SyncDeltaType.DELETE + " last" + i);
+            } else if (i % 3 == 0) {
+                deltas.put("user" + i, SyncDeltaType.UPDATE + " changed" + i);
+            }
+        }
+        return deltas;
+    }
+
+    private static SyncDelta find(List<SyncDelta> deltas, String uid) {
+        return deltas.stream().filter(delta -> uid.equals(delta.getUid().getUidValue())).findFirst().orElse(null);
+    }
+
+    private static TreeSet<String> getNames(String... names) {
+        final TreeSet<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : names) {
+            set.add(name);
+        }
+        return set;
+    }
+
+    private static TreeSet<String> getNames(ConnectorObject object) {
+        final TreeSet<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (Attribute attribute : object.getAttributes()) {
+            set.add(attribute.getName());
+        }
+        return set;
+    }
+}
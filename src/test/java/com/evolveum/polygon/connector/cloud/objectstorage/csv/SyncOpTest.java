@@ -117,7 +117,7 @@ public class SyncOpTest extends BaseTest {
         try {
             long timestampBefore = System.currentTimeMillis();
             SyncToken token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
-            long timestampToken = Long.valueOf((String) token.getValue());
+            long timestampToken = getTokenTimestamp(token);
             long timestampAfter = System.currentTimeMillis();
 
             assertTrue(timestampToken>timestampBefore && timestampToken<timestampAfter, "wrong token, expected token between "+timestampBefore+" and "+timestampAfter);
@@ -209,7 +209,7 @@ public class SyncOpTest extends BaseTest {
             while (startTime + RUN_TIME > System.currentTimeMillis()) {
                 runCount++;
 
-                oldTokenValue = Long.parseLong((String) token.getValue());
+                oldTokenValue = getTokenTimestamp(token);
 
                 final SyncToken[] tokenHolder = new SyncToken[1];
 
@@ -239,7 +239,7 @@ public class SyncOpTest extends BaseTest {
                     newToken = startToken;
                 }
 
-                long newTokenValue = Long.parseLong((String) newToken.getValue());
+                long newTokenValue = getTokenTimestamp(newToken);
                 AssertJUnit.assertTrue(newTokenValue > oldTokenValue);
 
                 token = newToken;
@@ -317,4 +317,13 @@ public class SyncOpTest extends BaseTest {
 
         return newToken;
     }
+
+    /**
+     * Timestamp part of the token, the part after '.' is version of the object the token was created for.
+     */
+    private long getTokenTimestamp(SyncToken token) {
+        final String value = (String) token.getValue();
+        final int separator = value.indexOf('.');
+        return Long.parseLong(separator >= 0 ? value.substring(0, separator) : value);
+    }
 }
@@ -0,0 +1,204 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.local.MemoryStorageService;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Sync snapshots stored in the bucket, shared by all syncs of the object and deleted by retention.
+ */
+public class SyncSnapshotTest extends MemoryStorageBaseTest {
+
+    private static final String SNAPSHOT_FOLDER = FILE_NAME + ".sync/";
+
+    private static final String HEADER = "firstName;uid;lastName;password\n";
+
+    /**
+     * Deltas and the token reported by one sync.
+     */
+    static class SyncResult {
+
+        final List<SyncDelta> deltas = new ArrayList<>();
+
+        SyncToken token;
+    }
+
+    @Test
+    public void latestTokenStoresSnapshot() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+        final List<String> snapshots = storage.listFolder(config, SNAPSHOT_FOLDER);
+        assertEquals(1, snapshots.size());
+        assertEquals(SNAPSHOT_FOLDER + getTimestamp(token), snapshots.get(0));
+        assertEquals(readObject(config, storage), readObject(config, storage, snapshots.get(0)));
+
+        // records didn't change, the same snapshot is used
+        assertEquals(getTimestamp(token), getTimestamp(processor.getLatestSyncToken(ObjectClass.ACCOUNT)));
+        assertEquals(1, storage.listFolder(config, SNAPSHOT_FOLDER).size());
+    }
+
+    @Test
+    public void syncStoresSnapshotOfChangedRecords() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        write(config, storage, "michal;miso;changed;asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+
+        final SyncResult result = sync(processor, token);
+        assertEquals(1, result.deltas.size());
+        assertEquals(SyncDeltaType.UPDATE, result.deltas.get(0).getDeltaType());
+        assertEquals("miso", result.deltas.get(0).getUid().getUidValue());
+
+        final SyncToken newToken = result.deltas.get(0).getToken();
+        final List<String> snapshots = storage.listFolder(config, SNAPSHOT_FOLDER);
+        assertEquals(2, snapshots.size());
+        assertEquals(SNAPSHOT_FOLDER + getTimestamp(newToken), snapshots.get(1));
+        assertEquals(readObject(config, storage), readObject(config, storage, snapshots.get(1)));
+    }
+
+    @Test
+    public void tokensOfOtherConsumersStayValid() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        // slow consumer keeps its token while another one syncs several times
+        final SyncToken slowToken = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        SyncToken fastToken = slowToken;
+        for (int i = 0; i < 3; i++) {
+            write(config, storage, "michal;miso;change" + i + ";asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+            fastToken = sync(processor, fastToken).deltas.get(0).getToken();
+        }
+
+        assertEquals(4, storage.listFolder(config, SNAPSHOT_FOLDER).size());
+
+        final SyncResult result = sync(processor, slowToken);
+        assertEquals(1, result.deltas.size());
+        assertEquals("miso", result.deltas.get(0).getUid().getUidValue());
+    }
+
+    @Test
+    public void snapshotsOutsideRetentionAreDeleted() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setSyncSnapshotRetentionCount(2);
+        config.setSyncSnapshotRetentionHours(0);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final SyncToken firstToken = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        SyncToken token = firstToken;
+        for (int i = 0; i < 3; i++) {
+            write(config, storage, "michal;miso;change" + i + ";asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+            token = sync(processor, token).deltas.get(0).getToken();
+        }
+
+        final List<String> snapshots = storage.listFolder(config, SNAPSHOT_FOLDER);
+        assertEquals(2, snapshots.size());
+        assertEquals(SNAPSHOT_FOLDER + getTimestamp(token), snapshots.get(1));
+        assertFalse(snapshots.contains(SNAPSHOT_FOLDER + getTimestamp(firstToken)));
+    }
+
+    @Test
+    public void retentionCountDoesNotDeleteRecentSnapshots() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        config.setSyncSnapshotRetentionCount(1);
+        final MemoryStorageService storage = createStorage(config, "/update.csv");
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        for (int i = 0; i < 3; i++) {
+            write(config, storage, "michal;miso;change" + i + ";asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+            token = sync(processor, token).deltas.get(0).getToken();
+        }
+
+        // none of them is older than the retention window
+        assertEquals(4, storage.listFolder(config, SNAPSHOT_FOLDER).size());
+    }
+
+    @Test
+    public void unchangedVersionReturnsTheSameToken() throws Exception {
+        final CloudCsvConfiguration config = createConfiguration();
+        final int[] listed = {0};
+        MemoryStorageService.clearBucket(config.getBucketName());
+        final MemoryStorageService storage = new MemoryStorageService(config) {
+
+            @Override
+            public List<String> listFolder(CloudCsvConfiguration config, String folder) {
+                listed[0]++;
+                return super.listFolder(config, folder);
+            }
+        };
+        storage.uploadFile(config, new File(BaseTest.TEMPLATE_FOLDER_PATH + "/update.csv"));
+        final CloudCsvProcessor processor = createProcessor(config, storage);
+
+        final SyncToken token = processor.getLatestSyncToken(ObjectClass.ACCOUNT);
+        assertTrue(((String) token.getValue()).matches("[0-9]{13}\\..+"));
+        listed[0] = 0;
+
+        final SyncResult result = sync(processor, token);
+        assertTrue(result.deltas.isEmpty());
+        assertEquals(token, result.token);
+        // only the version of the object was checked
+        assertEquals(0, listed[0]);
+
+        // content is the same, but the version is new
+        write(config, storage, "michal;miso;asdf;asdf\n", "viliam;vilo;repan;Z29vZA==\n");
+        final SyncResult rewritten = sync(processor, token);
+        assertTrue(rewritten.deltas.isEmpty());
+        assertEquals(getTimestamp(token), getTimestamp(rewritten.token));
+        assertFalse(token.equals(rewritten.token));
+        assertEquals(rewritten.token, sync(processor, rewritten.token).token);
+    }
+
+    static void write(CloudCsvConfiguration config, CloudStorageService storage, String... records)
+            throws Exception {
+        final StringBuilder content = new StringBuilder(HEADER);
+        for (String record : records) {
+            content.append(record);
+        }
+        storage.uploadFileContent(config, config.getFileName(), content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static SyncResult sync(CloudCsvProcessor processor, SyncToken token) {
+        final SyncResult result = new SyncResult();
+        processor.sync(ObjectClass.ACCOUNT, token, new SyncTokenResultsHandler() {
+
+            @Override
+            public void handleResult(SyncToken syncToken) {
+                result.token = syncToken;
+            }
+
+            @Override
+            public boolean handle(SyncDelta delta) {
+                result.deltas.add(delta);
+                return true;
+            }
+        }, null);
+
+        return result;
+    }
+
+    /**
+     * Part of the token naming the snapshot, the rest is version of the object.
+     */
+    static String getTimestamp(SyncToken token) {
+        final String value = (String) token.getValue();
+        final int separator = value.indexOf('.');
+        return separator >= 0 ? value.substring(0, separator) : value;
+    }
+}
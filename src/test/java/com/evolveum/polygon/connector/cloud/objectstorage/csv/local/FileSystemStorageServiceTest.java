@@ -0,0 +1,176 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.local;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudObjectOutputStream;
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Files in a temporary directory, conditional renames, creates of new files, listing and object names
+ * which would end up outside of the directory.
+ */
+public class FileSystemStorageServiceTest {
+
+    private Path directory;
+    private CloudCsvConfiguration config;
+    private FileSystemStorageService storage;
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("fs-storage");
+        config = new CloudCsvConfiguration();
+        config.setBucketName(directory.resolve("bucket").toString());
+        config.setFileName("data.csv");
+
+        storage = new FileSystemStorageService(config);
+        storage.createBucketIfNotExists(config);
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void conditionalWriteOfCurrentVersion() throws Exception {
+        storage.uploadString(config, "old");
+        final String version = storage.getFileVersion(config);
+
+        write(storage.getFileAsOutputStream(config, version), "new");
+
+        assertEquals("new", read("data.csv"));
+        assertFalse(version.equals(storage.getFileVersion(config)));
+        assertEquals(Collections.emptyList(), getTempFiles());
+    }
+
+    @Test
+    public void conflictingConditionalWriteFails() throws Exception {
+        storage.uploadString(config, "old");
+        final String version = storage.getFileVersion(config);
+
+        final CloudObjectOutputStream first = storage.getFileAsOutputStream(config, version);
+        final CloudObjectOutputStream second = storage.getFileAsOutputStream(config, version);
+        write(first, "first");
+
+        try {
+            write(second, "second");
+            fail("Write based on replaced version succeeded");
+        } catch (ObjectVersionConflictException ex) {
+            assertEquals(version, ex.getExpectedVersion());
+            assertEquals(storage.getFileVersion(config), ex.getActualVersion());
+        }
+
+        assertEquals("first", read("data.csv"));
+        assertEquals(Collections.emptyList(), getTempFiles());
+    }
+
+    @Test
+    public void conditionalWriteOfNewFileFailsIfItExists() throws Exception {
+        final CloudObjectOutputStream output = storage.getFileAsOutputStream(config, null);
+        storage.uploadString(config, "other");
+
+        try {
+            write(output, "mine");
+            fail("Existing file was replaced");
+        } catch (ObjectVersionConflictException ex) {
+            assertNull(ex.getExpectedVersion());
+        }
+        assertEquals("other", read("data.csv"));
+    }
+
+    @Test
+    public void createFileContentDoesntReplaceFile() throws Exception {
+        storage.createFileContent(config, "data.csv.log/0000000000001", bytes("first"));
+
+        try {
+            storage.createFileContent(config, "data.csv.log/0000000000001", bytes("second"));
+            fail("Existing file was replaced");
+        } catch (ObjectVersionConflictException ex) {
+            assertNull(ex.getExpectedVersion());
+        }
+        assertEquals("first", read("data.csv.log/0000000000001"));
+    }
+
+    @Test
+    public void listFolderIsSortedWithoutHiddenFiles() throws Exception {
+        storage.createFileContent(config, "data.csv.log/3", bytes("3"));
+        storage.createFileContent(config, "data.csv.log/10", bytes("10"));
+        storage.uploadFileContent(config, "data.csv.log/1", bytes("1"));
+        storage.uploadFileContent(config, "data.csv.log/nested/2", bytes("2"));
+        // lock files are left next to written files
+        assertTrue(Files.exists(directory.resolve("bucket/data.csv.log/.3.lock")));
+
+        assertEquals(Arrays.asList("data.csv.log/1", "data.csv.log/10", "data.csv.log/3"),
+                storage.listFolder(config, "data.csv.log/"));
+        assertEquals(Collections.emptyList(), storage.listFolder(config, "missing/"));
+    }
+
+    @Test
+    public void namesOutsideOfDirectoryAreRejected() throws Exception {
+        Files.write(directory.resolve("secret"), bytes("secret"));
+
+        for (String name : Arrays.asList("../secret", "data.csv.log/../../secret", "..", ".", "")) {
+            try {
+                storage.getFileContent(config, name);
+                fail("Name " + name + " was resolved");
+            } catch (ConfigurationException ex) {
+                // expected
+            }
+        }
+
+        try {
+            storage.createFileContent(config, "../created", bytes("x"));
+            fail("File was created outside of directory");
+        } catch (ConfigurationException ex) {
+            // expected
+        }
+        assertFalse(Files.exists(directory.resolve("created")));
+
+        config.setFileName("../secret");
+        try {
+            storage.checkFileExistsAndCanRead(config);
+            fail("Object outside of directory was found");
+        } catch (ConfigurationException ex) {
+            // expected
+        }
+    }
+
+    private void write(CloudObjectOutputStream output, String content) throws IOException {
+        try {
+            output.write(bytes(content));
+        } finally {
+            output.close();
+        }
+    }
+
+    private String read(String name) throws Exception {
+        return new String(storage.getFileContent(config, name), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<Path> getTempFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".upload")).collect(Collectors.toList());
+        }
+    }
+}
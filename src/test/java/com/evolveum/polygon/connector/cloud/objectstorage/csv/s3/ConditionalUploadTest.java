@@ -0,0 +1,223 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.ObjectVersionConflictException;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.awscore.AwsRequest;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Conditional uploads of {@link S3MultipartOutputStream}, the expected version is sent as If-Match or If-None-Match
+ * with the request which stores the object.
+ */
+public class ConditionalUploadTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "data.csv";
+
+    /**
+     * Client storing objects in memory, it evaluates conditional headers of put object and complete multipart upload
+     * requests the way S3 does.
+     */
+    private static class ConditionalS3Client implements S3Client {
+
+        private final Map<String, byte[]> objects = new HashMap<>();
+        private final Map<String, String> eTags = new HashMap<>();
+        private final Map<Integer, byte[]> parts = new HashMap<>();
+        private final List<Map<String, List<String>>> headers = new ArrayList<>();
+        private int versions = 0;
+        private boolean aborted = false;
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Stores the object as another writer would, without any condition.
+         */
+        void store(byte[] content) {
+            objects.put(KEY, content);
+            eTags.put(KEY, "\"" + (++versions) + "\"");
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            checkCondition(request);
+            store(read(body));
+            return PutObjectResponse.builder().eTag(eTags.get(KEY)).build();
+        }
+
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+            return CreateMultipartUploadResponse.builder().uploadId("upload").build();
+        }
+
+        @Override
+        public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+            parts.put(request.partNumber(), read(body));
+            return UploadPartResponse.builder().eTag("part" + request.partNumber()).build();
+        }
+
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            checkCondition(request);
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (CompletedPart part : request.multipartUpload().parts()) {
+                content.write(parts.get(part.partNumber()), 0, parts.get(part.partNumber()).length);
+            }
+            store(content.toByteArray());
+            return CompleteMultipartUploadResponse.builder().eTag(eTags.get(KEY)).build();
+        }
+
+        @Override
+        public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+            aborted = true;
+            return AbortMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public HeadObjectResponse headObject(HeadObjectRequest request) {
+            if (!eTags.containsKey(request.key())) {
+                throw (S3Exception) S3Exception.builder().statusCode(404).message("Not Found").build();
+            }
+            return HeadObjectResponse.builder().eTag(eTags.get(request.key())).build();
+        }
+
+        private void checkCondition(AwsRequest request) {
+            final Map<String, List<String>> requestHeaders = request.overrideConfiguration()
+                    .map(configuration -> configuration.headers()).orElse(new HashMap<>());
+            headers.add(requestHeaders);
+
+            final String current = eTags.get(KEY);
+            final Optional<String> ifMatch = getHeader(requestHeaders, "If-Match");
+            final Optional<String> ifNoneMatch = getHeader(requestHeaders, "If-None-Match");
+            if ((ifMatch.isPresent() && !ifMatch.get().equals(current))
+                    || (ifNoneMatch.isPresent() && current != null)) {
+                throw (S3Exception) S3Exception.builder().statusCode(412).message("Precondition Failed").build();
+            }
+        }
+
+        private static Optional<String> getHeader(Map<String, List<String>> headers, String name) {
+            return headers.containsKey(name) ? Optional.of(headers.get(name).get(0)) : Optional.empty();
+        }
+
+        private static byte[] read(RequestBody body) {
+            try (InputStream input = body.contentStreamProvider().newStream()) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                for (int count = input.read(buffer); count >= 0; count = input.read(buffer)) {
+                    output.write(buffer, 0, count);
+                }
+                return output.toByteArray();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    @Test
+    public void putIsConditionalOnExpectedETag() throws Exception {
+        final ConditionalS3Client client = new ConditionalS3Client();
+        client.store("old".getBytes());
+
+        final S3MultipartOutputStream output = new S3MultipartOutputStream(BUCKET, KEY, client);
+        output.setExpectedETag("\"1\"");
+        output.write("new".getBytes());
+        output.close();
+
+        assertEquals("\"2\"", output.getETag());
+        assertEquals("new", new String(client.objects.get(KEY)));
+        assertEquals(Arrays.asList("\"1\""), client.headers.get(0).get("If-Match"));
+    }
+
+    @Test
+    public void replacedObjectIsNotOverwritten() throws Exception {
+        final ConditionalS3Client client = new ConditionalS3Client();
+        client.store("old".getBytes());
+
+        final S3MultipartOutputStream output = new S3MultipartOutputStream(BUCKET, KEY, client);
+        output.setExpectedETag("\"1\"");
+        output.write("mine".getBytes());
+        // another node replaces the object after the version was read
+        client.store("theirs".getBytes());
+
+        try {
+            output.close();
+            fail("Write should have failed");
+        } catch (ObjectVersionConflictException ex) {
+            assertEquals("\"1\"", ex.getExpectedVersion());
+            assertEquals("\"2\"", ex.getActualVersion());
+        }
+        assertEquals("theirs", new String(client.objects.get(KEY)));
+    }
+
+    @Test
+    public void newObjectIsCreatedOnlyOnce() throws Exception {
+        final ConditionalS3Client client = new ConditionalS3Client();
+
+        final S3MultipartOutputStream output = new S3MultipartOutputStream(BUCKET, KEY, client);
+        output.setExpectedETag(null);
+        output.write("mine".getBytes());
+        client.store("theirs".getBytes());
+
+        try {
+            output.close();
+            fail("Write should have failed");
+        } catch (ObjectVersionConflictException ex) {
+            assertNull(ex.getExpectedVersion());
+            assertEquals("\"1\"", ex.getActualVersion());
+        }
+        assertEquals(Arrays.asList("*"), client.headers.get(0).get("If-None-Match"));
+    }
+
+    @Test
+    public void multipartUploadIsCompletedConditionally() throws Exception {
+        final ConditionalS3Client client = new ConditionalS3Client();
+        client.store("old".getBytes());
+
+        final S3MultipartOutputStream output = new S3MultipartOutputStream(BUCKET, KEY,
+                S3MultipartOutputStream.MIN_PART_SIZE, client);
+        output.setExpectedETag("\"1\"");
+        output.write(new byte[S3MultipartOutputStream.MIN_PART_SIZE + 10]);
+        client.store("theirs".getBytes());
+
+        try {
+            output.close();
+            fail("Write should have failed");
+        } catch (ObjectVersionConflictException ex) {
+            assertEquals("\"2\"", ex.getActualVersion());
+        }
+        assertEquals("theirs", new String(client.objects.get(KEY)));
+        assertEquals(Arrays.asList("\"1\""), client.headers.get(0).get("If-Match"));
+        assertTrue(client.aborted);
+    }
+
+    @Test
+    public void unconditionalUploadSendsNoCondition() throws Exception {
+        final ConditionalS3Client client = new ConditionalS3Client();
+        client.store("old".getBytes());
+
+        final S3MultipartOutputStream output = new S3MultipartOutputStream(BUCKET, KEY, client);
+        output.write("new".getBytes());
+        output.close();
+
+        assertTrue(client.headers.get(0).isEmpty());
+        assertEquals("new", new String(client.objects.get(KEY)));
+    }
+}
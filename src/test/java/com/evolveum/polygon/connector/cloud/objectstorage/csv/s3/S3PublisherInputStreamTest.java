@@ -0,0 +1,157 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.s3;
+
+import org.reactivestreams.Subscription;
+import org.testng.annotations.Test;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Buffers published by the non-blocking client read through the blocking stream.
+ */
+public class S3PublisherInputStreamTest {
+
+    private static class TestSubscription implements Subscription {
+
+        private volatile long requested = 0;
+        private volatile boolean cancelled = false;
+
+        @Override
+        public synchronized void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    @Test
+    public void buffersAreRequestedAsTheyAreConsumed() throws Exception {
+        final TestSubscription subscription = new TestSubscription();
+        final S3PublisherInputStream input = new S3PublisherInputStream(2);
+        input.onSubscribe(subscription);
+        assertEquals(2, subscription.requested);
+
+        input.onNext(buffer("abc"));
+        input.onNext(buffer("de"));
+
+        final byte[] b = new byte[10];
+        assertEquals(3, input.read(b, 0, 10));
+        assertEquals("abc", new String(b, 0, 3, StandardCharsets.UTF_8));
+        // nothing more is requested until the reader gets to the next buffer
+        assertEquals(2, subscription.requested);
+
+        assertEquals('d', input.read());
+        assertEquals(3, subscription.requested);
+        assertEquals(1, input.available());
+
+        input.onComplete();
+        assertEquals('e', input.read());
+        assertEquals(-1, input.read());
+        assertEquals(-1, input.read(b, 0, 10));
+        assertFalse(subscription.cancelled);
+    }
+
+    @Test
+    public void readWaitsForData() throws Exception {
+        final S3PublisherInputStream input = new S3PublisherInputStream();
+        input.onSubscribe(new TestSubscription());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Integer> read = executor.submit(() -> input.read());
+            Thread.sleep(100);
+            assertFalse(read.isDone());
+
+            input.onNext(buffer("x"));
+            assertEquals(Integer.valueOf('x'), read.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void errorIsThrownAfterPublishedData() throws Exception {
+        final S3PublisherInputStream input = new S3PublisherInputStream();
+        input.onSubscribe(new TestSubscription());
+
+        final RuntimeException failure = new RuntimeException("connection reset");
+        input.onNext(buffer("ab"));
+        input.onError(failure);
+        // signals after the error are ignored
+        input.onComplete();
+
+        assertEquals('a', input.read());
+        assertEquals('b', input.read());
+        try {
+            input.read();
+            fail("Error wasn't propagated");
+        } catch (IOException ex) {
+            assertSame(failure, ex.getCause());
+        }
+        assertEquals(-1, input.read());
+    }
+
+    @Test
+    public void closeCancelsSubscription() throws Exception {
+        final TestSubscription subscription = new TestSubscription();
+        final S3PublisherInputStream input = new S3PublisherInputStream();
+        input.onSubscribe(subscription);
+        input.onNext(buffer("abc"));
+
+        assertEquals('a', input.read());
+        input.close();
+        assertTrue(subscription.cancelled);
+        assertEquals(-1, input.read());
+        assertEquals(0, input.available());
+
+        // subscription which comes after close is cancelled right away
+        final TestSubscription late = new TestSubscription();
+        input.onSubscribe(late);
+        assertTrue(late.cancelled);
+        assertEquals(0, late.requested);
+    }
+
+    @Test
+    public void closeAfterCompleteDoesntCancel() throws Exception {
+        final TestSubscription subscription = new TestSubscription();
+        final S3PublisherInputStream input = new S3PublisherInputStream();
+        input.onSubscribe(subscription);
+        input.onNext(buffer("a"));
+        input.onComplete();
+
+        input.close();
+        assertFalse(subscription.cancelled);
+    }
+
+    @Test
+    public void interruptedReadCancelsSubscription() throws Exception {
+        final TestSubscription subscription = new TestSubscription();
+        final S3PublisherInputStream input = new S3PublisherInputStream();
+        input.onSubscribe(subscription);
+
+        Thread.currentThread().interrupt();
+        try {
+            input.read();
+            fail("Read wasn't interrupted");
+        } catch (InterruptedIOException ex) {
+            // expected
+        } finally {
+            // interrupted flag is kept for the caller
+            assertTrue(Thread.interrupted());
+        }
+        assertTrue(subscription.cancelled);
+    }
+
+    private static ByteBuffer buffer(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
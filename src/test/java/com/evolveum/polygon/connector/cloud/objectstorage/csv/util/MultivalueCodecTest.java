@@ -0,0 +1,90 @@
+package com.evolveum.polygon.connector.cloud.objectstorage.csv.util;
+
+import com.evolveum.polygon.connector.cloud.objectstorage.csv.CloudCsvConfiguration;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Splitting and joining of multivalued columns by {@link MultivalueCodec}.
+ */
+public class MultivalueCodecTest {
+
+    @Test
+    public void delimiterIsNotRegularExpression() {
+        final MultivalueCodec codec = MultivalueCodec.of("|", null);
+
+        assertEquals(Arrays.asList("a", "b", "c"), codec.split("a|b|c"));
+        assertEquals(Collections.singletonList("abc"), codec.split("abc"));
+        assertEquals(Arrays.asList("a.b", "c"), MultivalueCodec.of(".|", null).split("a.b.|c"));
+    }
+
+    @Test
+    public void emptyValuesAreSkipped() {
+        final MultivalueCodec codec = MultivalueCodec.of("|", null);
+
+        assertEquals(Arrays.asList("a", "b"), codec.split("|a||b|"));
+        assertTrue(codec.split("").isEmpty());
+        assertTrue(codec.split(null).isEmpty());
+    }
+
+    @Test
+    public void singleValueIsNotSplit() {
+        assertFalse(MultivalueCodec.singleValue().isMultivalued());
+        assertEquals(Collections.singletonList("a|b"), MultivalueCodec.singleValue().split("a|b"));
+        assertEquals(Collections.singletonList("a|b"), MultivalueCodec.of("", "\\").split("a|b"));
+    }
+
+    @Test
+    public void escapingIsDisabledByDefault() throws Exception {
+        final CloudCsvConfiguration config = new CloudCsvConfiguration();
+        config.setMultivalueDelimiter("|");
+        config.setEscape("\\");
+
+        final MultivalueCodec codec = MultivalueCodec.of(config);
+        assertEquals(Arrays.asList("a\\", "b"), codec.split("a\\|b"));
+        assertEquals("a|b\\|c", join(codec, "a|b\\", "c"));
+    }
+
+    @Test
+    public void escapedDelimiterIsPartOfValue() throws Exception {
+        final CloudCsvConfiguration config = new CloudCsvConfiguration();
+        config.setMultivalueDelimiter("|");
+        config.setEscape("\\");
+        config.setMultivalueEscape(true);
+
+        final MultivalueCodec codec = MultivalueCodec.of(config);
+        assertEquals(Arrays.asList("a|b", "c\\", "d\\e"), codec.split("a\\|b|c\\\\|d\\e"));
+    }
+
+    @Test
+    public void escapedValuesAreSplitBack() {
+        final MultivalueCodec codec = MultivalueCodec.of("|", "\\");
+        final List<String> values = Arrays.asList("a|b", "c\\", "\\|", "d\\e", "||", "f");
+
+        final String raw = join(codec, values.toArray(new String[0]));
+        assertEquals("a\\|b|c\\\\|\\\\\\||d\\e|\\|\\||f", raw);
+        assertEquals(values, codec.split(raw));
+    }
+
+    @Test
+    public void escapeWhichIsPartOfDelimiterIsNotUsed() {
+        final MultivalueCodec codec = MultivalueCodec.of("\\|", "\\");
+
+        assertEquals(Arrays.asList("a", "b"), codec.split("a\\|b"));
+    }
+
+    private static String join(MultivalueCodec codec, String... values) {
+        final StringBuilder raw = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                codec.appendDelimiter(raw);
+            }
+            codec.appendValue(raw, values[i]);
+        }
+
+        return raw.toString();
+    }
+}